@@ -33,6 +33,7 @@ import net.alliknow.podcatcher.listeners.OnDownloadEpisodeListener;
 import net.alliknow.podcatcher.listeners.OnSelectEpisodeListener;
 import net.alliknow.podcatcher.listeners.PlayServiceListener;
 import net.alliknow.podcatcher.listeners.PlayerListener;
+import net.alliknow.podcatcher.model.MediaUrlResolver;
 import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask.EpisodeDownloadError;
 import net.alliknow.podcatcher.model.types.Episode;
 import net.alliknow.podcatcher.services.PlayEpisodeService;
@@ -43,6 +44,7 @@ import net.alliknow.podcatcher.view.fragments.EpisodeFragment;
 import net.alliknow.podcatcher.view.fragments.PlayerFragment;
 
 import java.lang.ref.WeakReference;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -190,6 +192,9 @@ public abstract class EpisodeActivity extends BaseActivity implements
     @Override
     public void onEpisodeSelected(Episode selectedEpisode) {
         selection.setEpisode(selectedEpisode);
+        // The user might hit play soon, find the media file's location
+        if (!episodeManager.isDownloaded(selectedEpisode))
+            MediaUrlResolver.getInstance().resolve(selectedEpisode);
 
         switch (view) {
             case LARGE_PORTRAIT:
@@ -253,7 +258,7 @@ public abstract class EpisodeActivity extends BaseActivity implements
     }
 
     @Override
-    public void onDownloadDeleted(Episode episode) {
+    public void onDownloadsDeleted(List<Episode> episodes) {
         updateDownloadUi();
     }
 
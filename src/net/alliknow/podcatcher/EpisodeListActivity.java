@@ -33,6 +33,7 @@ import net.alliknow.podcatcher.listeners.OnReorderEpisodeListener;
 import net.alliknow.podcatcher.listeners.OnReverseSortingListener;
 import net.alliknow.podcatcher.listeners.OnSelectPodcastListener;
 import net.alliknow.podcatcher.listeners.OnToggleFilterListener;
+import net.alliknow.podcatcher.model.EpisodeDownloadManager.DownloadPriority;
 import net.alliknow.podcatcher.model.tasks.remote.LoadPodcastTask.PodcastLoadError;
 import net.alliknow.podcatcher.model.types.Episode;
 import net.alliknow.podcatcher.model.types.Podcast;
@@ -336,7 +337,7 @@ public abstract class EpisodeListActivity extends EpisodeActivity implements
 
         // We may want to auto-download the latest episode
         if (shouldAutoDownloadLatestEpisode(podcast))
-            episodeManager.download(podcast.getEpisodes().get(0));
+            episodeManager.download(podcast.getEpisodes().get(0), DownloadPriority.AUTO);
 
         // Update other UI
         updateActionBar();
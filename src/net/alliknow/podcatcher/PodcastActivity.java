@@ -405,6 +405,11 @@ public class PodcastActivity extends EpisodeListActivity implements OnBackStackC
             onPodcastSelected(selection.getPodcast(), true);
     }
 
+    @Override
+    public void onPodcastMoved(Podcast podcast, String oldUrl) {
+        // pass, the podcast object and its place in the list stay the same
+    }
+
     @Override
     public void onPodcastSelected(Podcast podcast) {
         onPodcastSelected(podcast, false);
@@ -29,11 +29,13 @@ import android.os.AsyncTask;
 import android.os.Process;
 
 import net.alliknow.podcatcher.model.EpisodeManager;
+import net.alliknow.podcatcher.model.LogoCache;
 import net.alliknow.podcatcher.model.PodcastManager;
 import net.alliknow.podcatcher.model.SuggestionManager;
 import net.alliknow.podcatcher.model.SyncManager;
 import net.alliknow.podcatcher.model.tasks.LoadEpisodeMetadataTask;
 import net.alliknow.podcatcher.model.tasks.LoadPodcastListTask;
+import net.alliknow.podcatcher.model.tasks.remote.LoadRemoteFileTask;
 
 import java.io.File;
 import java.io.IOException;
@@ -84,6 +86,10 @@ public class Podcatcher extends Application {
         SuggestionManager.getInstance(this);
         // and sync as well
         SyncManager.getInstance(this);
+        // The logo cache needs to know the memory class
+        LogoCache.getInstance(this);
+        // Set up the pooled HTTP transport before the first connection is made
+        LoadRemoteFileTask.getDefaultTransport();
 
         // Enabled caching for our HTTP connections
         try {
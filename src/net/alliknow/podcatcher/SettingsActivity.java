@@ -48,6 +48,16 @@ public class SettingsActivity extends BaseActivity {
     public static final String KEY_AUTO_DELETE = "auto_delete";
     /** The key for the download folder preference */
     public static final String KEY_DOWNLOAD_FOLDER = "download_folder";
+    /** The key for the storage budget preference */
+    public static final String KEY_STORAGE_BUDGET = "storage_budget";
+    /** The preference key for the in-app download flag */
+    public static final String KEY_IN_APP_DOWNLOAD = "in_app_download";
+    /** The key for the bandwidth limit per in-app download preference */
+    public static final String KEY_DOWNLOAD_BANDWIDTH_LIMIT = "download_bandwidth_limit";
+    /** The key for the bandwidth limit for all in-app downloads preference */
+    public static final String KEY_TOTAL_BANDWIDTH_LIMIT = "total_bandwidth_limit";
+    /** The preference key for the playlist prefetch flag */
+    public static final String KEY_PREFETCH_PLAYLIST = "prefetch_playlist";
 
     /** Setting key for the sync receive field */
     public static final String KEY_SYNC_RECEIVE = "receive_controller";
@@ -35,6 +35,9 @@ import net.alliknow.podcatcher.view.fragments.DeleteDownloadsConfirmationFragmen
 import net.alliknow.podcatcher.view.fragments.DeleteDownloadsConfirmationFragment.OnDeleteDownloadsConfirmationListener;
 import net.alliknow.podcatcher.view.fragments.EpisodeListFragment;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Listener for the episode list context mode.
  */
@@ -153,12 +156,15 @@ public class EpisodeListContextListener implements MultiChoiceModeListener {
 
                     @Override
                     public void onConfirmDeletion() {
-                        // Go delete the downloads
+                        // Go delete the downloads, all in one batch
+                        final List<Episode> deletions = new ArrayList<>();
                         for (int position = 0; position < fragment.getListAdapter().getCount(); position++)
                             if (checkedItems.get(position))
-                                episodeManager.deleteDownload(
+                                deletions.add(
                                         (Episode) fragment.getListAdapter().getItem(position));
 
+                        episodeManager.deleteDownloads(deletions);
+
                         // Action picked, so close the CAB
                         mode.finish();
                     }
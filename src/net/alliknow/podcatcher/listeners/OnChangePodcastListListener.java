@@ -21,7 +21,7 @@ import net.alliknow.podcatcher.model.types.Podcast;
 
 /**
  * Interface definition for a callback to be invoked when the podcast list is
- * changed, i.e. podcasts are added or removed.
+ * changed, i.e. podcasts are added, removed, or moved to a new URL.
  */
 public interface OnChangePodcastListListener {
 
@@ -39,4 +39,15 @@ public interface OnChangePodcastListListener {
      * @param podcast Podcast being removed.
      */
     public void onPodcastRemoved(Podcast podcast);
+
+    /**
+     * Called on listener when the podcast manager changed the URL of a
+     * podcast in its list because the feed moved there permanently. The
+     * podcast object stays the same.
+     * 
+     * @param podcast Podcast moved, {@link Podcast#getUrl()} already returns
+     *            the new location.
+     * @param oldUrl The URL the podcast had before.
+     */
+    public void onPodcastMoved(Podcast podcast, String oldUrl);
 }
@@ -20,6 +20,8 @@ package net.alliknow.podcatcher.listeners;
 import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask.EpisodeDownloadError;
 import net.alliknow.podcatcher.model.types.Episode;
 
+import java.util.List;
+
 /**
  * Interface for the controller to implement when the user requests an episode
  * to be downloaded locally.
@@ -55,9 +57,11 @@ public interface OnDownloadEpisodeListener {
     public void onDownloadFailed(Episode episode, EpisodeDownloadError error);
 
     /**
-     * Called on the listener if a download is removed.
+     * Called on the listener if downloads are removed. Downloads deleted
+     * together are reported with one call.
      * 
-     * @param episode The episode the local copy was delete of.
+     * @param episodes The episodes the local copies were deleted of (not
+     *            empty).
      */
-    public void onDownloadDeleted(Episode episode);
+    public void onDownloadsDeleted(List<Episode> episodes);
 }
@@ -0,0 +1,39 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.listeners;
+
+import java.util.Map;
+
+/**
+ * Interface definition for a callback to be invoked when the downloads have
+ * been checked against the storage budget and the episodes to evict are known.
+ */
+public interface OnEnforceStorageBudgetListener {
+
+    /**
+     * Called on completion.
+     * 
+     * @param evictions The downloads to delete to get back within the budget,
+     *            in eviction order. Maps the metadata key to the file path
+     *            checked. Empty if the downloads fit the budget.
+     * @param used The space (in bytes) taken by all downloads at the time of
+     *            the check.
+     * @param budget The budget (in bytes) the downloads were checked against.
+     */
+    public void onStorageBudgetChecked(Map<String, String> evictions, long used, long budget);
+}
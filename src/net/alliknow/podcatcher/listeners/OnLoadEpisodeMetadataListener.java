@@ -31,7 +31,9 @@ public interface OnLoadEpisodeMetadataListener {
      * Called on completion.
      * 
      * @param metadata Episode metadata loaded.
+     * @param generation The generation of the metadata file loaded, all
+     *            journal records up to this generation are included in it.
      */
-    public void onEpisodeMetadataLoaded(Map<String, EpisodeMetadata> metadata);
+    public void onEpisodeMetadataLoaded(Map<String, EpisodeMetadata> metadata, long generation);
 
 }
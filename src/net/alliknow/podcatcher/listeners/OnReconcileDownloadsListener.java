@@ -0,0 +1,38 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.listeners;
+
+import java.util.Map;
+
+/**
+ * Interface definition for a callback to be invoked when the download records
+ * in the episode metadata have been checked against the download folder.
+ */
+public interface OnReconcileDownloadsListener {
+
+    /**
+     * Called on completion.
+     * 
+     * @param found Records with a download id, but no file path, that have
+     *            their episode file present in the download folder. Maps the
+     *            metadata key to the file path found.
+     * @param missing Records with a file path pointing at a file that is no
+     *            longer present. Maps the metadata key to the path checked.
+     */
+    public void onDownloadsReconciled(Map<String, String> found, Map<String, String> missing);
+}
@@ -0,0 +1,36 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.listeners;
+
+import java.util.Set;
+
+/**
+ * Interface definition for a callback to be invoked when the episode metadata
+ * has been reconciled against the podcasts currently known, i.e. records no
+ * longer needed have been pruned.
+ */
+public interface OnReconcileEpisodeMetadataListener {
+
+    /**
+     * Called on completion.
+     * 
+     * @param prunedKeys The keys of the metadata records pruned, the number of
+     *            records pruned is the size of this set.
+     */
+    public void onEpisodeMetadataReconciled(Set<String> prunedKeys);
+}
@@ -17,6 +17,8 @@
 
 package net.alliknow.podcatcher.listeners;
 
+import java.util.Map;
+
 /**
  * Interface definition for a callback to be invoked when the episode meta data
  * is written to disk.
@@ -25,8 +27,12 @@ public interface OnStoreEpisodeMetadataListener {
 
     /**
      * Called on successful completion.
+     * 
+     * @param evicted The keys of the records dropped due to the retention
+     *            policy, each pointing at the record's last touched time stamp
+     *            when evicted. Might be empty, but not <code>null</code>.
      */
-    public void onEpisodeMetadataStored();
+    public void onEpisodeMetadataStored(Map<String, Long> evicted);
 
     /**
      * Called on failure.
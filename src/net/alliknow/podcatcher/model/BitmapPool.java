@@ -0,0 +1,145 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A small pool of mutable bitmaps whose pixel memory can be re-used when
+ * decoding new images via {@link BitmapFactory.Options#inBitmap}. This avoids
+ * allocating (and later collecting) a large pixel buffer for every decode.
+ * Bitmaps handed out by the pool are owned by the caller, and only bitmaps no
+ * longer referenced anywhere else may be given back using
+ * {@link #put(Bitmap)}.
+ */
+public class BitmapPool {
+
+    /** The maximum number of bitmaps to keep around */
+    private static final int MAX_POOL_SIZE = 3;
+
+    /** The single instance */
+    private static BitmapPool pool;
+
+    /** The bitmaps available for re-use */
+    private final LinkedList<Bitmap> bitmaps = new LinkedList<>();
+
+    private BitmapPool() {
+        // Use getInstance()
+    }
+
+    /**
+     * @return The single instance of the bitmap pool.
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (pool == null)
+            pool = new BitmapPool();
+
+        return pool;
+    }
+
+    /**
+     * Prepare the given options for decoding with re-used pixel memory. Call
+     * this after the bounds of the image were decoded and the sample size is
+     * set. If a suitable bitmap is available from the pool, it is removed
+     * and set as {@link BitmapFactory.Options#inBitmap}. In any case, the
+     * options are set to decode to a mutable bitmap, so the result can be
+     * given back to the pool later.
+     * 
+     * @param options The decode options to alter.
+     */
+    public synchronized void prepare(BitmapFactory.Options options) {
+        options.inMutable = true;
+        options.inBitmap = null;
+
+        final Iterator<Bitmap> iterator = bitmaps.iterator();
+        while (iterator.hasNext()) {
+            final Bitmap candidate = iterator.next();
+
+            if (candidate.isRecycled())
+                iterator.remove();
+            else if (canUseForInBitmap(candidate, options)) {
+                iterator.remove();
+                options.inBitmap = candidate;
+
+                break;
+            }
+        }
+    }
+
+    /**
+     * Give a bitmap back to the pool. If the pool is full, the least recently
+     * added bitmap is recycled. Immutable bitmaps are recycled right away.
+     * 
+     * @param bitmap The bitmap no longer used by anybody.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled())
+            return;
+
+        if (!bitmap.isMutable())
+            bitmap.recycle();
+        else {
+            bitmaps.addFirst(bitmap);
+
+            while (bitmaps.size() > MAX_POOL_SIZE)
+                bitmaps.removeLast().recycle();
+        }
+    }
+
+    /**
+     * Recycle all bitmaps currently in the pool.
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : bitmaps)
+            bitmap.recycle();
+
+        bitmaps.clear();
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options options) {
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        // Round up, decoders might do so as well
+        final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        // From KitKat on, any bitmap large enough will do
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            return width * height * getBytesPerPixel(candidate.getConfig())
+                    <= candidate.getAllocationByteCount();
+        // Before that, the size has to match exactly and no sampling is allowed
+        else
+            return sampleSize == 1 && candidate.getWidth() == width
+                    && candidate.getHeight() == height;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888)
+            return 4;
+        else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+            return 2;
+        else
+            return 1;
+    }
+}
@@ -25,15 +25,32 @@ import net.alliknow.podcatcher.listeners.OnStoreEpisodeMetadataListener;
 import net.alliknow.podcatcher.model.tasks.StoreEpisodeMetadataTask;
 import net.alliknow.podcatcher.model.types.Episode;
 import net.alliknow.podcatcher.model.types.EpisodeMetadata;
+import net.alliknow.podcatcher.model.types.MetadataRetentionPolicy;
+import net.alliknow.podcatcher.model.types.Podcast;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CountDownLatch;
 
 /**
  * Base for the episode manager's class hierarchy. This sets things up by
  * defining the basic data structures.
+ * <p>
+ * <b>Changes:</b> Every change to a metadata record is registered via
+ * {@link #markMetadataChanged(String, EpisodeMetadata)} and bumps the metadata
+ * version. Use {@link #getMetadataVersion()} and
+ * {@link #getMetadataChangesSince(long)} to find the records changed since you
+ * last looked. Persistence works the same way: only records changed since the
+ * last store are appended to a journal, which is compacted into the metadata
+ * file once it grows too large.
+ * </p>
  * 
  * @see EpisodeManager
  */
@@ -42,14 +59,35 @@ public abstract class EpisodeBaseManager implements OnLoadEpisodeMetadataListene
 
     /** The file name to store local episode metadata information under */
     public static final String METADATA_FILENAME = "episodes.xml";
+    /** The file name of the journal holding changes not yet compacted */
+    public static final String METADATA_JOURNAL_FILENAME = "episodes.journal";
+    /** The journal size in bytes that is always acceptable without compaction */
+    private static final long MIN_COMPACTION_JOURNAL_SIZE = 64 * 1024;
 
     /** The application itself (used e.g. as context in tasks) */
     protected Podcatcher podcatcher;
 
     /** The metadata information held for episodes */
     protected Map<String, EpisodeMetadata> metadata;
-    /** Flag to indicate whether metadata is dirty */
-    protected boolean metadataChanged;
+    /** The current metadata version, incremented on every change */
+    private long metadataVersion = 0;
+    /** The keys of all records changed, pointing at their latest version */
+    private Map<String, Long> changedKeys = new ConcurrentHashMap<>();
+    /** The change log, one entry per changed key at its latest version */
+    private ConcurrentSkipListMap<Long, String> changeLog = new ConcurrentSkipListMap<>();
+    /** The metadata version last written to disk */
+    private long persistedVersion = 0;
+    /** The metadata version the store task currently running will persist */
+    private long storingVersion = 0;
+    /**
+     * The generation of the metadata file, journal records of this generation
+     * or older are included in it and skipped on load
+     */
+    private long metadataGeneration = 0;
+    /** Flag to indicate whether the store task running compacts the journal */
+    private boolean isCompacting = false;
+    /** The retention policy enforced whenever the metadata is stored */
+    private MetadataRetentionPolicy retentionPolicy = MetadataRetentionPolicy.DEFAULT;
 
     /** Amount of milliseconds between {@link #saveState()} calls */
     private long PERSIST_METADATA_INTERVAL = 60 * 1000;
@@ -89,11 +127,12 @@ public abstract class EpisodeBaseManager implements OnLoadEpisodeMetadataListene
     }
 
     @Override
-    public void onEpisodeMetadataLoaded(Map<String, EpisodeMetadata> metadata) {
+    public void onEpisodeMetadataLoaded(Map<String, EpisodeMetadata> metadata, long generation) {
+        this.metadataGeneration = generation;
+
         // We want our metadata to be thread safe, since we might load some
         // clean-up work off to other threads.
         this.metadata = new ConcurrentHashMap<>(metadata);
-        this.metadataChanged = false;
 
         // Here we need to release all threads (AsyncTasks) that might be
         // waiting for the episode metadata to become available
@@ -115,27 +154,120 @@ public abstract class EpisodeBaseManager implements OnLoadEpisodeMetadataListene
     /**
      * Persist the manager's data to disk. It is save to call this at any time,
      * if there is no change in the episode meta data, no action is taken.
+     * Usually, only the records changed since the last call are written.
      */
     @SuppressWarnings("unchecked")
     public void saveState() {
         // Run store task if it is not running and meta data is dirty
-        if (metadataChanged && metadata != null && !isStoreTaskRunning) {
+        final long version = getMetadataVersion();
+        if (version > persistedVersion && metadata != null && !isStoreTaskRunning) {
             // Make sure task does not run twice
             isStoreTaskRunning = true;
+            storingVersion = version;
 
-            // Store a copy of the actual map, since there might come in changes
-            // to the meta data while the task is running and that would lead to
-            // a concurrent modification exception
-            new StoreEpisodeMetadataTask(podcatcher, this).execute(new HashMap<>(metadata));
+            final StoreEpisodeMetadataTask task = new StoreEpisodeMetadataTask(podcatcher, this);
+            // Records are written with the generation of the next metadata
+            // file, so a journal left over after compaction (e.g. because we
+            // died before it was removed) does not override newer data
+            task.setGeneration(metadataGeneration + 1);
 
-            // Reset the flag, so the list will only be saved if changed again.
-            metadataChanged = false;
+            // The journal grew too large, rewrite the metadata file
+            isCompacting = isCompactionNeeded();
+            if (isCompacting) {
+                // The retention policy needs to know which podcasts are still
+                // subscribed to, if the podcast list is not available yet, the
+                // policy will keep state for all podcasts
+                task.setRetentionPolicy(retentionPolicy, getSubscribedPodcastUrls());
+
+                // Store a copy of the actual map, since there might come in
+                // changes to the meta data while the task is running and that
+                // would lead to a concurrent modification exception
+                task.execute(new HashMap<>(metadata));
+            }
+            // Only append the records changed to the journal, records no
+            // longer present are given as null and written as deletions
+            else {
+                final Map<String, EpisodeMetadata> delta = new HashMap<>();
+                for (String key : getMetadataChangesSince(persistedVersion))
+                    delta.put(key, metadata.get(key));
+
+                task.setJournalMode(true);
+                task.execute(delta);
+            }
         }
     }
 
+    /**
+     * @return The current version of the episode metadata. This number
+     *         increases with every change to any metadata record and can be
+     *         given to {@link #getMetadataChangesSince(long)} later to find
+     *         out what changed in between.
+     */
+    public synchronized long getMetadataVersion() {
+        return metadataVersion;
+    }
+
+    /**
+     * Find the keys (episode media URLs) of all metadata records changed after
+     * the given version. Records might have been removed in the meantime. Call
+     * {@link #getMetadataVersion()} <em>before</em> calling this in order to
+     * get the version to hand in the next time, records changed in between
+     * will then simply be reported twice.
+     * 
+     * @param version The metadata version to look for changes after. Give
+     *            zero to get all records changed during this session.
+     * @return The set of keys changed. Might be empty but not
+     *         <code>null</code>.
+     */
+    public Set<String> getMetadataChangesSince(long version) {
+        return new HashSet<>(changeLog.tailMap(version, false).values());
+    }
+
+    /**
+     * Find the episodes with metadata records changed after the given version.
+     * Episodes with their metadata record removed are not included.
+     * 
+     * @param version The metadata version to look for changes after.
+     * @return The list of episodes changed. Might be empty but not
+     *         <code>null</code>.
+     * @see #getMetadataChangesSince(long)
+     */
+    public List<Episode> getEpisodesChangedSince(long version) {
+        final List<Episode> result = new ArrayList<>();
+
+        if (metadata != null)
+            for (String key : getMetadataChangesSince(version)) {
+                final EpisodeMetadata meta = metadata.get(key);
+
+                if (meta != null && meta.podcastUrl != null) {
+                    final Episode episode = meta.marshalEpisode(key);
+
+                    if (episode != null)
+                        result.add(episode);
+                }
+            }
+
+        return result;
+    }
+
     @Override
-    public void onEpisodeMetadataStored() {
+    public void onEpisodeMetadataStored(Map<String, Long> evicted) {
         isStoreTaskRunning = false;
+        // All changes up to this version are on disk now
+        persistedVersion = storingVersion;
+        // The metadata file includes the journal's generation now, go on
+        // with the next one
+        if (isCompacting)
+            metadataGeneration++;
+
+        // Drop evicted records from memory as well, unless they have been
+        // changed since the policy decided to evict them
+        for (Entry<String, Long> entry : evicted.entrySet()) {
+            final EpisodeMetadata meta = metadata.get(entry.getKey());
+
+            if (meta != null && meta.lastTouched == entry.getValue() && meta.hasOnlyStateData())
+                metadata.remove(entry.getKey());
+        }
     }
 
     @Override
@@ -143,6 +275,44 @@ public abstract class EpisodeBaseManager implements OnLoadEpisodeMetadataListene
         isStoreTaskRunning = false;
     }
 
+    /**
+     * Set the retention policy enforced on the episode metadata. The policy
+     * will be applied the next time the metadata is stored.
+     * 
+     * @param policy The policy to use, give <code>null</code> to keep all
+     *            records.
+     */
+    public void setRetentionPolicy(MetadataRetentionPolicy policy) {
+        this.retentionPolicy = policy;
+    }
+
+    /**
+     * Mark a metadata record as dirty after it has been changed. This makes
+     * sure the change is persisted, reported via
+     * {@link #getMetadataChangesSince(long)} and updates the record's last
+     * touched time stamp.
+     * 
+     * @param key The record's key, i.e. the episode's media URL.
+     * @param meta The record changed, might be <code>null</code> if the record
+     *            was not created or has been removed.
+     */
+    protected synchronized void markMetadataChanged(String key, EpisodeMetadata meta) {
+        if (meta != null)
+            meta.touch();
+
+        if (key != null) {
+            final long version = ++metadataVersion;
+
+            // Keep only one entry per key in the change log, so it never grows
+            // beyond the number of records
+            final Long previous = changedKeys.put(key, version);
+            if (previous != null)
+                changeLog.remove(previous);
+
+            changeLog.put(version, key);
+        }
+    }
+
     /**
      * Utility method to populate an episode's metadata object.
      * 
@@ -159,4 +329,27 @@ public abstract class EpisodeBaseManager implements OnLoadEpisodeMetadataListene
             meta.podcastUrl = episode.getPodcast().getUrl();
         }
     }
+
+    private boolean isCompactionNeeded() {
+        final long journalSize = podcatcher.getFileStreamPath(METADATA_JOURNAL_FILENAME).length();
+        final long metadataSize = podcatcher.getFileStreamPath(METADATA_FILENAME).length();
+
+        return journalSize > Math.max(MIN_COMPACTION_JOURNAL_SIZE, metadataSize / 2);
+    }
+
+    private Set<String> getSubscribedPodcastUrls() {
+        final PodcastManager podcastManager = PodcastManager.getInstance();
+        final List<Podcast> podcastList =
+                podcastManager == null ? null : podcastManager.getPodcastList();
+
+        if (podcastList == null)
+            return null;
+        else {
+            final Set<String> result = new HashSet<>();
+            for (Podcast podcast : podcastList)
+                result.add(podcast.getUrl());
+
+            return result;
+        }
+    }
 }
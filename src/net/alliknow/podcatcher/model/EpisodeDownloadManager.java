@@ -25,52 +25,140 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.preference.PreferenceManager;
 
 import net.alliknow.podcatcher.BaseActivity.ContentMode;
 import net.alliknow.podcatcher.EpisodeActivity;
 import net.alliknow.podcatcher.EpisodeListActivity;
 import net.alliknow.podcatcher.PodcastActivity;
 import net.alliknow.podcatcher.Podcatcher;
+import net.alliknow.podcatcher.SettingsActivity;
+import net.alliknow.podcatcher.listeners.OnDeleteDownloadsListener;
 import net.alliknow.podcatcher.listeners.OnDownloadEpisodeListener;
+import net.alliknow.podcatcher.listeners.OnEnforceStorageBudgetListener;
 import net.alliknow.podcatcher.listeners.OnLoadDownloadsListener;
+import net.alliknow.podcatcher.listeners.OnReclaimStorageListener;
+import net.alliknow.podcatcher.listeners.OnReconcileDownloadsListener;
+import net.alliknow.podcatcher.model.tasks.DeleteDownloadsTask;
+import net.alliknow.podcatcher.model.tasks.EnforceStorageBudgetTask;
 import net.alliknow.podcatcher.model.tasks.LoadDownloadsTask;
+import net.alliknow.podcatcher.model.tasks.ReconcileDownloadsTask;
 import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask;
 import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask.DownloadTaskListener;
 import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask.EpisodeDownloadError;
+import net.alliknow.podcatcher.model.tasks.remote.SegmentedDownloadTask;
 import net.alliknow.podcatcher.model.types.Episode;
 import net.alliknow.podcatcher.model.types.EpisodeMetadata;
 import net.alliknow.podcatcher.model.types.Podcast;
+import net.alliknow.podcatcher.model.types.StorageReport;
+import net.alliknow.podcatcher.preferences.DownloadFolderPreference;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This class is the part of the episode manager stack that handles the download
  * and deletion of episodes. It uses the Android {@link DownloadManager} API to
- * carry out the downloads.
+ * carry out the downloads. Downloads requested are queued first and started by
+ * priority, with only a limited number of them running at the same time.
+ * Completed downloads are kept within the storage budget set by the user, see
+ * {@link EnforceStorageBudgetTask} for the eviction order.
  * 
  * @see EpisodeManager
  */
 public abstract class EpisodeDownloadManager extends EpisodeBaseManager implements
-        DownloadTaskListener {
+        DownloadTaskListener, OnReconcileDownloadsListener, OnEnforceStorageBudgetListener {
 
     /** Characters not allowed in filenames */
     private static final String RESERVED_CHARS = "|\\?*<\":>+[]/'#!,&";
 
+    /** The default number of downloads running at the same time */
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3;
+
+    /**
+     * The priorities a download can be queued with, from highest to lowest.
+     * Downloads with the same priority start in playlist order first (with
+     * entries the user skipped past going last) and in the order they were
+     * requested otherwise.
+     */
+    public static enum DownloadPriority {
+        /** The download was explicitly requested by the user */
+        USER(false),
+
+        /** The download gets playlist entries ready ahead of playback */
+        PLAYLIST(true),
+
+        /** The download was triggered automatically */
+        AUTO(true);
+
+        /** Whether the download should wait for a fast (e.g. wifi) network */
+        private final boolean needsFastConnection;
+
+        private DownloadPriority(boolean needsFastConnection) {
+            this.needsFastConnection = needsFastConnection;
+        }
+
+        /**
+         * @return Whether downloads with this priority are deferred until the
+         *         device is on a fast (and potentially free) network.
+         */
+        public boolean needsFastConnection() {
+            return needsFastConnection;
+        }
+    }
+
     /** The current number of downloaded episodes we know of */
     protected int downloadsSize = -1;
 
+    /** The single monitor watching all running downloads */
+    protected final EpisodeDownloadMonitor downloadMonitor;
+    /** The in-app downloads currently running, keyed by media URL */
+    private Map<String, SegmentedDownloadTask> inAppDownloads = new HashMap<>();
+    /** The downloads queued, but not started yet (media URLs) */
+    private Set<String> queuedDownloads = new HashSet<>();
+    /** The downloads started and not finished yet (media URLs) */
+    private Set<String> activeDownloads = new HashSet<>();
+    /** The number of downloads allowed to run at the same time */
+    private int maxConcurrentDownloads = DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+
+    /** Flag to indicate whether the storage budget is being checked */
+    private boolean isStorageBudgetTaskRunning = false;
+    /** Flag to indicate that the budget needs another check afterwards */
+    private boolean storageBudgetCheckPending = false;
+    /**
+     * The executor for in-app downloads, these are busy for as long as the
+     * download takes and would starve the shared thread pool. The number of
+     * downloads running is limited by the queue.
+     */
+    private final Executor inAppDownloadExecutor = Executors.newCachedThreadPool();
+    /**
+     * The executor for background deletions, runs one batch at a time. Shared
+     * by user deletions and storage budget evictions, so these never work on
+     * the same files concurrently.
+     */
+    private final Executor deletionExecutor = Executors.newSingleThreadExecutor();
+
     /** The call-back set for the complete download listeners */
     private Set<OnDownloadEpisodeListener> downloadListeners = new HashSet<>();
+    /** The call-back set for the reclaim storage listeners */
+    private Set<OnReclaimStorageListener> reclaimListeners = new HashSet<>();
 
     /**
      * Init the download episode manager.
@@ -80,25 +168,112 @@ public abstract class EpisodeDownloadManager extends EpisodeBaseManager implemen
     protected EpisodeDownloadManager(Podcatcher app) {
         super(app);
 
+        this.downloadMonitor = new EpisodeDownloadMonitor(app, this);
+
         // Register as a receiver for downloads selections so we are alerted
         // when a download is clicked in the DownloadManager UI
         podcatcher.registerReceiver(onDownloadClicked,
                 new IntentFilter(DownloadManager.ACTION_NOTIFICATION_CLICKED));
+        // Downloads waiting for a fast network might be able to go now
+        podcatcher.registerReceiver(onConnectivityChanged,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    @Override
+    public void onEpisodeMetadataLoaded(Map<String, EpisodeMetadata> metadata, long generation) {
+        super.onEpisodeMetadataLoaded(metadata, generation);
+
+        // Do some house keeping since file availability might have changed
+        // while we were not running. This is not needed to get going, so we do
+        // it off the start-up path.
+        try {
+            new ReconcileDownloadsTask(podcatcher, this.metadata, this)
+                    .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
+        } catch (RejectedExecutionException ree) {
+            // Skip, we will catch up on the next start
+        }
+
+        // Downloads enqueued before the process died are still running in the
+        // system's download manager, make sure we pick them up again and
+        // restore the queue
+        reattachDownloads();
+        processDownloadQueue();
+        // The budget might have been exceeded while we were not running
+        enforceStorageBudget();
+    }
+
+    @Override
+    public void onDownloadsReconciled(Map<String, String> found, Map<String, String> missing) {
+        // The download finished while the application was not running, but
+        // only update the record if nobody changed it meanwhile
+        for (Entry<String, String> entry : found.entrySet()) {
+            final EpisodeMetadata meta = metadata.get(entry.getKey());
+
+            if (meta != null && meta.downloadId != null && meta.filePath == null) {
+                meta.filePath = entry.getValue();
+                markMetadataChanged(entry.getKey(), meta);
+            }
+        }
+
+        // The media file has been deleted from outside the app
+        for (Entry<String, String> entry : missing.entrySet()) {
+            final EpisodeMetadata meta = metadata.get(entry.getKey());
+
+            if (meta != null && entry.getValue().equals(meta.filePath)) {
+                meta.downloadId = null;
+                meta.filePath = null;
+                markMetadataChanged(entry.getKey(), meta);
+            }
+        }
+
+        // Make sure the counter is re-calculated
+        if (!found.isEmpty() || !missing.isEmpty())
+            downloadsSize = -1;
     }
 
     /**
      * Initiate a download for the given episode. Will do nothing if the episode
-     * is already downloaded or is currently downloading.
+     * is already downloaded or is currently downloading. The download is queued
+     * with {@link DownloadPriority#USER}.
      * 
      * @param episode Episode to get.
+     * @see #download(Episode, DownloadPriority)
      */
     public void download(Episode episode) {
-        if (episode != null && metadata != null && !isDownloadingOrDownloaded(episode)) {
+        download(episode, DownloadPriority.USER);
+    }
+
+    /**
+     * Queue a download for the given episode. The download starts as soon as
+     * there is a free download slot, no download with a higher priority is
+     * waiting and the network is suitable for the priority given. Will do
+     * nothing if the episode is already downloaded or is currently downloading.
+     * If the episode is already queued with a lower priority, it is moved up.
+     * 
+     * @param episode Episode to get.
+     * @param priority The priority to queue the download with.
+     */
+    public void download(Episode episode, DownloadPriority priority) {
+        if (episode == null || metadata == null)
+            return;
+
+        final String key = episode.getMediaUrl();
+        final EpisodeMetadata queued = metadata.get(key);
+        // Already queued, only move up
+        if (queued != null && queued.downloadPriority != null && queuedDownloads.contains(key)) {
+            if (priority.ordinal() < queued.downloadPriority) {
+                queued.downloadPriority = priority.ordinal();
+                markMetadataChanged(key, queued);
+
+                processDownloadQueue();
+            }
+        }
+        else if (!isDownloadingOrDownloaded(episode)) {
             // Find or create the metadata information holder
-            EpisodeMetadata meta = metadata.get(episode.getMediaUrl());
+            EpisodeMetadata meta = metadata.get(key);
             if (meta == null) {
                 meta = new EpisodeMetadata();
-                metadata.put(episode.getMediaUrl(), meta);
+                metadata.put(key, meta);
             }
 
             // We need to put a download id. If the episode is already
@@ -107,22 +282,199 @@ public abstract class EpisodeDownloadManager extends EpisodeBaseManager implemen
             meta.downloadId = 0l;
             // Prepare metadata record
             meta.downloadProgress = -1;
+            meta.downloadPriority = priority.ordinal();
+            meta.downloadQueuedAt = System.currentTimeMillis();
             putAdditionalEpisodeInformation(episode, meta);
 
             // Mark metadata record as dirty
-            metadataChanged = true;
+            markMetadataChanged(key, meta);
 
-            // Start the actual download
-            try {
-                new DownloadEpisodeTask(podcatcher, this)
-                        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, episode);
-            } catch (RejectedExecutionException ree) {
-                // Too many tasks running
-                onEpisodeDownloadFailed(episode, EpisodeDownloadError.UNKNOWN);
+            // Queue and start the actual download if possible
+            queuedDownloads.add(key);
+            processDownloadQueue();
+        }
+    }
+
+    /**
+     * Check whether the download for given episode is queued, but not started
+     * yet. Queued episodes are also reported as downloading.
+     * 
+     * @param episode Episode to check for.
+     * @return <code>true</code> iff the download is waiting in the queue.
+     * @see #isDownloading(Episode)
+     */
+    public boolean isDownloadQueued(Episode episode) {
+        return episode != null && queuedDownloads.contains(episode.getMediaUrl());
+    }
+
+    /**
+     * Set the number of downloads allowed to run at the same time. Downloads
+     * already running are not affected if the limit is lowered.
+     * 
+     * @param max The maximum number of concurrent downloads (at least one).
+     */
+    public void setMaxConcurrentDownloads(int max) {
+        this.maxConcurrentDownloads = Math.max(1, max);
+
+        processDownloadQueue();
+    }
+
+    /**
+     * Start as many queued downloads as there are free download slots. The
+     * queue is worked off by priority, then by playlist position and finally
+     * by the time the download was requested. Downloads that need a fast
+     * connection are skipped while we are not on one.
+     */
+    protected void processDownloadQueue() {
+        if (metadata == null || queuedDownloads.isEmpty()
+                || activeDownloads.size() >= maxConcurrentDownloads)
+            return;
+
+        // Sort the queue
+        final List<String> queue = new ArrayList<>();
+        for (String key : new ArrayList<>(queuedDownloads)) {
+            final EpisodeMetadata meta = metadata.get(key);
+
+            // Drop entries deleted or completed meanwhile
+            if (meta == null || meta.downloadPriority == null || meta.filePath != null)
+                queuedDownloads.remove(key);
+            else
+                queue.add(key);
+        }
+        Collections.sort(queue, downloadQueueComparator);
+
+        final boolean fastConnection = podcatcher.isOnFastConnection();
+        for (String key : queue) {
+            if (activeDownloads.size() >= maxConcurrentDownloads)
+                break;
+
+            final EpisodeMetadata meta = metadata.get(key);
+            final DownloadPriority priority = DownloadPriority.values()[Math.min(
+                    DownloadPriority.values().length - 1, Math.max(0, meta.downloadPriority))];
+            // Defer until we are on a better network
+            if (priority.needsFastConnection() && !fastConnection)
+                continue;
+
+            final Episode episode = meta.marshalEpisode(key);
+            if (episode == null)
+                continue;
+
+            // Move download from queue to active
+            queuedDownloads.remove(key);
+            activeDownloads.add(key);
+            meta.downloadPriority = null;
+            meta.downloadQueuedAt = null;
+            markMetadataChanged(key, meta);
+
+            startDownload(episode);
+        }
+    }
+
+    /** Orders the download queue, see {@link #processDownloadQueue()} */
+    private final Comparator<String> downloadQueueComparator = new Comparator<String>() {
+
+        @Override
+        public int compare(String lhs, String rhs) {
+            final EpisodeMetadata left = metadata.get(lhs);
+            final EpisodeMetadata right = metadata.get(rhs);
+
+            // 1. Priority
+            int result = compare(left.downloadPriority, right.downloadPriority);
+            // 2. Playlist entries first and in their order, skipped ones last
+            if (result == 0)
+                result = compare(isSkippedPlaylistEntry(lhs), isSkippedPlaylistEntry(rhs));
+            if (result == 0)
+                result = compare(left.playlistPosition, right.playlistPosition);
+            // 3. First come, first served
+            if (result == 0)
+                result = compare(left.downloadQueuedAt, right.downloadQueuedAt);
+
+            return result;
+        }
+
+        private <T extends Comparable<T>> int compare(T left, T right) {
+            if (left == null)
+                return right == null ? 0 : 1;
+            else
+                return right == null ? -1 : left.compareTo(right);
+        }
+    };
+
+    /**
+     * Find out whether the user skipped past a playlist entry. Queued downloads
+     * for skipped entries start after those for the entries coming up. The
+     * default implementation knows about no skipped entries.
+     * 
+     * @param key The media URL of the episode.
+     * @return Whether the entry was skipped.
+     */
+    protected boolean isSkippedPlaylistEntry(String key) {
+        return false;
+    }
+
+    /**
+     * @return The media URL of the episode playing (or last started), its
+     *         download is kept regardless of the storage budget. The default
+     *         implementation knows about no playback and gives
+     *         <code>null</code>.
+     */
+    protected String getPlayingEpisodeKey() {
+        return null;
+    }
+
+    private void startDownload(Episode episode) {
+        try {
+            // Use our own download engine if the user asked for it
+            if (isInAppDownloadEnabled()) {
+                final SegmentedDownloadTask task = new SegmentedDownloadTask(podcatcher, this);
+                task.setBandwidthLimit(
+                        getBandwidthLimit(SettingsActivity.KEY_DOWNLOAD_BANDWIDTH_LIMIT));
+                SegmentedDownloadTask.setGlobalBandwidthLimit(
+                        getBandwidthLimit(SettingsActivity.KEY_TOTAL_BANDWIDTH_LIMIT));
+                task.executeOnExecutor(inAppDownloadExecutor, episode);
+
+                inAppDownloads.put(episode.getMediaUrl(), task);
             }
+            else
+                new DownloadEpisodeTask(podcatcher, this, downloadMonitor)
+                        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, episode);
+        } catch (RejectedExecutionException ree) {
+            // Too many tasks running
+            onEpisodeDownloadFailed(episode, EpisodeDownloadError.UNKNOWN);
         }
     }
 
+    /**
+     * Apply the bandwidth limits set to the in-app downloads running. New
+     * downloads pick up the settings anyway, so there is only need to call
+     * this if the limit settings changed.
+     * 
+     * @see SettingsActivity#KEY_DOWNLOAD_BANDWIDTH_LIMIT
+     * @see SettingsActivity#KEY_TOTAL_BANDWIDTH_LIMIT
+     */
+    public void applyBandwidthLimits() {
+        final int limit = getBandwidthLimit(SettingsActivity.KEY_DOWNLOAD_BANDWIDTH_LIMIT);
+        for (SegmentedDownloadTask task : inAppDownloads.values())
+            task.setBandwidthLimit(limit);
+
+        SegmentedDownloadTask.setGlobalBandwidthLimit(
+                getBandwidthLimit(SettingsActivity.KEY_TOTAL_BANDWIDTH_LIMIT));
+    }
+
+    private int getBandwidthLimit(String key) {
+        try {
+            return Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(podcatcher)
+                    .getString(key, "0"));
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    private boolean isInAppDownloadEnabled() {
+        return PreferenceManager.getDefaultSharedPreferences(podcatcher)
+                .getBoolean(SettingsActivity.KEY_IN_APP_DOWNLOAD, false);
+    }
+
     @Override
     public void onEpisodeEnqueued(Episode episode, long id) {
         // Find the metadata record for the episode
@@ -131,7 +483,7 @@ public abstract class EpisodeDownloadManager extends EpisodeBaseManager implemen
             meta.downloadId = id;
 
             // Mark metadata record as dirty
-            metadataChanged = true;
+            markMetadataChanged(episode.getMediaUrl(), meta);
         }
     }
 
@@ -149,6 +501,11 @@ public abstract class EpisodeDownloadManager extends EpisodeBaseManager implemen
 
     @Override
     public void onEpisodeDownloaded(Episode episode, File episodeFile) {
+        inAppDownloads.remove(episode.getMediaUrl());
+        // Free the download slot
+        if (activeDownloads.remove(episode.getMediaUrl()))
+            processDownloadQueue();
+
         // Find the metadata record for the episode
         final EpisodeMetadata meta = metadata.get(episode.getMediaUrl());
         if (meta != null) {
@@ -162,15 +519,24 @@ public abstract class EpisodeDownloadManager extends EpisodeBaseManager implemen
                 downloadsSize++;
 
             // Mark metadata record as dirty
-            metadataChanged = true;
+            markMetadataChanged(episode.getMediaUrl(), meta);
+            // Make room if needed
+            enforceStorageBudget();
         }
     }
 
     @Override
     public void onEpisodeDownloadFailed(Episode episode, EpisodeDownloadError error) {
+        inAppDownloads.remove(episode.getMediaUrl());
+        // Free the download slot
+        if (activeDownloads.remove(episode.getMediaUrl()))
+            processDownloadQueue();
+
         // Find the metadata record for the episode
         final EpisodeMetadata meta = metadata.get(episode.getMediaUrl());
-        if (meta != null) {
+        // The download might have been reconciled with the file system
+        // meanwhile, in that case there is nothing to fail
+        if (meta != null && !isDownloaded(meta)) {
             meta.downloadId = null;
             meta.filePath = null;
 
@@ -178,7 +544,7 @@ public abstract class EpisodeDownloadManager extends EpisodeBaseManager implemen
                 listener.onDownloadFailed(episode, error);
 
             // Mark metadata record as dirty
-            metadataChanged = true;
+            markMetadataChanged(episode.getMediaUrl(), meta);
         }
     }
 
@@ -186,50 +552,169 @@ public abstract class EpisodeDownloadManager extends EpisodeBaseManager implemen
      * Cancel the download for given episode and delete all downloaded content.
      * 
      * @param episode Episode to delete download for.
+     * @see #deleteDownloads(Collection)
      */
     public void deleteDownload(Episode episode) {
-        if (episode != null && metadata != null && isDownloadingOrDownloaded(episode)) {
-            // Find the metadata information holder
-            final EpisodeMetadata meta = metadata.get(episode.getMediaUrl());
-            if (meta != null) {
-                // Keep info for the thread to run on
-                final long downloadId = meta.downloadId;
-                final String filePath = meta.filePath;
-                // Go async when accessing download manager
-                new Thread() {
-                    @Override
-                    public void run() {
-                        // This should delete the download and remove all
-                        // information from the download manager
-                        try {
-                            ((DownloadManager) podcatcher
-                                    .getSystemService(Context.DOWNLOAD_SERVICE))
-                                    .remove(downloadId);
-                        } catch (IllegalArgumentException e) {
-                            // There seem to be weird cases where this fails
-                        }
-
-                        // Make sure the file is deleted since this might not
-                        // have taken care of by DownloadManager.remove() above
-                        if (filePath != null)
-                            new File(filePath).delete();
-                    };
-                }.start();
+        if (episode != null)
+            deleteDownloads(Collections.singletonList(episode));
+    }
 
-                meta.downloadId = null;
-                meta.filePath = null;
+    /**
+     * Cancel the downloads for the given episodes and delete all downloaded
+     * content. The metadata is updated right away, the files are removed in
+     * one batch off the main thread. Listeners are alerted once for all
+     * episodes actually affected.
+     * 
+     * @param episodes Episodes to delete downloads for. Episodes neither
+     *            downloading nor downloaded are skipped.
+     */
+    public void deleteDownloads(Collection<Episode> episodes) {
+        if (episodes != null && metadata != null) {
+            final Map<String, Episode> deletions = new LinkedHashMap<>();
+
+            for (Episode episode : episodes)
+                if (episode != null && isDownloadingOrDownloaded(episode))
+                    deletions.put(episode.getMediaUrl(), episode);
+
+            deleteDownloads(deletions, null);
+        }
+    }
+
+    /**
+     * Clear the download information for the given records, delete the
+     * downloads in one background batch and alert the listeners. Call this on
+     * the main thread only.
+     * 
+     * @param deletions The episodes to delete, by metadata key.
+     * @param callback The call-back for when the files are gone, might be
+     *            <code>null</code>.
+     */
+    private void deleteDownloads(Map<String, Episode> deletions,
+            OnDeleteDownloadsListener callback) {
+        final List<Episode> deleted = new ArrayList<>();
+        final List<Long> downloadIds = new ArrayList<>();
+        final List<String> filePaths = new ArrayList<>();
+        int downloaded = 0;
+        boolean slotFreed = false;
+
+        for (Entry<String, Episode> entry : deletions.entrySet()) {
+            final String key = entry.getKey();
+            final EpisodeMetadata meta = metadata.get(key);
+            if (meta == null || meta.downloadId == null)
+                continue;
+
+            // Only completed downloads count
+            if (isDownloaded(meta))
+                downloaded++;
+            // No need to watch the download any longer
+            downloadMonitor.unwatch(meta.downloadId);
+            // Stop the in-app download (if any) and drop partial content
+            final SegmentedDownloadTask inAppTask = inAppDownloads.remove(key);
+            if (inAppTask != null)
+                inAppTask.discard();
+            // Drop from the queue or free the download slot
+            queuedDownloads.remove(key);
+            slotFreed |= activeDownloads.remove(key);
+
+            // Keep info for the background deletion
+            downloadIds.add(meta.downloadId);
+            if (meta.filePath != null)
+                filePaths.add(meta.filePath);
+
+            meta.downloadId = null;
+            meta.filePath = null;
+            meta.downloadPriority = null;
+            meta.downloadQueuedAt = null;
+
+            // Mark metadata record as dirty
+            markMetadataChanged(key, meta);
+            deleted.add(entry.getValue());
+        }
+
+        if (!deleted.isEmpty()) {
+            // Update counter once for the whole batch
+            if (downloadsSize != -1)
+                downloadsSize = Math.max(0, downloadsSize - downloaded);
+
+            // Go async when accessing download manager and file system, the
+            // executor works off one batch at a time
+            new DeleteDownloadsTask(podcatcher, downloadIds, filePaths, callback)
+                    .executeOnExecutor(deletionExecutor, (Void) null);
+
+            // Alert listeners
+            for (OnDownloadEpisodeListener listener : downloadListeners)
+                listener.onDownloadsDeleted(deleted);
+
+            // Start the next downloads if slots were freed
+            if (slotFreed)
+                processDownloadQueue();
+        }
+    }
 
-                // Alert listeners
-                for (OnDownloadEpisodeListener listener : downloadListeners)
-                    listener.onDownloadDeleted(episode);
+    /**
+     * Check the downloads against the storage budget set and delete downloads
+     * if they take more space than allowed. Played episodes are evicted first,
+     * unplayed playlist entries are never touched. Listeners registered via
+     * {@link #addReclaimStorageListener(OnReclaimStorageListener)} are alerted
+     * once the files are gone. This is called automatically whenever a
+     * download completes, so there is only need to call this explicitly if the
+     * budget setting changed.
+     * 
+     * @see SettingsActivity#KEY_STORAGE_BUDGET
+     */
+    public void enforceStorageBudget() {
+        if (metadata == null)
+            return;
+        // Only one check at a time, but make sure changes are not missed
+        else if (isStorageBudgetTaskRunning)
+            storageBudgetCheckPending = true;
+        else
+            try {
+                final EnforceStorageBudgetTask task =
+                        new EnforceStorageBudgetTask(podcatcher, metadata, this);
+                task.setPlayingEpisode(getPlayingEpisodeKey());
+                task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
 
-                // Mark metadata record as dirty
-                metadataChanged = true;
-                // Decrement counter
-                if (downloadsSize != -1)
-                    downloadsSize--;
+                isStorageBudgetTaskRunning = true;
+                storageBudgetCheckPending = false;
+            } catch (RejectedExecutionException ree) {
+                // Skip, we will check again on the next download completed
+            }
+    }
+
+    @Override
+    public void onStorageBudgetChecked(Map<String, String> evictions, final long used,
+            final long budget) {
+        isStorageBudgetTaskRunning = false;
+
+        final Map<String, Episode> deletions = new LinkedHashMap<>();
+        for (Entry<String, String> entry : evictions.entrySet()) {
+            final EpisodeMetadata meta = metadata.get(entry.getKey());
+
+            // Only evict if nobody changed the record meanwhile
+            if (meta != null && meta.downloadId != null
+                    && entry.getValue().equals(meta.filePath)) {
+                final Episode episode = meta.marshalEpisode(entry.getKey());
+
+                if (episode != null)
+                    deletions.put(entry.getKey(), episode);
             }
         }
+
+        // Delete in one batch and report back
+        deleteDownloads(deletions, new OnDeleteDownloadsListener() {
+
+            @Override
+            public void onDownloadsDeleted(int deleted, long reclaimed) {
+                final StorageReport report = new StorageReport(deleted, reclaimed, used, budget);
+
+                for (OnReclaimStorageListener listener : reclaimListeners)
+                    listener.onStorageReclaimed(report);
+            }
+        });
+
+        if (storageBudgetCheckPending)
+            enforceStorageBudget();
     }
 
     /**
@@ -417,6 +902,63 @@ public abstract class EpisodeDownloadManager extends EpisodeBaseManager implemen
         downloadListeners.remove(listener);
     }
 
+    /**
+     * Add a reclaim storage listener.
+     * 
+     * @param listener Listener to add.
+     * @see OnReclaimStorageListener
+     */
+    public void addReclaimStorageListener(OnReclaimStorageListener listener) {
+        reclaimListeners.add(listener);
+    }
+
+    /**
+     * Remove a reclaim storage listener.
+     * 
+     * @param listener Listener to remove.
+     * @see OnReclaimStorageListener
+     */
+    public void removeReclaimStorageListener(OnReclaimStorageListener listener) {
+        reclaimListeners.remove(listener);
+    }
+
+    private void reattachDownloads() {
+        // Find the podcast directory the downloads go to
+        final File podcastDir = new File(PreferenceManager.getDefaultSharedPreferences(podcatcher)
+                .getString(SettingsActivity.KEY_DOWNLOAD_FOLDER,
+                        DownloadFolderPreference.getDefaultDownloadFolder().getAbsolutePath()));
+
+        for (Entry<String, EpisodeMetadata> entry : metadata.entrySet()) {
+            final EpisodeMetadata meta = entry.getValue();
+
+            // Only downloads enqueued, but not finished yet
+            if (meta.downloadId != null && meta.filePath == null
+                    && meta.podcastName != null && meta.episodeName != null) {
+                // Handled by the system's download manager
+                if (meta.downloadId > 0) {
+                    final Episode episode = meta.marshalEpisode(entry.getKey());
+
+                    if (episode != null) {
+                        activeDownloads.add(entry.getKey());
+                        downloadMonitor.watch(episode, meta.downloadId, new File(podcastDir,
+                                sanitizeAsFilePath(meta.podcastName, meta.episodeName,
+                                        entry.getKey())));
+                    }
+                }
+                // Queued or started, but not handed to the download manager
+                // (in-app downloads resume from their partial file)
+                else {
+                    if (meta.downloadPriority == null) {
+                        meta.downloadPriority = DownloadPriority.USER.ordinal();
+                        meta.downloadQueuedAt = meta.lastTouched;
+                    }
+
+                    queuedDownloads.add(entry.getKey());
+                }
+            }
+        }
+    }
+
     private void initDownloadsCounter() {
         this.downloadsSize = 0;
 
@@ -432,6 +974,15 @@ public abstract class EpisodeDownloadManager extends EpisodeBaseManager implemen
                 && new File(meta.filePath).exists();
     }
 
+    /** The receiver we register for connectivity changes */
+    private BroadcastReceiver onConnectivityChanged = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            processDownloadQueue();
+        }
+    };
+
     /** The receiver we register for download selections */
     private BroadcastReceiver onDownloadClicked = new BroadcastReceiver() {
 
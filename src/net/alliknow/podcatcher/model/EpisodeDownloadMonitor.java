@@ -0,0 +1,430 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model;
+
+import static android.app.DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR;
+import static android.app.DownloadManager.COLUMN_ID;
+import static android.app.DownloadManager.COLUMN_LOCAL_FILENAME;
+import static android.app.DownloadManager.COLUMN_REASON;
+import static android.app.DownloadManager.COLUMN_STATUS;
+import static android.app.DownloadManager.COLUMN_TOTAL_SIZE_BYTES;
+import static android.app.DownloadManager.ERROR_FILE_ALREADY_EXISTS;
+import static android.app.DownloadManager.ERROR_INSUFFICIENT_SPACE;
+import static android.app.DownloadManager.STATUS_FAILED;
+import static android.app.DownloadManager.STATUS_SUCCESSFUL;
+
+import android.app.DownloadManager;
+import android.app.DownloadManager.Query;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask.DownloadTaskListener;
+import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask.EpisodeDownloadError;
+import net.alliknow.podcatcher.model.types.Episode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Watches all episode downloads currently running in the system's
+ * {@link DownloadManager}. There is only one monitor per episode manager and it
+ * uses a single background thread for all downloads: While there are downloads
+ * to watch, it asks the download manager for the status of all of them in one
+ * query per poll interval and reports progress, completion and failure to the
+ * {@link DownloadTaskListener} given. All call-backs are made on the main
+ * thread.
+ */
+public class EpisodeDownloadMonitor {
+
+    /**
+     * The amount of time we wait (in ms) before checking on the downloads'
+     * status again.
+     */
+    private static final long DOWNLOAD_STATUS_POLL_INTERVALL = 1000;
+    /** The amount of bytes transfered per step when copying a file */
+    private static final long RELOCATE_CHUNK_SIZE = 4 * 1024 * 1024;
+    /** Copies of files larger than this (in bytes) report their progress */
+    private static final long RELOCATE_PROGRESS_THRESHOLD = 16 * 1024 * 1024;
+
+    /** The system download manager */
+    private final DownloadManager downloadManager;
+    /** The call-back we report to */
+    private final DownloadTaskListener listener;
+
+    /** The downloads watched, keyed by their download manager id */
+    private final Map<Long, WatchedDownload> downloads = new ConcurrentHashMap<Long, WatchedDownload>();
+
+    /** The handler for the monitor thread all queries run on */
+    private final Handler monitorHandler;
+    /** The handler for the main thread all call-backs are made on */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /** The executor moving finished downloads, so polling does not block */
+    private final ExecutorService relocateExecutor = Executors.newSingleThreadExecutor();
+
+    /** The information we keep for each download */
+    private static class WatchedDownload {
+
+        /** The episode downloading */
+        private final Episode episode;
+        /** The file the episode should end up in */
+        private final File destination;
+        /** The last percentage reported */
+        private int percentProgress = -1;
+        /** Flag to indicate that the file is being moved to its destination */
+        private boolean relocating = false;
+
+        private WatchedDownload(Episode episode, File destination) {
+            this.episode = episode;
+            this.destination = destination;
+        }
+    }
+
+    /** The poll run on the monitor thread */
+    private final Runnable pollRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            poll();
+
+            if (!downloads.isEmpty())
+                monitorHandler.postDelayed(this, DOWNLOAD_STATUS_POLL_INTERVALL);
+        }
+    };
+
+    /**
+     * Create a new monitor.
+     * 
+     * @param context Context to get the download manager from.
+     * @param listener The call-back to alert on download progress, success
+     *            and failure.
+     */
+    public EpisodeDownloadMonitor(Context context, DownloadTaskListener listener) {
+        this.listener = listener;
+        this.downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+
+        final HandlerThread thread = new HandlerThread(getClass().getSimpleName());
+        thread.start();
+        this.monitorHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Start watching the given download. Does nothing if the download is
+     * already watched.
+     * 
+     * @param episode The episode downloading.
+     * @param downloadId The download manager id for the download.
+     * @param destination The file the episode should end up in. If the
+     *            download manager puts the download somewhere else (e.g. the
+     *            cache directory), the file is moved here on completion.
+     */
+    public void watch(final Episode episode, final long downloadId, final File destination) {
+        if (downloadId > 0)
+            // The poll decides whether to go on based on the downloads left,
+            // so we need to add the download on the monitor thread as well
+            monitorHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!downloads.containsKey(downloadId)) {
+                        final boolean wasIdle = downloads.isEmpty();
+                        downloads.put(downloadId, new WatchedDownload(episode, destination));
+
+                        // Start polling if we were not already
+                        if (wasIdle) {
+                            monitorHandler.removeCallbacks(pollRunnable);
+                            monitorHandler.post(pollRunnable);
+                        }
+                    }
+                }
+            });
+    }
+
+    /**
+     * Stop watching the given download, e.g. because it was cancelled. No more
+     * call-backs will be made for it.
+     * 
+     * @param downloadId The download manager id for the download.
+     */
+    public void unwatch(final long downloadId) {
+        downloads.remove(downloadId);
+
+        // Also catch the download if it is still on its way in
+        monitorHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                downloads.remove(downloadId);
+            }
+        });
+    }
+
+    /**
+     * @return The number of downloads currently watched.
+     */
+    public int getWatchCount() {
+        return downloads.size();
+    }
+
+    private void poll() {
+        final Set<Long> ids = new HashSet<Long>(downloads.keySet());
+        if (ids.isEmpty())
+            return;
+
+        final long[] idArray = new long[ids.size()];
+        int index = 0;
+        for (Long id : ids)
+            idArray[index++] = id;
+
+        // Find download information for all downloads in one query
+        Cursor info = null;
+        try {
+            info = downloadManager.query(new Query().setFilterById(idArray));
+
+            if (info != null)
+                while (info.moveToNext()) {
+                    final long id = info.getLong(info.getColumnIndex(COLUMN_ID));
+                    ids.remove(id);
+
+                    process(id, info);
+                }
+        } catch (RuntimeException re) {
+            // The download manager might be unavailable, try again next time
+            Log.w(getClass().getSimpleName(), "Cannot query download status", re);
+            return;
+        } finally {
+            if (info != null)
+                info.close();
+        }
+
+        // Downloads the download manager does not know about (any more) are
+        // gone, e.g. because the user cancelled them in the system UI
+        for (Long id : ids)
+            fail(id, EpisodeDownloadError.UNKNOWN);
+    }
+
+    private void process(final long id, Cursor info) {
+        final WatchedDownload download = downloads.get(id);
+        // Downloads being moved are done as far as polling is concerned
+        if (download == null || download.relocating)
+            return;
+
+        final int state = info.getInt(info.getColumnIndex(COLUMN_STATUS));
+        switch (state) {
+            case STATUS_SUCCESSFUL:
+                // This is the file the download manager got for us
+                final String localFilename = info.getString(info
+                        .getColumnIndex(COLUMN_LOCAL_FILENAME));
+                final File downloadedFile = localFilename == null ?
+                        download.destination : new File(localFilename);
+
+                // It might need to be moved to its final position, this
+                // might take a while for large files on another volume
+                if (download.destination != null
+                        && !isSameFile(download.destination, downloadedFile)) {
+                    download.relocating = true;
+
+                    relocateExecutor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            if (relocateFile(downloadedFile, download.destination, id, download)) {
+                                // We remove the download from the system's
+                                // download manager here, since we moved the
+                                // downloaded file
+                                downloadManager.remove(id);
+                                succeed(id, download.destination);
+                            }
+                            // Move operation failed -> download failed, the
+                            // download manager keeps its copy
+                            else
+                                fail(id, EpisodeDownloadError.DESTINATION_NOT_WRITEABLE);
+                        }
+                    });
+                }
+                else
+                    succeed(id, downloadedFile);
+
+                break;
+            case STATUS_FAILED:
+                final int reason = info.getInt(info.getColumnIndex(COLUMN_REASON));
+                switch (reason) {
+                    case ERROR_FILE_ALREADY_EXISTS:
+                        // This case is actually fine
+                        succeed(id, download.destination);
+                        break;
+                    case ERROR_INSUFFICIENT_SPACE:
+                        downloadManager.remove(id);
+                        fail(id, EpisodeDownloadError.NO_SPACE);
+                        break;
+                    default:
+                        downloadManager.remove(id);
+                        fail(id, EpisodeDownloadError.UNKNOWN);
+                        break;
+                }
+
+                break;
+            default:
+                // Update progress
+                final long total = info.getLong(info.getColumnIndex(COLUMN_TOTAL_SIZE_BYTES));
+                final long progress = info.getLong(info
+                        .getColumnIndex(COLUMN_BYTES_DOWNLOADED_SO_FAR));
+
+                if (total > 0 && progress > 0 && total >= progress) {
+                    final int percent = (int) (((float) progress / (float) total) * 100);
+
+                    if (percent != download.percentProgress) {
+                        download.percentProgress = percent;
+
+                        mainHandler.post(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                // Only report if not cancelled meanwhile
+                                if (downloads.get(id) == download)
+                                    listener.onEpisodeDownloadProgressed(download.episode, percent);
+                            }
+                        });
+                    }
+                }
+        }
+    }
+
+    private void succeed(long id, final File episodeFile) {
+        final WatchedDownload download = downloads.remove(id);
+
+        if (download != null)
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    listener.onEpisodeDownloaded(download.episode, episodeFile);
+                }
+            });
+    }
+
+    private void fail(long id, final EpisodeDownloadError error) {
+        final WatchedDownload download = downloads.remove(id);
+
+        if (download != null)
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    listener.onEpisodeDownloadFailed(download.episode, error);
+                }
+            });
+    }
+
+    private boolean isSameFile(File one, File other) {
+        try {
+            return one.getCanonicalPath().equals(other.getCanonicalPath());
+        } catch (IOException ioe) {
+            return one.getAbsolutePath().equals(other.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Move the file to its new location. This tries to rename the file first,
+     * which is instant if both locations are on the same volume. Otherwise the
+     * file is copied over using {@link FileChannel} transfers, reporting the
+     * copy progress as download progress for large files. The source file is
+     * only removed if the file made it over completely.
+     */
+    private boolean relocateFile(File from, File to, final long id,
+            final WatchedDownload download) {
+        // Fast path, same volume
+        if (from.renameTo(to))
+            return true;
+
+        final long length = from.length();
+        boolean success = false;
+
+        FileInputStream reader = null;
+        FileOutputStream writer = null;
+        try {
+            reader = new FileInputStream(from);
+            writer = new FileOutputStream(to);
+            final FileChannel source = reader.getChannel();
+            final FileChannel target = writer.getChannel();
+
+            long position = 0;
+            while (position < length) {
+                final long transferred = source.transferTo(position,
+                        Math.min(RELOCATE_CHUNK_SIZE, length - position), target);
+                // No progress, bail out instead of spinning
+                if (transferred <= 0)
+                    break;
+
+                position += transferred;
+
+                if (length > RELOCATE_PROGRESS_THRESHOLD) {
+                    final int percent = (int) (((float) position / (float) length) * 100);
+
+                    mainHandler.post(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            // Only report if not cancelled meanwhile
+                            if (downloads.get(id) == download)
+                                listener.onEpisodeDownloadProgressed(download.episode, percent);
+                        }
+                    });
+                }
+            }
+
+            // Make sure all the bytes made it over
+            success = position == length && target.size() == length;
+        } catch (IOException ioe) {
+            Log.w(getClass().getSimpleName(), "Cannot move " + from + " to " + to, ioe);
+        } finally {
+            if (reader != null)
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // pass
+                }
+            if (writer != null)
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // pass
+                }
+
+            // Do not leave a truncated copy behind, keep the source then
+            if (success)
+                from.delete();
+            else
+                to.delete();
+        }
+
+        return success;
+    }
+}
@@ -31,6 +31,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedMap;
@@ -50,6 +51,11 @@ public abstract class EpisodePlaylistManager extends EpisodeDownloadManager {
     /** The call-back set for the playlist listeners */
     private Set<OnChangePlaylistListener> playlistListeners = new HashSet<>();
 
+    /** The prefetcher making upcoming playlist entries available locally */
+    protected final PlaylistPrefetcher playlistPrefetcher;
+    /** The media URL of the episode playing (or last started) */
+    private String playingEpisodeKey;
+
     /**
      * Init the episode playlist manager.
      * 
@@ -57,6 +63,42 @@ public abstract class EpisodePlaylistManager extends EpisodeDownloadManager {
      */
     protected EpisodePlaylistManager(Podcatcher app) {
         super(app);
+
+        this.playlistPrefetcher = new PlaylistPrefetcher(app, this);
+        addPlaylistListener(playlistPrefetcher);
+    }
+
+    @Override
+    public void onEpisodeMetadataLoaded(Map<String, EpisodeMetadata> metadata, long generation) {
+        super.onEpisodeMetadataLoaded(metadata, generation);
+
+        // Get the upcoming entries ready
+        playlistPrefetcher.schedule();
+    }
+
+    /**
+     * Tell the manager that playback started for the given episode. This is
+     * used to find playlist entries the user skipped past, so they are not
+     * prefetched before those likely to be played next.
+     * 
+     * @param episode The episode now playing.
+     */
+    public void onPlaybackStarted(Episode episode) {
+        if (episode != null)
+            this.playingEpisodeKey = episode.getMediaUrl();
+
+        if (episode != null && metadata != null)
+            playlistPrefetcher.onPlaybackStarted(episode);
+    }
+
+    @Override
+    protected String getPlayingEpisodeKey() {
+        return playingEpisodeKey;
+    }
+
+    @Override
+    protected boolean isSkippedPlaylistEntry(String key) {
+        return playlistPrefetcher.isSkipped(key);
     }
 
     /**
@@ -232,10 +274,15 @@ public abstract class EpisodePlaylistManager extends EpisodeDownloadManager {
 
                 // Increment all other positions if needed
                 if (position < getPlaylistSize())
-                    for (EpisodeMetadata otherMeta : metadata.values())
+                    for (Entry<String, EpisodeMetadata> other : metadata.entrySet()) {
+                        final EpisodeMetadata otherMeta = other.getValue();
+
                         if (otherMeta.playlistPosition != null
-                                && otherMeta.playlistPosition >= position)
+                                && otherMeta.playlistPosition >= position) {
                             otherMeta.playlistPosition++;
+                            markMetadataChanged(other.getKey(), otherMeta);
+                        }
+                    }
 
                 // Put metadata information
                 meta.playlistPosition = position < getPlaylistSize() ? position : getPlaylistSize();
@@ -250,7 +297,7 @@ public abstract class EpisodePlaylistManager extends EpisodeDownloadManager {
                     listener.onPlaylistChanged();
 
                 // Mark metadata record as dirty
-                metadataChanged = true;
+                markMetadataChanged(episode.getMediaUrl(), meta);
             }
         }
     }
@@ -269,12 +316,15 @@ public abstract class EpisodePlaylistManager extends EpisodeDownloadManager {
                 // we are removing
                 Iterator<Entry<String, EpisodeMetadata>> iterator = metadata.entrySet().iterator();
                 while (iterator.hasNext()) {
-                    EpisodeMetadata other = iterator.next().getValue();
+                    Entry<String, EpisodeMetadata> entry = iterator.next();
+                    EpisodeMetadata other = entry.getValue();
 
                     // Find records for playlist entries
                     if (other.playlistPosition != null
-                            && other.playlistPosition > meta.playlistPosition)
+                            && other.playlistPosition > meta.playlistPosition) {
                         other.playlistPosition--;
+                        markMetadataChanged(entry.getKey(), other);
+                    }
                 }
 
                 // Reset the playlist position for given episode
@@ -289,7 +339,7 @@ public abstract class EpisodePlaylistManager extends EpisodeDownloadManager {
                     listener.onPlaylistChanged();
 
                 // Mark metadata record as dirty
-                metadataChanged = true;
+                markMetadataChanged(episode.getMediaUrl(), meta);
             }
         }
     }
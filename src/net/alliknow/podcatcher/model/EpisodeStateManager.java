@@ -17,25 +17,27 @@
 
 package net.alliknow.podcatcher.model;
 
-import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
-
-import android.os.Process;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.util.Log;
 
 import net.alliknow.podcatcher.Podcatcher;
 import net.alliknow.podcatcher.listeners.OnChangeEpisodeStateListener;
 import net.alliknow.podcatcher.listeners.OnChangePodcastListListener;
 import net.alliknow.podcatcher.listeners.OnLoadPodcastListener;
+import net.alliknow.podcatcher.listeners.OnReconcileEpisodeMetadataListener;
+import net.alliknow.podcatcher.model.tasks.ReconcileEpisodeMetadataTask;
 import net.alliknow.podcatcher.model.tasks.remote.LoadPodcastTask.PodcastLoadError;
 import net.alliknow.podcatcher.model.types.Episode;
 import net.alliknow.podcatcher.model.types.EpisodeMetadata;
 import net.alliknow.podcatcher.model.types.Podcast;
 import net.alliknow.podcatcher.model.types.Progress;
 
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * This part of the episode manager stack handles the actual episode state,
@@ -44,16 +46,39 @@ import java.util.Set;
  * @see EpisodeManager
  */
 public abstract class EpisodeStateManager extends EpisodePlaylistManager implements
-        OnLoadPodcastListener, OnChangePodcastListListener {
+        OnLoadPodcastListener, OnChangePodcastListListener, OnReconcileEpisodeMetadataListener {
+
+    /** Our log tag */
+    private static final String TAG = "EpisodeStateManager";
 
     /** The call-back set for the episode state changed listeners */
     private Set<OnChangeEpisodeStateListener> stateListeners = new HashSet<>();
 
-    /** Helper to prevent clean-up from running too often */
-    private int podcastLoadCounter = 0;
     /** Helper to prevent clean-up to run twice for the same podcast */
     private Set<String> podcastsCleanUpRanFor = new HashSet<>();
 
+    /**
+     * Amount of milliseconds we wait for more podcast loads/removals to come in
+     * before the reconciliation task is started
+     */
+    private static final long RECONCILE_METADATA_DELAY = 5 * 1000;
+    /** Podcasts loaded since the last reconciliation, with live media URLs */
+    private Map<String, Set<String>> pendingLoadedPodcasts = new HashMap<>();
+    /** Podcasts removed since the last reconciliation */
+    private Set<String> pendingRemovedPodcasts = new HashSet<>();
+    /** Flag to indicate whether the reconcile task is active */
+    private boolean isReconcileTaskRunning = false;
+    /** Handler used to coalesce reconciliation requests */
+    private Handler reconcileMetadataHandler = new Handler();
+    /** The runnable that calls {@link #reconcileMetadata()} */
+    private Runnable reconcileMetadataRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            reconcileMetadata();
+        }
+    };
+
     /**
      * Init the episode state manager.
      * 
@@ -64,8 +89,8 @@ public abstract class EpisodeStateManager extends EpisodePlaylistManager impleme
     }
 
     @Override
-    public void onEpisodeMetadataLoaded(Map<String, EpisodeMetadata> metadata) {
-        super.onEpisodeMetadataLoaded(metadata);
+    public void onEpisodeMetadataLoaded(Map<String, EpisodeMetadata> metadata, long generation) {
+        super.onEpisodeMetadataLoaded(metadata, generation);
 
         // We register to be alerted on podcast loads and podcast list changes
         // so we can perform some clean-ups
@@ -104,7 +129,7 @@ public abstract class EpisodeStateManager extends EpisodePlaylistManager impleme
                 meta.podcastUrl = episode.getPodcast().getUrl();
 
             // Mark metadata record as dirty
-            metadataChanged = true;
+            markMetadataChanged(episode.getMediaUrl(), meta);
 
             // Alert listeners
             for (OnChangeEpisodeStateListener listener : stateListeners)
@@ -196,7 +221,7 @@ public abstract class EpisodeStateManager extends EpisodePlaylistManager impleme
                 meta.podcastUrl = episode.getPodcast().getUrl();
 
             // Mark metadata record as dirty
-            metadataChanged = true;
+            markMetadataChanged(episode.getMediaUrl(), meta);
 
             // Alert listeners
             for (OnChangeEpisodeStateListener listener : stateListeners)
@@ -226,92 +251,74 @@ public abstract class EpisodeStateManager extends EpisodePlaylistManager impleme
     }
 
     @Override
-    public void onPodcastRemoved(final Podcast podcast) {
+    public void onPodcastRemoved(Podcast podcast) {
         if (podcast != null) {
-            // Go off the main thread, we rely on getting an iterator from the
-            // metadata being thread safe here!
-            new Thread() {
-
-                @Override
-                public void run() {
-                    Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
-
-                    // Clean all state meta data information for episodes of the
-                    // deleted feed
-                    Iterator<Entry<String, EpisodeMetadata>> iterator = metadata.entrySet()
-                            .iterator();
-                    while (iterator.hasNext()) {
-                        final Entry<String, EpisodeMetadata> entry = iterator.next();
-
-                        // Find metadata records with matching podcast
-                        if (podcast.getUrl().equals(entry.getValue().podcastUrl)
-                                && entry.getValue().hasOnlyStateData()) {
-                            // This is actually enough since the task storing
-                            // the metadata will clean empty records
-                            entry.getValue().isOld = null;
-                            entry.getValue().resumeAt = null;
-                        }
-                    }
+            // Clean all state meta data information for episodes of the
+            // deleted feed on the next reconciliation run
+            pendingLoadedPodcasts.remove(podcast.getUrl());
+            pendingRemovedPodcasts.add(podcast.getUrl());
+
+            scheduleMetadataReconciliation();
+        }
+    }
+
+    @Override
+    public void onPodcastMoved(Podcast podcast, String oldUrl) {
+        if (podcast != null && oldUrl != null && metadata != null) {
+            final String newUrl = podcast.getUrl();
+
+            // Point the state meta data for the episodes at the new location,
+            // the records are keyed by media URL and thus stay where they are
+            for (Map.Entry<String, EpisodeMetadata> entry : metadata.entrySet())
+                if (oldUrl.equals(entry.getValue().podcastUrl)) {
+                    entry.getValue().podcastUrl = newUrl;
+
+                    markMetadataChanged(entry.getKey(), entry.getValue());
                 }
-            }.start();
+
+            // Move any pending clean-up work along
+            if (podcastsCleanUpRanFor.remove(oldUrl))
+                podcastsCleanUpRanFor.add(newUrl);
+            if (pendingLoadedPodcasts.containsKey(oldUrl))
+                pendingLoadedPodcasts.put(newUrl, pendingLoadedPodcasts.remove(oldUrl));
         }
     }
 
     @Override
-    public void onPodcastLoaded(final Podcast podcast) {
-        // We do not want to run this too frequently and for all podcasts at
-        // once. In addition it should run only once per podcast during the
-        // lifetime of this EpisodeManager
+    public void onPodcastLoaded(Podcast podcast) {
+        // This should run only once per podcast during the lifetime of this
+        // EpisodeManager, loads coming in close to each other are handled in
+        // one go by the reconciliation task
         if (podcast != null && podcast.getEpisodeCount() > 0
-                && !podcastsCleanUpRanFor.contains(podcast.getUrl())
-                && podcastLoadCounter % 10 == 0) {
-            // Update helpers
-            podcastLoadCounter++;
-            podcastsCleanUpRanFor.add(podcast.getUrl());
-
-            // Go off the main thread, we rely on getting an iterator from the
-            // metadata being thread safe here!
-            new Thread() {
-
-                @Override
-                public void run() {
-                    Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
-
-                    // Clean all state meta data information for episodes no
-                    // longer present in the podcast feed
-                    Iterator<Entry<String, EpisodeMetadata>> iterator = metadata.entrySet()
-                            .iterator();
-                    while (iterator.hasNext()) {
-                        final Entry<String, EpisodeMetadata> entry = iterator.next();
-
-                        // Podcast matches
-                        if (podcast.getUrl().equals(entry.getValue().podcastUrl)) {
-                            boolean stillInPodcast = false;
-
-                            // Check whether the episode is still there
-                            for (Episode episode : podcast.getEpisodes())
-                                if (episode.getMediaUrl().equals(entry.getKey()))
-                                    stillInPodcast = true;
-
-                            // If it is not there and the episode metadata does
-                            // not have any other information, delete the
-                            // metadata
-                            if (!stillInPodcast && entry.getValue().hasOnlyStateData()) {
-                                // This is actually enough since the task
-                                // storing the metadata will clean empty records
-                                entry.getValue().isOld = null;
-                                entry.getValue().resumeAt = null;
-                            }
-                        }
-                    }
-                }
-            }.start();
+                && podcastsCleanUpRanFor.add(podcast.getUrl())) {
+            // Build the set of media URLs still present in the podcast feed
+            // once, so the task can look episodes up in constant time
+            final Set<String> liveEpisodes = new HashSet<>();
+            for (Episode episode : podcast.getEpisodes())
+                liveEpisodes.add(episode.getMediaUrl());
+
+            pendingRemovedPodcasts.remove(podcast.getUrl());
+            pendingLoadedPodcasts.put(podcast.getUrl(), liveEpisodes);
+
+            scheduleMetadataReconciliation();
         }
-        // The other interesting case is when the load counter allowed the
-        // clean-up to run but the podcast is already clean: Do nothing.
-        // In all other cases: increment counter.
-        else if (podcast != null && podcastLoadCounter % 10 != 0)
-            podcastLoadCounter++;
+    }
+
+    @Override
+    public void onEpisodeMetadataReconciled(Set<String> prunedKeys) {
+        isReconcileTaskRunning = false;
+
+        if (!prunedKeys.isEmpty()) {
+            Log.d(TAG, "Reconciliation pruned " + prunedKeys.size() + " episode metadata records");
+
+            // Mark records as dirty, the store task will drop empty records
+            for (String key : prunedKeys)
+                markMetadataChanged(key, null);
+        }
+
+        // More work might have come in while the task was running
+        if (!pendingLoadedPodcasts.isEmpty() || !pendingRemovedPodcasts.isEmpty())
+            scheduleMetadataReconciliation();
     }
 
     @Override
@@ -323,4 +330,32 @@ public abstract class EpisodeStateManager extends EpisodePlaylistManager impleme
     public void onPodcastLoadFailed(Podcast podcast, PodcastLoadError code) {
         // pass
     }
+
+    private void scheduleMetadataReconciliation() {
+        // Restart the delay, so a burst of podcast loads ends up in one run
+        reconcileMetadataHandler.removeCallbacks(reconcileMetadataRunnable);
+        reconcileMetadataHandler.postDelayed(reconcileMetadataRunnable, RECONCILE_METADATA_DELAY);
+    }
+
+    private void reconcileMetadata() {
+        // Only one task at a time, pending work is picked up once it finishes
+        if (!isReconcileTaskRunning && metadata != null
+                && (!pendingLoadedPodcasts.isEmpty() || !pendingRemovedPodcasts.isEmpty())) {
+            try {
+                // Go off the main thread, we rely on getting an iterator from
+                // the metadata being thread safe here!
+                new ReconcileEpisodeMetadataTask(metadata, pendingLoadedPodcasts,
+                        pendingRemovedPodcasts, this)
+                        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void) null);
+
+                // The task owns the pending work now, start collecting anew
+                isReconcileTaskRunning = true;
+                pendingLoadedPodcasts = new HashMap<>();
+                pendingRemovedPodcasts = new HashSet<>();
+            } catch (RejectedExecutionException ree) {
+                // Too many tasks running, try again later
+                scheduleMetadataReconciliation();
+            }
+        }
+    }
 }
@@ -0,0 +1,137 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import net.alliknow.podcatcher.model.types.LogoVariant;
+
+/**
+ * The central in-memory cache for podcast logos. Logos are keyed by the
+ * podcast's URL and the {@link LogoVariant} and kept in a {@link LruCache}
+ * sized as a fraction of the application's memory class, so the memory taken
+ * by logos stays bounded no matter how many podcasts there are. Logos least
+ * recently used are dropped first and will simply be loaded again when needed.
+ * The bitmaps returned are shared and immutable, do not recycle or alter them.
+ */
+public class LogoCache {
+
+    /** The part of the memory class (1/n) to use for logos */
+    private static final int MEMORY_CLASS_FRACTION = 8;
+
+    /** The single instance */
+    private static LogoCache cache;
+
+    /** The actual cache */
+    private final LruCache<String, Bitmap> logos;
+
+    private LogoCache(int maxSize) {
+        this.logos = new LruCache<String, Bitmap>(maxSize) {
+
+            @Override
+            protected int sizeOf(String key, Bitmap logo) {
+                return logo.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Get the singleton instance of the logo cache. The cache size is derived
+     * from the memory class of the device on the first call.
+     * 
+     * @param context Context to find the memory class with.
+     * @return The single instance of the logo cache.
+     */
+    public static synchronized LogoCache getInstance(Context context) {
+        if (cache == null) {
+            final int memoryClass = ((ActivityManager) context
+                    .getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+
+            cache = new LogoCache(memoryClass * 1024 * 1024 / MEMORY_CLASS_FRACTION);
+        }
+
+        return cache;
+    }
+
+    /**
+     * Get the singleton instance of the logo cache. If the cache has not been
+     * created with {@link #getInstance(Context)} before, its size is derived
+     * from the maximum heap size available to the VM.
+     * 
+     * @return The single instance of the logo cache.
+     */
+    public static synchronized LogoCache getInstance() {
+        if (cache == null)
+            cache = new LogoCache((int) Math.min(Integer.MAX_VALUE,
+                    Runtime.getRuntime().maxMemory() / MEMORY_CLASS_FRACTION));
+
+        return cache;
+    }
+
+    /**
+     * Get the logo for a podcast.
+     * 
+     * @param key The podcast URL.
+     * @param variant The logo variant to get.
+     * @return The shared logo bitmap or <code>null</code> if not cached.
+     */
+    public Bitmap get(String key, LogoVariant variant) {
+        return key == null ? null : logos.get(toCacheKey(key, variant));
+    }
+
+    /**
+     * Check whether the logo for a podcast is in the cache.
+     * 
+     * @param key The podcast URL.
+     * @param variant The logo variant to check for.
+     * @return <code>true</code> iff the logo is available from memory.
+     */
+    public boolean contains(String key, LogoVariant variant) {
+        return get(key, variant) != null;
+    }
+
+    /**
+     * Put a logo into the cache, this might evict other logos.
+     * 
+     * @param key The podcast URL.
+     * @param variant The logo variant given.
+     * @param logo The logo to cache, <code>null</code> removes the entry.
+     */
+    public void put(String key, LogoVariant variant, Bitmap logo) {
+        if (key != null) {
+            if (logo == null)
+                logos.remove(toCacheKey(key, variant));
+            else
+                logos.put(toCacheKey(key, variant), logo);
+        }
+    }
+
+    /**
+     * Drop all logos, e.g. when the system runs low on memory.
+     */
+    public void clear() {
+        logos.evictAll();
+    }
+
+    private static String toCacheKey(String key, LogoVariant variant) {
+        return variant.ordinal() + key;
+    }
+}
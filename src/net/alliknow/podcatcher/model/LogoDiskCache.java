@@ -0,0 +1,444 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The disk cache for original podcast logo files. Logo files are stored
+ * content-addressed, i.e. named by the SHA-1 hash of their bytes, so
+ * podcasts never collide on a file and podcasts sharing the same logo share
+ * the file. An index file maps each key (the podcast URL) to its logo file
+ * along with the logo's size, its remote location, the HTTP validators (ETag
+ * and Last-Modified) and the time the copy was last known to be fresh. The
+ * index is read once and kept in memory, so all lookups are answered without
+ * touching the file system. The total size of all logo files is capped, the
+ * least recently used logos are evicted first.
+ * <p>
+ * All methods might block on disk I/O, do not call them from the main thread.
+ * </p>
+ */
+public class LogoDiskCache {
+
+    /** The name of the podcast logo cache directory */
+    private static final String CACHE_DIR = "logoCache";
+    /** The name of the index file */
+    private static final String INDEX_FILE = "index";
+    /** The version of the index file format */
+    private static final String INDEX_VERSION = "1";
+    /** The file name ending for cached logos */
+    private static final String CACHED_LOGO_ENDING = ".logo";
+    /** The file name ending for logos currently downloading */
+    private static final String PARTIAL_LOGO_ENDING = ".part";
+    /** The separator for the fields of an index line */
+    private static final String SEPARATOR = "\t";
+    /** The maximum total size of all logo files in bytes */
+    private static final long MAX_SIZE = 10 * 1024 * 1024;
+    /** Our log tag */
+    private static final String TAG = "LogoDiskCache";
+
+    /** The single instance */
+    private static LogoDiskCache cache;
+
+    /** The charset for the index file */
+    private final Charset utf8 = Charset.forName("UTF-8");
+    /** The cache directory */
+    private final File dir;
+    /** The index, in access order (least recently used first) */
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(32, 0.75f, true);
+
+    /**
+     * An entry in the logo disk cache index. Entries are immutable, changes
+     * to the cache replace them.
+     */
+    public static class Entry {
+
+        /** The key, i.e. the podcast URL */
+        private final String key;
+        /** The remote logo location the file was loaded from */
+        private final String logoUrl;
+        /** The content hash the file is named by */
+        private final String hash;
+        /** The file size in bytes */
+        private final long size;
+        /** The entity tag given by the server */
+        private final String eTag;
+        /** The modification date given by the server */
+        private final String lastModified;
+        /** The time the file was last known to be fresh */
+        private final long lastValidated;
+
+        private Entry(String key, String logoUrl, String hash, long size, String eTag,
+                String lastModified, long lastValidated) {
+            this.key = key;
+            this.logoUrl = logoUrl;
+            this.hash = hash;
+            this.size = size;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.lastValidated = lastValidated;
+        }
+
+        /**
+         * @return The key, i.e. the podcast URL.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return The remote location the logo was loaded from.
+         */
+        public String getLogoUrl() {
+            return logoUrl;
+        }
+
+        /**
+         * @return The logo file size in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The entity tag given by the server, might be
+         *         <code>null</code>.
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return The last modification date given by the server, might be
+         *         <code>null</code>.
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return The age of the logo copy in minutes, i.e. the time since it
+         *         was last loaded or validated.
+         */
+        public int getAge() {
+            return (int) ((new Date().getTime() - lastValidated) / (60 * 1000));
+        }
+    }
+
+    private LogoDiskCache(File dir) {
+        this.dir = dir;
+
+        dir.mkdirs();
+        readIndex();
+        removeUnreferencedFiles();
+    }
+
+    /**
+     * Get the singleton instance of the logo disk cache. The index is read on
+     * the first call.
+     * 
+     * @param context Context to find the cache directory with.
+     * @return The single instance of the logo disk cache.
+     */
+    public static synchronized LogoDiskCache getInstance(Context context) {
+        if (cache == null)
+            cache = new LogoDiskCache(new File(context.getCacheDir(), CACHE_DIR));
+
+        return cache;
+    }
+
+    /**
+     * Get the index entry for a key. This counts as a use of the logo.
+     * 
+     * @param key The podcast URL.
+     * @return The entry or <code>null</code> if there is no cached logo.
+     */
+    public synchronized Entry get(String key) {
+        return key == null ? null : index.get(key);
+    }
+
+    /**
+     * Get the logo file for an entry.
+     * 
+     * @param entry The index entry as returned by {@link #get(String)}.
+     * @return The file holding the original logo.
+     */
+    public File getFile(Entry entry) {
+        return new File(dir, entry.hash + CACHED_LOGO_ENDING);
+    }
+
+    /**
+     * Create a new, empty file to download a logo to. Pass it to
+     * {@link #put(String, String, File, String, String, String)} when done or
+     * delete it.
+     * 
+     * @return The new partial file.
+     * @throws IOException If the file cannot be created.
+     */
+    public File createPartialFile() throws IOException {
+        dir.mkdirs();
+
+        return File.createTempFile("logo", PARTIAL_LOGO_ENDING, dir);
+    }
+
+    /**
+     * Add a downloaded logo to the cache, replacing any logo for the key.
+     * This might evict other logos.
+     * 
+     * @param key The podcast URL.
+     * @param logoUrl The remote location the logo was loaded from.
+     * @param partial The file the logo was downloaded to, it is moved into
+     *            the cache (or deleted if the cache already has the content).
+     * @param hash The hex SHA-1 hash of the file content.
+     * @param eTag The entity tag given by the server, might be
+     *            <code>null</code>.
+     * @param lastModified The modification date given by the server, might
+     *            be <code>null</code>.
+     * @return The new entry.
+     * @throws IOException If the file cannot be moved into the cache.
+     */
+    public synchronized Entry put(String key, String logoUrl, File partial, String hash,
+            String eTag, String lastModified) throws IOException {
+        final Entry entry = new Entry(key, logoUrl, hash, partial.length(), eTag,
+                lastModified, new Date().getTime());
+        final File file = getFile(entry);
+
+        if (file.exists())
+            partial.delete();
+        else if (!partial.renameTo(file)) {
+            partial.delete();
+            throw new IOException("Cannot move logo to " + file);
+        }
+
+        final Entry old = index.put(key, entry);
+        if (old != null)
+            deleteIfUnreferenced(old.hash);
+
+        trimToSize();
+        writeIndex();
+
+        return entry;
+    }
+
+    /**
+     * Mark the cached logo for a key as fresh, e.g. because the server
+     * confirmed it did not change.
+     * 
+     * @param key The podcast URL.
+     * @return The updated entry or <code>null</code> if there is no cached
+     *         logo.
+     */
+    public synchronized Entry validated(String key) {
+        final Entry old = index.get(key);
+
+        if (old != null) {
+            final Entry entry = new Entry(key, old.logoUrl, old.hash, old.size, old.eTag,
+                    old.lastModified, new Date().getTime());
+
+            index.put(key, entry);
+            writeIndex();
+
+            return entry;
+        }
+        else
+            return null;
+    }
+
+    /**
+     * Remove the cached logo for a key, e.g. because it cannot be decoded.
+     * 
+     * @param key The podcast URL.
+     */
+    public synchronized void remove(String key) {
+        final Entry old = index.remove(key);
+
+        if (old != null) {
+            deleteIfUnreferenced(old.hash);
+            writeIndex();
+        }
+    }
+
+    /**
+     * Move the cached logo for a key to another key, e.g. because the podcast
+     * changed its URL. Any logo cached for the new key is replaced.
+     * 
+     * @param key The podcast's old URL.
+     * @param newKey The podcast's new URL.
+     */
+    public synchronized void move(String key, String newKey) {
+        final Entry old = index.remove(key);
+
+        if (old != null) {
+            final Entry replaced = index.put(newKey, new Entry(newKey, old.logoUrl, old.hash,
+                    old.size, old.eTag, old.lastModified, old.lastValidated));
+            if (replaced != null)
+                deleteIfUnreferenced(replaced.hash);
+
+            writeIndex();
+        }
+    }
+
+    /**
+     * @return The total size of all logo files in the cache in bytes.
+     */
+    public synchronized long getSize() {
+        // Files shared by several keys only count once
+        long size = 0;
+        for (long fileSize : getReferencedHashes().values())
+            size += fileSize;
+
+        return size;
+    }
+
+    private void trimToSize() {
+        final Iterator<Entry> entries = index.values().iterator();
+
+        while (getSize() > MAX_SIZE && entries.hasNext()) {
+            final Entry eldest = entries.next();
+            entries.remove();
+
+            deleteIfUnreferenced(eldest.hash);
+        }
+    }
+
+    private Map<String, Long> getReferencedHashes() {
+        final Map<String, Long> hashes = new LinkedHashMap<>();
+        for (Entry entry : index.values())
+            hashes.put(entry.hash, entry.size);
+
+        return hashes;
+    }
+
+    private void deleteIfUnreferenced(String hash) {
+        if (!getReferencedHashes().containsKey(hash))
+            new File(dir, hash + CACHED_LOGO_ENDING).delete();
+    }
+
+    private void removeUnreferencedFiles() {
+        final Set<String> referenced = new HashSet<>();
+        for (String hash : getReferencedHashes().keySet())
+            referenced.add(hash + CACHED_LOGO_ENDING);
+        referenced.add(INDEX_FILE);
+
+        // This also cleans up partial downloads and files from older versions
+        final File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (!referenced.contains(file.getName()))
+                    file.delete();
+    }
+
+    private void readIndex() {
+        final File file = new File(dir, INDEX_FILE);
+        if (!file.exists())
+            return;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), utf8));
+
+            if (INDEX_VERSION.equals(reader.readLine())) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split(SEPARATOR, -1);
+
+                    if (fields.length == 7) {
+                        final Entry entry = new Entry(fields[0], toValue(fields[1]), fields[2],
+                                Long.parseLong(fields[3]), toValue(fields[4]),
+                                toValue(fields[5]), Long.parseLong(fields[6]));
+
+                        // Skip entries whose file has gone
+                        if (getFile(entry).exists())
+                            index.put(entry.key, entry);
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Cannot read logo cache index, starting over", e);
+
+            index.clear();
+        } finally {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                // Nothing more we could do here
+            }
+        }
+    }
+
+    private void writeIndex() {
+        // Write to a temporary file first, so the index is never left broken
+        final File file = new File(dir, INDEX_FILE);
+        final File temp = new File(dir, INDEX_FILE + PARTIAL_LOGO_ENDING);
+
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), utf8));
+
+            writer.write(INDEX_VERSION);
+            writer.newLine();
+            for (Entry entry : index.values()) {
+                writer.write(toField(entry.key) + SEPARATOR + toField(entry.logoUrl) + SEPARATOR
+                        + entry.hash + SEPARATOR + entry.size + SEPARATOR
+                        + toField(entry.eTag) + SEPARATOR + toField(entry.lastModified)
+                        + SEPARATOR + entry.lastValidated);
+                writer.newLine();
+            }
+
+            writer.close();
+            writer = null;
+
+            if (!temp.renameTo(file))
+                throw new IOException("Cannot move index to " + file);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write logo cache index", e);
+        } finally {
+            try {
+                writer.close();
+            } catch (Exception e) {
+                // Nothing more we could do here
+            }
+        }
+    }
+
+    private static String toField(String value) {
+        // Make sure values do not break the index format
+        return value == null ? "" : value.replaceAll("[\\t\\r\\n]", " ");
+    }
+
+    private static String toValue(String field) {
+        return field.isEmpty() ? null : field;
+    }
+}
@@ -0,0 +1,162 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import net.alliknow.podcatcher.listeners.OnResolveMediaUrlListener;
+import net.alliknow.podcatcher.model.tasks.remote.ResolveMediaUrlTask;
+import net.alliknow.podcatcher.model.types.Episode;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Resolves the redirects of episode media URLs ahead of playback. Many media
+ * URLs go through tracking services before reaching the server the file is
+ * actually on, and the media player would follow that chain every time it
+ * starts streaming. Call {@link #resolve(Episode)} for the episodes likely to
+ * be played soon (the selected one, the next playlist entries) and hand
+ * {@link #getResolvedUrl(String)} to the player. Resolved locations are kept
+ * for {@link #TIME_TO_LIVE} only, since servers might sign them with an
+ * expiry date.
+ */
+public class MediaUrlResolver implements OnResolveMediaUrlListener {
+
+    /** The time resolved locations are used for (in milliseconds) */
+    public static final long TIME_TO_LIVE = 20 * 60 * 1000;
+    /** Our log tag */
+    private static final String TAG = "MediaUrlResolver";
+
+    /** The single instance */
+    private static MediaUrlResolver resolver;
+
+    /** A resolved location and the time it expires */
+    private static class Resolution {
+
+        /** The final location */
+        private final String location;
+        /** The point in time the location expires */
+        private final long expires;
+
+        private Resolution(String location, long expires) {
+            this.location = location;
+            this.expires = expires;
+        }
+    }
+
+    /** The resolved locations keyed by media URL */
+    private final Map<String, Resolution> resolved = new ConcurrentHashMap<>();
+    /** The media URLs currently resolving */
+    private final Set<String> resolving =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private MediaUrlResolver() {
+        // Use getInstance()
+    }
+
+    /**
+     * @return The single instance of the media URL resolver.
+     */
+    public static synchronized MediaUrlResolver getInstance() {
+        if (resolver == null)
+            resolver = new MediaUrlResolver();
+
+        return resolver;
+    }
+
+    /**
+     * Start resolving the media URL of the given episode in the background.
+     * Nothing happens if the episode has no media URL, is already resolving,
+     * or has a resolved location that did not expire yet.
+     * 
+     * @param episode Episode to resolve the media URL for.
+     */
+    public void resolve(Episode episode) {
+        if (episode == null || episode.getMediaUrl() == null)
+            return;
+
+        final String mediaUrl = episode.getMediaUrl();
+        if (getResolution(mediaUrl) == null && resolving.add(mediaUrl))
+            try {
+                new ResolveMediaUrlTask(this)
+                        .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, episode);
+            } catch (RejectedExecutionException ree) {
+                // Skip, the player will follow the redirects itself
+                resolving.remove(mediaUrl);
+            }
+    }
+
+    /**
+     * Get the location to stream the media file from.
+     * 
+     * @param mediaUrl The episode's media URL as given in the feed.
+     * @return The resolved location if available and not expired, the media
+     *         URL given otherwise.
+     */
+    public String getResolvedUrl(String mediaUrl) {
+        final Resolution resolution = getResolution(mediaUrl);
+
+        return resolution == null ? mediaUrl : resolution.location;
+    }
+
+    /**
+     * Forget about the resolved location for a media URL, e.g. because the
+     * player failed to stream from it.
+     * 
+     * @param mediaUrl The episode's media URL as given in the feed.
+     */
+    public void invalidate(String mediaUrl) {
+        if (mediaUrl != null)
+            resolved.remove(mediaUrl);
+    }
+
+    @Override
+    public void onMediaUrlResolved(String mediaUrl, String location) {
+        resolving.remove(mediaUrl);
+
+        // Also keep locations without redirects, so we do not ask again
+        if (!mediaUrl.equals(location))
+            Log.d(TAG, "Resolved " + mediaUrl + " to " + location);
+
+        resolved.put(mediaUrl, new Resolution(location, new Date().getTime() + TIME_TO_LIVE));
+    }
+
+    @Override
+    public void onMediaUrlResolveFailed(String mediaUrl) {
+        resolving.remove(mediaUrl);
+    }
+
+    private Resolution getResolution(String mediaUrl) {
+        final Resolution resolution = mediaUrl == null ? null : resolved.get(mediaUrl);
+
+        // Drop expired locations, the server might not accept them any more
+        if (resolution != null && resolution.expires < new Date().getTime()) {
+            resolved.remove(mediaUrl);
+
+            return null;
+        }
+
+        return resolution;
+    }
+}
@@ -0,0 +1,211 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model;
+
+import android.os.Handler;
+import android.preference.PreferenceManager;
+
+import net.alliknow.podcatcher.Podcatcher;
+import net.alliknow.podcatcher.SettingsActivity;
+import net.alliknow.podcatcher.listeners.OnChangePlaylistListener;
+import net.alliknow.podcatcher.model.EpisodeDownloadManager.DownloadPriority;
+import net.alliknow.podcatcher.model.types.Episode;
+import net.alliknow.podcatcher.preferences.DownloadFolderPreference;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Makes sure the episodes coming up in the playlist are available locally
+ * before their playback starts. The prefetcher watches the playlist and queues
+ * downloads for the next few entries with {@link DownloadPriority#PLAYLIST},
+ * so they are only loaded while on a fast network. Entries the user skipped
+ * are fetched last and prefetching stops once the playlist downloads reach
+ * the storage budget or the download folder runs low on space. While on a
+ * fast network, the media URLs of the next entries not available locally are
+ * resolved with the {@link MediaUrlResolver}, so streaming them starts faster.
+ * Nothing goes over the air unless prefetching is enabled.
+ */
+public class PlaylistPrefetcher implements OnChangePlaylistListener {
+
+    /** The default number of playlist entries to have available locally */
+    public static final int DEFAULT_PREFETCH_COUNT = 3;
+    /** The default storage budget for playlist downloads in bytes */
+    public static final long DEFAULT_STORAGE_BUDGET = 1024l * 1024 * 1024;
+    /** The space (in bytes) that is always left free on the download volume */
+    private static final long MIN_FREE_SPACE = 200l * 1024 * 1024;
+    /** The number of upcoming playlist entries to resolve media URLs for */
+    private static final int RESOLVE_COUNT = 2;
+    /** The delay (in ms) before reacting on playlist changes */
+    private static final long PREFETCH_DELAY = 2000;
+
+    /** The manager we work for */
+    private final EpisodePlaylistManager manager;
+    /** The application handle */
+    private final Podcatcher podcatcher;
+
+    /** The number of playlist entries to have available locally */
+    private int prefetchCount = DEFAULT_PREFETCH_COUNT;
+    /** The storage budget for playlist downloads in bytes */
+    private long storageBudget = DEFAULT_STORAGE_BUDGET;
+    /** Playlist entries the user skipped past (media URLs) */
+    private final Set<String> skipped = new HashSet<String>();
+
+    /** Handler to bundle bursts of playlist changes */
+    private final Handler prefetchHandler = new Handler();
+    /** The runnable doing the actual work */
+    private final Runnable prefetchRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            prefetch();
+        }
+    };
+
+    /**
+     * Create a new prefetcher.
+     * 
+     * @param podcatcher The application handle.
+     * @param manager The playlist manager to work for.
+     */
+    public PlaylistPrefetcher(Podcatcher podcatcher, EpisodePlaylistManager manager) {
+        this.podcatcher = podcatcher;
+        this.manager = manager;
+    }
+
+    /**
+     * Set the number of upcoming playlist entries to make available locally.
+     * 
+     * @param count The number of entries, zero turns prefetching off.
+     */
+    public void setPrefetchCount(int count) {
+        this.prefetchCount = Math.max(0, count);
+        schedule();
+    }
+
+    /**
+     * Set the storage budget for playlist downloads. No more entries are
+     * prefetched once the downloaded playlist entries take this much space.
+     * 
+     * @param bytes The budget in bytes.
+     */
+    public void setStorageBudget(long bytes) {
+        this.storageBudget = bytes;
+        schedule();
+    }
+
+    @Override
+    public void onPlaylistChanged() {
+        schedule();
+    }
+
+    /**
+     * Tell the prefetcher that playback started for given episode. All
+     * playlist entries before it count as skipped and are fetched last.
+     * 
+     * @param episode The episode now playing.
+     */
+    public void onPlaybackStarted(Episode episode) {
+        final List<Episode> playlist = manager.getPlaylist();
+        final int position = playlist.indexOf(episode);
+
+        for (int index = 0; index < position; index++)
+            skipped.add(playlist.get(index).getMediaUrl());
+
+        schedule();
+    }
+
+    /**
+     * @param mediaUrl The media URL of the playlist entry to check.
+     * @return Whether the user skipped past the playlist entry, its download
+     *         should go after those for the entries coming up.
+     */
+    public boolean isSkipped(String mediaUrl) {
+        return skipped.contains(mediaUrl);
+    }
+
+    /**
+     * Check the playlist for entries to prefetch soon.
+     */
+    public void schedule() {
+        prefetchHandler.removeCallbacks(prefetchRunnable);
+        prefetchHandler.postDelayed(prefetchRunnable, PREFETCH_DELAY);
+    }
+
+    private void prefetch() {
+        final List<Episode> playlist = manager.getPlaylist();
+
+        // Forget about skipped entries no longer in the playlist and order the
+        // rest, skipped entries go last
+        final Set<String> present = new HashSet<String>();
+        final List<Episode> ordered = new ArrayList<Episode>();
+        final List<Episode> skippedEntries = new ArrayList<Episode>();
+        for (Episode episode : playlist) {
+            present.add(episode.getMediaUrl());
+
+            if (skipped.contains(episode.getMediaUrl()))
+                skippedEntries.add(episode);
+            else
+                ordered.add(episode);
+        }
+        skipped.retainAll(present);
+        ordered.addAll(skippedEntries);
+
+        if (prefetchCount <= 0 || !isEnabled())
+            return;
+
+        // Entries that will be streamed start faster if the redirects of their
+        // media URLs are followed ahead of time. Tracking redirectors might
+        // count this as a download, so only do it when we would prefetch.
+        if (podcatcher.isOnFastConnection())
+            for (int index = 0; index < Math.min(RESOLVE_COUNT, ordered.size()); index++)
+                if (!manager.isDownloaded(ordered.get(index)))
+                    MediaUrlResolver.getInstance().resolve(ordered.get(index));
+
+        // Find out how much space the playlist downloads take already
+        long used = 0;
+        for (Episode episode : playlist)
+            if (manager.isDownloaded(episode))
+                used += new File(manager.getLocalPath(episode)).length();
+
+        final File downloadFolder = new File(PreferenceManager.getDefaultSharedPreferences(
+                podcatcher).getString(SettingsActivity.KEY_DOWNLOAD_FOLDER,
+                DownloadFolderPreference.getDefaultDownloadFolder().getAbsolutePath()));
+        final long freeSpace = downloadFolder.getUsableSpace();
+
+        for (int index = 0; index < Math.min(prefetchCount, ordered.size()); index++) {
+            final Episode episode = ordered.get(index);
+
+            if (!manager.isDownloadingOrDownloaded(episode)) {
+                // Out of space
+                if (used >= storageBudget || (freeSpace > 0 && freeSpace < MIN_FREE_SPACE))
+                    break;
+
+                manager.download(episode, DownloadPriority.PLAYLIST);
+            }
+        }
+    }
+
+    private boolean isEnabled() {
+        return PreferenceManager.getDefaultSharedPreferences(podcatcher)
+                .getBoolean(SettingsActivity.KEY_PREFETCH_PLAYLIST, false);
+    }
+}
@@ -1,4 +1,4 @@
-/** Copyright 2012, 2013 Kevin Hausmann
+/** Copyright 2012-2014 Kevin Hausmann
  *
  * This file is part of PodCatcher Deluxe.
  *
@@ -15,44 +15,48 @@
  * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
  */
 
-package net.alliknow.model;
+package net.alliknow.podcatcher.model;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.UserManager;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import net.alliknow.GetRestrictionsReceiver;
-import net.alliknow.Podcatcher;
-import net.alliknow.SettingsActivity;
-import net.alliknow.listeners.OnChangePodcastListListener;
-import net.alliknow.listeners.OnLoadPodcastListListener;
-import net.alliknow.listeners.OnLoadPodcastListener;
-import net.alliknow.listeners.OnLoadPodcastLogoListener;
-import net.alliknow.model.tasks.StorePodcastListTask;
-import net.alliknow.model.tasks.remote.LoadPodcastLogoTask;
-import net.alliknow.model.tasks.remote.LoadPodcastTask;
-import net.alliknow.model.tasks.remote.LoadPodcastTask.PodcastLoadError;
-import net.alliknow.model.types.Episode;
-import net.alliknow.model.types.Podcast;
-import net.alliknow.model.types.Progress;
+import net.alliknow.podcatcher.GetRestrictionsReceiver;
+import net.alliknow.podcatcher.Podcatcher;
+import net.alliknow.podcatcher.SettingsActivity;
+import net.alliknow.podcatcher.listeners.OnChangePodcastListListener;
+import net.alliknow.podcatcher.listeners.OnLoadPodcastListListener;
+import net.alliknow.podcatcher.listeners.OnLoadPodcastListener;
+import net.alliknow.podcatcher.listeners.OnLoadPodcastLogoListener;
+import net.alliknow.podcatcher.model.tasks.StorePodcastListTask;
+import net.alliknow.podcatcher.model.tasks.remote.LoadPodcastLogoTask;
+import net.alliknow.podcatcher.model.tasks.remote.LoadPodcastTask;
+import net.alliknow.podcatcher.model.tasks.remote.LoadPodcastTask.PodcastLoadError;
+import net.alliknow.podcatcher.model.types.Episode;
+import net.alliknow.podcatcher.model.types.LogoVariant;
+import net.alliknow.podcatcher.model.types.Podcast;
+import net.alliknow.podcatcher.model.types.Progress;
 
 import org.xmlpull.v1.XmlPullParser;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.RejectedExecutionException;
 
 /**
@@ -61,6 +65,14 @@ import java.util.concurrent.RejectedExecutionException;
  * activities, fragments and services. Since this is used in the application
  * sub-class only, there is never more than one instance of this around. You
  * should never have to create this yourself.
+ * <p>
+ * All changes to the manager's state (the podcast list and the maps of running
+ * load tasks) are applied on the main thread only. Mutators called from any
+ * other thread are posted to the main looper and run from there, so the
+ * manager effectively works as a single-writer event loop. Readers may call in
+ * from any thread and always see a consistent, immutable snapshot of the
+ * podcast list.
+ * </p>
  */
 public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastListener,
         OnLoadPodcastLogoListener {
@@ -82,6 +94,8 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
     public static final int TIME_TO_LIFE_MOBILE = 60 * 60 * 1000;
     /** Maximum byte size for the logo to load when on mobile connection */
     public static final int MAX_LOGO_SIZE_MOBILE = 500000;
+    /** The number of logo loads requested via the UI running at once */
+    private static final int MAX_CONCURRENT_LOGO_LOADS = 2;
 
     /** Max stale time we accept from http cache on fast connections */
     private static final int MAX_STALE = 60 * 60; // one hour
@@ -90,15 +104,24 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
     /** Max stale time we accept from http cache when offline */
     private static final int MAX_STALE_OFFLINE = 60 * 60 * 24 * 7; // 1 week
 
+    /** The interval between two runs of the background podcast update */
+    private static final int UPDATE_INTERVAL = 1000 * 60 * 60 * 5; // five hours
+
     /** The name of the file we store our saved podcasts in (as OPML) */
     public static final String OPML_FILENAME = "podcasts.opml";
     /** The OPML file encoding */
     public static final String OPML_FILE_ENCODING = "utf8";
 
-    /** The list of podcasts we know */
-    private List<Podcast> podcastList;
+    /**
+     * The list of podcasts we know. This is an immutable snapshot that is
+     * replaced as a whole (on the main thread only) whenever the list changes.
+     */
+    private volatile List<Podcast> podcastList;
     /** Flag to indicate whether podcast list is dirty */
-    private boolean podcastListChanged;
+    private volatile boolean podcastListChanged;
+
+    /** The handler for the main looper all state changes are run on */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     /**
      * Flag to indicate whether we run in a restricted profile and should block
@@ -106,63 +129,54 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      */
     private boolean blockExplicit = false;
 
-    /** The current podcast load tasks */
-    private Map<Podcast, LoadPodcastTask> loadPodcastTasks = new HashMap<Podcast, LoadPodcastTask>();
-    /** The current podcast logo load tasks */
-    private Map<Podcast, LoadPodcastLogoTask> loadPodcastLogoTasks = new HashMap<Podcast, LoadPodcastLogoTask>();
+    /**
+     * The current podcast load tasks (only changed on the main thread, but
+     * might be read from any thread)
+     */
+    private Map<Podcast, LoadPodcastTask> loadPodcastTasks = new ConcurrentHashMap<Podcast, LoadPodcastTask>();
+    /**
+     * The current podcast logo load tasks (only changed on the main thread, but
+     * might be read from any thread)
+     */
+    private Map<Podcast, LoadPodcastLogoTask> loadPodcastLogoTasks = new ConcurrentHashMap<Podcast, LoadPodcastLogoTask>();
+    /**
+     * The podcasts waiting for their logos to be restored from the local
+     * cache, in the order requested (only used on the main thread)
+     */
+    private Set<Podcast> queuedLogoLoads = new LinkedHashSet<Podcast>();
+    /**
+     * The podcasts to load all logo variants for once the logo load task
+     * running for them is done (only used on the main thread)
+     */
+    private Set<Podcast> pendingLogoLoads = new HashSet<Podcast>();
 
+    /*
+     * The listener sets are copy-on-write, so listeners can safely register or
+     * unregister from any thread, even while a call-back is being dispatched.
+     */
     /** The call-back set for the podcast list load listeners */
-    private Set<OnLoadPodcastListListener> loadPodcastListListeners = new HashSet<OnLoadPodcastListListener>();
+    private Set<OnLoadPodcastListListener> loadPodcastListListeners = new CopyOnWriteArraySet<OnLoadPodcastListListener>();
     /** The call-back set for the podcast list changed listeners */
-    private Set<OnChangePodcastListListener> changePodcastListListeners = new HashSet<OnChangePodcastListListener>();
+    private Set<OnChangePodcastListListener> changePodcastListListeners = new CopyOnWriteArraySet<OnChangePodcastListListener>();
     /** The call-back set for the podcast load listeners */
-    private Set<OnLoadPodcastListener> loadPodcastListeners = new HashSet<OnLoadPodcastListener>();
+    private Set<OnLoadPodcastListener> loadPodcastListeners = new CopyOnWriteArraySet<OnLoadPodcastListener>();
     /** The call-back set for the podcast logo load listeners */
-    private Set<OnLoadPodcastLogoListener> loadPodcastLogoListeners = new HashSet<OnLoadPodcastLogoListener>();
+    private Set<OnLoadPodcastLogoListener> loadPodcastLogoListeners = new CopyOnWriteArraySet<OnLoadPodcastLogoListener>();
 
-    /** This is the background update task */
-    private class PodcastUpdateTask extends TimerTask {
+    /**
+     * This is the background update, it is run on the main thread and
+     * re-schedules itself
+     */
+    private final Runnable podcastUpdateRunnable = new Runnable() {
 
         @Override
         public void run() {
             Log.i(getClass().getSimpleName(), "Running podcast background update");
 
-            final boolean online = podcatcher.isOnline();
-            // This is the current time minus the time to life for the podcast
-            // minus some extra time to make sure we refresh before it if
-            // actually due
-            final Date triggerIfLoadedBefore = new Date(new Date().getTime() -
-                    (podcatcher.isOnFastConnection() ? TIME_TO_LIFE : TIME_TO_LIFE_MOBILE) -
-                    1000 * 60 * 6); // trigger if six minutes before reload
-
-            // There are some conditions here: We need to be online and there
-            // should not be too many threads open
-            if (online && (loadPodcastTasks.size() + loadPodcastLogoTasks.size() < 50))
-                for (Podcast podcast : podcastList) {
-                    // There are more conditions here: The podcast is not
-                    // currently loading, and has not been loaded recently
-                    if (!loadPodcastTasks.containsKey(podcast) &&
-                            (podcast.getLastLoaded() == null || podcast.getLastLoaded().before(
-                                    triggerIfLoadedBefore))) {
-                        // Download podcast RSS feed (async)
-                        final LoadPodcastTask task = new LoadPodcastTask(PodcastManager.this);
-                        task.setBlockExplicitEpisodes(blockExplicit);
-                        try {
-                            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, podcast);
-
-                            // Keep task reference, so we can cancel the load
-                            // and determine whether a task for this podcast is
-                            // already running
-                            loadPodcastTasks.put(podcast, task);
-                        } catch (RejectedExecutionException ree) {
-                            // Skip update
-                            Log.d(getClass().getSimpleName(), "Cannot update podcast \"" + podcast
-                                    + "\"", ree);
-                        }
-                    }
-                }
+            refresh();
+            mainHandler.postDelayed(this, UPDATE_INTERVAL);
         }
-    }
+    };
 
     /**
      * Init the podcast data.
@@ -211,34 +225,51 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
     }
 
     @Override
-    public void onPodcastListLoaded(List<Podcast> list) {
-        // Set the member
-        this.podcastList = list;
-        this.podcastListChanged = false;
+    public void onPodcastListLoaded(final List<Podcast> list, final Uri inputFile) {
+        if (!isOnMainThread()) {
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    onPodcastListLoaded(list, inputFile);
+                }
+            });
 
-        // Put some nice sample podcasts for testing
+            return;
+        }
 
-        putSamplePodcasts();
+        // Set the member
+        final List<Podcast> sorted = new ArrayList<Podcast>(list);
+        Collections.sort(sorted);
+        this.podcastList = Collections.unmodifiableList(sorted);
+        this.podcastListChanged = false;
 
         // Alert call-backs (if any)
         if (loadPodcastListListeners.isEmpty())
             Log.w(getClass().getSimpleName(), "Podcast list loaded, but no listeners set.");
         else
             for (OnLoadPodcastListListener listener : loadPodcastListListeners)
-                listener.onPodcastListLoaded(getPodcastList());
+                listener.onPodcastListLoaded(getPodcastList(), inputFile);
 
-        // Go load all podcast logo available offline
-        for (Podcast podcast : podcastList)
-            loadLogo(podcast, true);
+        // Podcast logos are not loaded here, the UI requests them for the
+        // podcasts actually showing, see requestLogos()
 
-        // Run podcast update task every five minutes
-        final int fiveMinutes = 1000 * 60 * 60 * 5;
+        // Run podcast update every five minutes
         final boolean isSelectAllOnStart = PreferenceManager.getDefaultSharedPreferences(
                 podcatcher.getApplicationContext()).getBoolean(
                 SettingsActivity.KEY_SELECT_ALL_ON_START, false);
-        new Timer().schedule(new PodcastUpdateTask(),
-                isSelectAllOnStart || podcatcher.isInDebugMode() ?
-                        fiveMinutes : 0, fiveMinutes);
+        mainHandler.removeCallbacks(podcastUpdateRunnable);
+        mainHandler.postDelayed(podcastUpdateRunnable,
+                isSelectAllOnStart || podcatcher.isInDebugMode() ? UPDATE_INTERVAL : 0);
+    }
+
+    @Override
+    public void onPodcastListLoadFailed(Uri inputFile, Exception error) {
+        Log.w(getClass().getSimpleName(), "Podcast list failed to load from " + inputFile, error);
+
+        // Alert call-backs (if any)
+        for (OnLoadPodcastListListener listener : loadPodcastListListeners)
+            listener.onPodcastListLoadFailed(inputFile, error);
     }
 
     /**
@@ -252,12 +283,69 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      * @see OnLoadPodcastListListener
      */
     public List<Podcast> getPodcastList() {
-        if (podcastList == null)
+        final List<Podcast> snapshot = podcastList;
+
+        if (snapshot == null)
             return null;
-        // return copy in order to make sure
-        // nobody changes this list on us.
+        // return copy in order to make sure the caller can work on the list
         else
-            return new ArrayList<Podcast>(podcastList);
+            return new ArrayList<Podcast>(snapshot);
+    }
+
+    /**
+     * Reload all podcasts that are due for an update, i.e. that have not been
+     * loaded for some time and are not currently loading. This will do nothing
+     * while we are offline. The method returns immediately, the actual work is
+     * done on the main thread.
+     */
+    public void refresh() {
+        if (!isOnMainThread()) {
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    refresh();
+                }
+            });
+
+            return;
+        }
+
+        final List<Podcast> snapshot = podcastList;
+        // This is the current time minus the time to life for the podcast
+        // minus some extra time to make sure we refresh before it if
+        // actually due
+        final Date triggerIfLoadedBefore = new Date(new Date().getTime() -
+                (podcatcher.isOnFastConnection() ? TIME_TO_LIFE : TIME_TO_LIFE_MOBILE) -
+                1000 * 60 * 6); // trigger if six minutes before reload
+
+        // There are some conditions here: We need to be online and there
+        // should not be too many threads open
+        if (snapshot != null && podcatcher.isOnline() &&
+                (loadPodcastTasks.size() + loadPodcastLogoTasks.size() < 50))
+            for (Podcast podcast : snapshot) {
+                // There are more conditions here: The podcast is not
+                // currently loading, and has not been loaded recently
+                if (!loadPodcastTasks.containsKey(podcast) &&
+                        (podcast.getLastLoaded() == null || podcast.getLastLoaded().before(
+                                triggerIfLoadedBefore))) {
+                    // Download podcast RSS feed (async)
+                    final LoadPodcastTask task = new LoadPodcastTask(this);
+                    task.setBlockExplicitEpisodes(blockExplicit);
+                    try {
+                        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, podcast);
+
+                        // Keep task reference, so we can cancel the load
+                        // and determine whether a task for this podcast is
+                        // already running
+                        loadPodcastTasks.put(podcast, task);
+                    } catch (RejectedExecutionException ree) {
+                        // Skip update
+                        Log.d(getClass().getSimpleName(), "Cannot update podcast \"" + podcast
+                                + "\"", ree);
+                    }
+                }
+            }
     }
 
     /**
@@ -270,7 +358,19 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      * @see OnLoadPodcastListener
      * @see EpisodeManager#blockUntilEpisodeMetadataIsLoaded()
      */
-    public void load(Podcast podcast) {
+    public void load(final Podcast podcast) {
+        if (!isOnMainThread()) {
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    load(podcast);
+                }
+            });
+
+            return;
+        }
+
         // Only load podcast if not too old
         if (!shouldReload(podcast))
             onPodcastLoaded(podcast);
@@ -326,7 +426,14 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
     @Override
     public void onPodcastLoaded(Podcast podcast) {
         // Remove from the map of loading task
-        loadPodcastTasks.remove(podcast);
+        final LoadPodcastTask task = loadPodcastTasks.remove(podcast);
+        // Keep what we learned about the feed's location across sessions
+        if (task != null && task.isRedirectChanged() && contains(podcast))
+            podcastListChanged = true;
+
+        // The feed moved for good, follow it
+        if (podcast.isRedirectStable() && contains(podcast))
+            moveToRedirect(podcast);
 
         // Notify listeners
         if (loadPodcastListeners.isEmpty())
@@ -341,7 +448,10 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
     @Override
     public void onPodcastLoadFailed(Podcast podcast, PodcastLoadError code) {
         // Remove from the map of loading task
-        loadPodcastTasks.remove(podcast);
+        final LoadPodcastTask task = loadPodcastTasks.remove(podcast);
+        // A redirect that failed should not survive the session either
+        if (task != null && task.isRedirectChanged() && contains(podcast))
+            podcastListChanged = true;
 
         // Notify listeners
         if (loadPodcastListeners.isEmpty())
@@ -351,6 +461,46 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
                 listener.onPodcastLoadFailed(podcast, code);
     }
 
+    /**
+     * Make the stable redirect location of a podcast in our list its URL, so
+     * the feed is no longer loaded via the old location and the redirect can
+     * be forgotten. Has to run on the main thread with no load task running
+     * for the podcast, since its hash code changes.
+     * 
+     * @param podcast Podcast to move.
+     */
+    private void moveToRedirect(Podcast podcast) {
+        // Another subscription already points at the new location or the logo
+        // is loading, keep loading via the redirect and try again next time
+        if (findPodcastForUrl(podcast.getLoadUrl()) != null
+                || loadPodcastLogoTasks.containsKey(podcast))
+            return;
+
+        final String oldUrl = podcast.applyRedirect();
+        Log.i(getClass().getSimpleName(), "Podcast \"" + podcast.getName() + "\" moved from "
+                + oldUrl + " to " + podcast.getUrl());
+
+        // The sets hash the podcast by its old URL, rebuild them
+        queuedLogoLoads = new LinkedHashSet<Podcast>(queuedLogoLoads);
+        pendingLogoLoads = new HashSet<Podcast>(pendingLogoLoads);
+        // The disk cache writes its index, keep that off the main thread
+        final String newUrl = podcast.getUrl();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                LogoDiskCache.getInstance(podcatcher).move(oldUrl, newUrl);
+            }
+        });
+
+        // Alert listeners of moved podcast, the episode metadata follows
+        for (OnChangePodcastListListener listener : changePodcastListListeners)
+            listener.onPodcastMoved(podcast, oldUrl);
+
+        // Mark podcast list dirty
+        podcastListChanged = true;
+    }
+
     /**
      * Load logo for given podcast from its URL. This is an async load, so this
      * method will return immediately. Implement the appropriate call-back to
@@ -360,17 +510,84 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      * @see OnLoadPodcastLogoListener
      */
     public void loadLogo(Podcast podcast) {
-        loadLogo(podcast, false);
+        loadLogo(podcast, false, LogoVariant.values());
     }
 
-    private void loadLogo(Podcast podcast, boolean localOnly) {
+    /**
+     * Request logos for the podcasts given to be restored from the local cache.
+     * Use this to have the logos for the podcasts showing in the UI (and the
+     * ones likely to show next) loaded. Logos are loaded in the order given
+     * and only a few at a time. Each call replaces the previous request, so
+     * logos not loaded yet for podcasts no longer in the list are skipped.
+     * This will never go over the air, use {@link #loadLogo(Podcast)} for that.
+     * 
+     * @param podcasts Podcasts to load logos for, most important first.
+     * @see OnLoadPodcastLogoListener
+     */
+    public void requestLogos(final List<Podcast> podcasts) {
+        if (!isOnMainThread()) {
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    requestLogos(podcasts);
+                }
+            });
+
+            return;
+        }
+
+        // Drop all work not started yet and re-queue
+        queuedLogoLoads.clear();
+        for (Podcast podcast : podcasts)
+            if (!podcast.isLogoCached(LogoVariant.THUMBNAIL)
+                    && !loadPodcastLogoTasks.containsKey(podcast))
+                queuedLogoLoads.add(podcast);
+
+        processLogoQueue();
+    }
+
+    private void processLogoQueue() {
+        while (!queuedLogoLoads.isEmpty()
+                && loadPodcastLogoTasks.size() < MAX_CONCURRENT_LOGO_LOADS) {
+            final Podcast podcast = queuedLogoLoads.iterator().next();
+            queuedLogoLoads.remove(podcast);
+
+            loadLogo(podcast, true, LogoVariant.THUMBNAIL);
+        }
+    }
+
+    private void loadLogo(final Podcast podcast, final boolean localOnly,
+            final LogoVariant... variants) {
+        if (!isOnMainThread()) {
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    loadLogo(podcast, localOnly, variants);
+                }
+            });
+
+            return;
+        }
+
         // Only load podcast logo if it is not there yet
-        if (podcast.isLogoCached())
+        boolean cached = true;
+        for (LogoVariant variant : variants)
+            cached &= podcast.isLogoCached(variant);
+
+        if (cached)
             onPodcastLogoLoaded(podcast);
-        // Only start the load task if it is not already active
-        else if (!loadPodcastLogoTasks.containsKey(podcast)) {
+        // Only start the load task if it is not already active, but the active
+        // one might not cover all variants, so we check again when it is done
+        else if (loadPodcastLogoTasks.containsKey(podcast)) {
+            if (!localOnly)
+                pendingLogoLoads.add(podcast);
+        }
+        else {
             // Start logo download
             LoadPodcastLogoTask task = new LoadPodcastLogoTask(podcatcher, this);
+            task.setVariants(variants);
 
             // Limit logo size download unless we are on a fast network.
             if (!podcatcher.isOnFastConnection())
@@ -396,6 +613,9 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
     @Override
     public void onPodcastLogoLoaded(Podcast podcast) {
         loadPodcastLogoTasks.remove(podcast);
+        if (pendingLogoLoads.remove(podcast))
+            loadLogo(podcast);
+        processLogoQueue();
 
         if (loadPodcastLogoListeners.isEmpty())
             Log.w(getClass().getSimpleName(), "Podcast logo loaded, but no listener set.");
@@ -407,6 +627,9 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
     @Override
     public void onPodcastLogoLoadFailed(Podcast podcast) {
         loadPodcastLogoTasks.remove(podcast);
+        if (pendingLogoLoads.remove(podcast))
+            loadLogo(podcast);
+        processLogoQueue();
 
         if (loadPodcastLogoListeners.isEmpty())
             Log.w(getClass().getSimpleName(), "Podcast logo failed to load, but no listener set.");
@@ -424,12 +647,26 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      * @param newPodcast Podcast to add.
      * @see OnChangePodcastListListener
      */
-    public void addPodcast(Podcast newPodcast) {
+    public void addPodcast(final Podcast newPodcast) {
+        if (!isOnMainThread()) {
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    addPodcast(newPodcast);
+                }
+            });
+
+            return;
+        }
+
         // Check whether the new podcast is already added
-        if (newPodcast != null && !contains(newPodcast)) {
+        if (newPodcast != null && podcastList != null && !contains(newPodcast)) {
             // Add the new podcast
-            podcastList.add(newPodcast);
-            Collections.sort(podcastList);
+            final List<Podcast> changed = new ArrayList<Podcast>(podcastList);
+            changed.add(newPodcast);
+            Collections.sort(changed);
+            podcastList = Collections.unmodifiableList(changed);
 
             // Alert listeners of new podcast
             for (OnChangePodcastListListener listener : changePodcastListListeners)
@@ -437,7 +674,7 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
 
             // Mark podcast list dirty
             podcastListChanged = true;
-        } else
+        } else if (newPodcast != null)
             Log.i(getClass().getSimpleName(), "Podcast \"" + newPodcast.getName()
                     + "\" is already in list.");
     }
@@ -446,14 +683,31 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      * Remove a podcast from the list of podcasts.
      * {@link OnChangePodcastListListener}s will be notified. If the given index
      * is out of bounds, no podcast is removed and no notification takes place.
+     * When called from a thread other than the main thread, the index is
+     * resolved against the list as it is by the time the removal actually
+     * runs.
      * 
      * @param index Index of podcast to remove.
      * @see OnChangePodcastListListener
      */
-    public void removePodcast(int index) {
+    public void removePodcast(final int index) {
+        if (!isOnMainThread()) {
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    removePodcast(index);
+                }
+            });
+
+            return;
+        }
+
         if (index >= 0 && index < size()) {
             // Remove podcast at given position
-            Podcast removedPodcast = podcastList.remove(index);
+            final List<Podcast> changed = new ArrayList<Podcast>(podcastList);
+            final Podcast removedPodcast = changed.remove(index);
+            podcastList = Collections.unmodifiableList(changed);
 
             // Alert listeners of removed podcast
             for (OnChangePodcastListListener listener : changePodcastListListeners)
@@ -466,6 +720,35 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
                     + index);
     }
 
+    /**
+     * Remove a podcast from the list of podcasts.
+     * {@link OnChangePodcastListListener}s will be notified. If the podcast is
+     * not in the list, nothing is removed and no notification takes place.
+     * Other than {@link #removePodcast(int)}, this is safe to call from any
+     * thread since the podcast's position is only looked up when the removal
+     * actually runs.
+     * 
+     * @param podcast Podcast to remove.
+     * @see OnChangePodcastListListener
+     */
+    public void removePodcast(final Podcast podcast) {
+        if (!isOnMainThread()) {
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    removePodcast(podcast);
+                }
+            });
+
+            return;
+        }
+
+        final int index = indexOf(podcast);
+        if (index >= 0)
+            removePodcast(index);
+    }
+
     /**
      * @return Whether the app runs in a restricted environment where access to
      *         podcast with explicit content is blocked.
@@ -483,8 +766,21 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      * @param username Username to set.
      * @param password Password to set.
      */
-    public void setCredentials(Podcast podcast, String username, String password) {
-        if (podcastList.contains(podcast)) {
+    public void setCredentials(final Podcast podcast, final String username,
+            final String password) {
+        if (!isOnMainThread()) {
+            mainHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    setCredentials(podcast, username, password);
+                }
+            });
+
+            return;
+        }
+
+        if (contains(podcast)) {
             podcast.setUsername(username);
             podcast.setPassword(password);
 
@@ -498,11 +794,14 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      */
     @SuppressWarnings("unchecked")
     public void saveState() {
+        final List<Podcast> snapshot = podcastList;
+
         // Store podcast list if dirty
-        if (podcastListChanged && podcastList != null) {
-            final StorePodcastListTask task = new StorePodcastListTask(podcatcher);
+        if (podcastListChanged && snapshot != null) {
+            final StorePodcastListTask task = new StorePodcastListTask(podcatcher, null);
             task.setWriteAuthorization(true);
-            task.execute(new ArrayList<Podcast>(podcastList));
+            task.setWriteRedirects(true);
+            task.execute(new ArrayList<Podcast>(snapshot));
 
             // Reset the flag, so the list will only be saved if changed again
             podcastListChanged = false;
@@ -513,10 +812,12 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      * @return The number of podcasts available to the manager.
      */
     public int size() {
-        if (podcastList == null)
+        final List<Podcast> snapshot = podcastList;
+
+        if (snapshot == null)
             return 0;
         else
-            return podcastList.size();
+            return snapshot.size();
     }
 
     /**
@@ -526,10 +827,12 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      * @return The podcast index, or -1 if not in the list.
      */
     public int indexOf(Podcast podcast) {
-        if (podcastList == null)
+        final List<Podcast> snapshot = podcastList;
+
+        if (snapshot == null)
             return -1;
         else
-            return podcastList.indexOf(podcast);
+            return snapshot.indexOf(podcast);
     }
 
     /**
@@ -549,12 +852,14 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      * @return The podcast object, or <code>null</code> if not found.
      */
     public Podcast findPodcastForUrl(String url) {
+        final List<Podcast> snapshot = podcastList;
+
         // Make sure search only runs once the podcast list is actually
         // available.
-        if (podcastList != null) {
+        if (snapshot != null) {
 
             // Find the podcast object
-            for (Podcast podcast : podcastList)
+            for (Podcast podcast : snapshot)
                 if (podcast.getUrl().equals(url))
                     return podcast;
         }
@@ -570,11 +875,13 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
      * @return The episode object, or <code>null</code> if not found.
      */
     public Episode findEpisodeForUrl(String url) {
+        final List<Podcast> snapshot = podcastList;
+
         // Make sure search only runs once the podcast list is actually
         // available.
-        if (podcastList != null && url != null) {
+        if (snapshot != null && url != null) {
             // Go try find the episode
-            for (Podcast podcast : podcastList)
+            for (Podcast podcast : snapshot)
                 for (Episode episode : podcast.getEpisodes())
                     if (episode.getMediaUrl().equals(url))
                         return episode;
@@ -583,6 +890,30 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
         return null;
     }
 
+    /**
+     * Find the episode object for given URL. Note that this will only search
+     * episodes currently loaded. If the podcast the episode belongs to is
+     * known, only its episodes are searched, otherwise this falls back to
+     * {@link #findEpisodeForUrl(String)}.
+     * 
+     * @param url URL of episode to look for.
+     * @param podcastUrl URL of the podcast the episode belongs to.
+     * @return The episode object, or <code>null</code> if not found.
+     */
+    public Episode findEpisodeForUrl(String url, String podcastUrl) {
+        final Podcast podcast = findPodcastForUrl(podcastUrl);
+
+        if (podcast != null && url != null) {
+            for (Episode episode : podcast.getEpisodes())
+                if (episode.getMediaUrl().equals(url))
+                    return episode;
+
+            return null;
+        }
+        else
+            return findEpisodeForUrl(url);
+    }
+
     /**
      * Add load podcast list listener.
      * 
@@ -709,15 +1040,10 @@ public class PodcastManager implements OnLoadPodcastListListener, OnLoadPodcastL
     }
 
     /**
-     * Clear list. Add a small number of sample podcast to the list for testing.
-     * Sort list.
+     * @return Whether the calling thread is the main thread all changes to the
+     *         manager's state are made on.
      */
-    private void putSamplePodcasts() {
-        podcastList.clear();
-
-        podcastList.add(new Podcast("your podcast title",
-                "your podcast link here"));
-
-        Collections.sort(podcastList);
+    private boolean isOnMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
     }
 }
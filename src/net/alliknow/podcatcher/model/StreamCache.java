@@ -0,0 +1,604 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The disk cache for streamed episode media files. Media files are cached
+ * sparsely: each entry holds the byte ranges of the file that went through
+ * the cache so far at their actual position in a local data file, so seeking
+ * while streaming leaves holes that can be filled later. An index file maps
+ * each key (the episode's media URL) to its data file, the file's total
+ * length and content type, and the ranges available. The index is read once
+ * and kept in memory. The total size of all cached ranges is capped, the
+ * least recently used entries not in use are evicted first. Once all of a
+ * media file is cached, it can be promoted to an episode download with
+ * {@link #promote(String, File)}.
+ * <p>
+ * All methods might block on disk I/O, do not call them from the main thread.
+ * </p>
+ */
+public class StreamCache {
+
+    /** The name of the stream cache directory */
+    private static final String CACHE_DIR = "streamCache";
+    /** The name of the index file */
+    private static final String INDEX_FILE = "index";
+    /** The version of the index file format */
+    private static final String INDEX_VERSION = "1";
+    /** The file name ending for data files */
+    private static final String DATA_ENDING = ".stream";
+    /** The file name ending for temporary files */
+    private static final String PARTIAL_ENDING = ".part";
+    /** The separator for the fields of an index line */
+    private static final String SEPARATOR = "\t";
+    /** The maximum total size of all cached ranges in bytes */
+    private static final long MAX_SIZE = 256l * 1024 * 1024;
+    /** The amount of bytes written to an entry before the index is saved */
+    private static final long INDEX_SAVE_INTERVAL = 2 * 1024 * 1024;
+    /** Our log tag */
+    private static final String TAG = "StreamCache";
+
+    /** The single instance */
+    private static StreamCache cache;
+
+    /** The charset for the index file */
+    private final Charset utf8 = Charset.forName("UTF-8");
+    /** The cache directory */
+    private final File dir;
+    /** The index, in access order (least recently used first) */
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * An entry in the stream cache, i.e. the cached parts of one media file.
+     * Get it via {@link StreamCache#open(String)} and hand it back via
+     * {@link StreamCache#close(Entry)} when done. Entries are safe to use from
+     * several threads at once.
+     */
+    public static class Entry {
+
+        /** The key, i.e. the media URL */
+        private final String key;
+        /** The name of the data file (without ending) */
+        private final String name;
+        /** The total length of the media file, -1 if unknown */
+        private long length = -1;
+        /** The media file's content type */
+        private String contentType;
+        /** The ranges available, start position mapped to end (exclusive) */
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+        /** The number of users that opened the entry */
+        private int users;
+        /** The flag to indicate that the data file is being copied away */
+        private boolean promoting;
+        /** The data file while the entry is in use */
+        private RandomAccessFile data;
+        /** The bytes written since the index was last saved */
+        private long unsaved;
+
+        private Entry(String key, String name) {
+            this.key = key;
+            this.name = name;
+        }
+
+        /**
+         * @return The key, i.e. the media URL.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return The total length of the media file in bytes or -1 if not
+         *         known yet.
+         */
+        public synchronized long getLength() {
+            return length;
+        }
+
+        /**
+         * @return The media file's content type or <code>null</code> if not
+         *         known.
+         */
+        public synchronized String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Set the media file's details, as soon as the server tells about
+         * them.
+         * 
+         * @param length The total length in bytes.
+         * @param contentType The content type, might be <code>null</code>.
+         */
+        public synchronized void setDetails(long length, String contentType) {
+            // The file changed on the server, the ranges are worthless
+            if (this.length >= 0 && this.length != length)
+                ranges.clear();
+
+            this.length = length;
+            this.contentType = contentType;
+        }
+
+        /**
+         * Find out how far the cached range at a position reaches.
+         * 
+         * @param position The position in the media file.
+         * @return The end (exclusive) of the cached range covering the
+         *         position, or the position itself if it is not cached.
+         */
+        public synchronized long getCachedEnd(long position) {
+            final Map.Entry<Long, Long> range = ranges.floorEntry(position);
+
+            return range == null || range.getValue() <= position ? position : range.getValue();
+        }
+
+        /**
+         * Find out how far the gap at a position reaches.
+         * 
+         * @param position The position in the media file, should not be
+         *            cached.
+         * @return The start of the next cached range after the position, or
+         *         the file length if there is none (-1 if unknown).
+         */
+        public synchronized long getMissingEnd(long position) {
+            final Long next = ranges.higherKey(position);
+
+            return next == null ? length : next;
+        }
+
+        /**
+         * @return The number of bytes cached.
+         */
+        public synchronized long getCachedSize() {
+            long size = 0;
+            for (Map.Entry<Long, Long> range : ranges.entrySet())
+                size += range.getValue() - range.getKey();
+
+            return size;
+        }
+
+        /**
+         * @return Whether the complete media file is cached.
+         */
+        public synchronized boolean isComplete() {
+            return length >= 0 && getCachedEnd(0) >= length;
+        }
+
+        /**
+         * Read cached bytes. Make sure they are available using
+         * {@link #getCachedEnd(long)} first.
+         * 
+         * @param position The position in the media file to read from.
+         * @param buffer The buffer to read into.
+         * @param offset The offset in the buffer.
+         * @param count The number of bytes to read at most.
+         * @return The number of bytes read.
+         * @throws IOException If the data file cannot be read.
+         */
+        public synchronized int read(long position, byte[] buffer, int offset, int count)
+                throws IOException {
+            if (data == null)
+                throw new IOException("Stream cache entry not open: " + key);
+
+            data.seek(position);
+            return data.read(buffer, offset, count);
+        }
+
+        /**
+         * Write bytes loaded from the server to the cache.
+         * 
+         * @param position The position in the media file the bytes are at.
+         * @param buffer The buffer to write from.
+         * @param offset The offset in the buffer.
+         * @param count The number of bytes to write.
+         * @throws IOException If the data file cannot be written.
+         */
+        public synchronized void write(long position, byte[] buffer, int offset, int count)
+                throws IOException {
+            if (data == null)
+                throw new IOException("Stream cache entry not open: " + key);
+
+            data.seek(position);
+            data.write(buffer, offset, count);
+
+            addRange(position, position + count);
+            unsaved += count;
+        }
+
+        private void addRange(long start, long end) {
+            long mergedStart = start;
+            long mergedEnd = end;
+
+            // Merge with the range before if it touches us
+            final Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                mergedStart = before.getKey();
+                mergedEnd = Math.max(mergedEnd, before.getValue());
+            }
+
+            // Swallow all ranges starting within us
+            Map.Entry<Long, Long> after = ranges.ceilingEntry(mergedStart);
+            while (after != null && after.getKey() <= mergedEnd) {
+                mergedEnd = Math.max(mergedEnd, after.getValue());
+                ranges.remove(after.getKey());
+
+                after = ranges.ceilingEntry(mergedStart);
+            }
+
+            ranges.put(mergedStart, mergedEnd);
+        }
+    }
+
+    private StreamCache(File dir) {
+        this.dir = dir;
+
+        dir.mkdirs();
+        readIndex();
+        removeUnreferencedFiles();
+    }
+
+    /**
+     * Get the singleton instance of the stream cache. The index is read on
+     * the first call.
+     * 
+     * @param context Context to find the cache directory with.
+     * @return The single instance of the stream cache.
+     */
+    public static synchronized StreamCache getInstance(Context context) {
+        if (cache == null)
+            cache = new StreamCache(new File(context.getCacheDir(), CACHE_DIR));
+
+        return cache;
+    }
+
+    /**
+     * Open the entry for a media file, creating it if not present. The entry
+     * will not be evicted until handed back via {@link #close(Entry)}.
+     * 
+     * @param key The media URL.
+     * @return The entry to read and write.
+     * @throws IOException If the data file cannot be opened.
+     */
+    public synchronized Entry open(String key) throws IOException {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            entry = new Entry(key, toName(key));
+            index.put(key, entry);
+        }
+
+        synchronized (entry) {
+            if (entry.users == 0)
+                entry.data = new RandomAccessFile(getFile(entry), "rw");
+
+            entry.users++;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Hand back an entry opened via {@link #open(String)}. Changes are saved
+     * to the index and entries might be evicted to keep the cache within its
+     * size limit.
+     * 
+     * @param entry The entry to close.
+     */
+    public synchronized void close(Entry entry) {
+        synchronized (entry) {
+            if (--entry.users == 0) {
+                try {
+                    entry.data.close();
+                } catch (IOException e) {
+                    // Nothing more we could do here
+                }
+
+                entry.data = null;
+            }
+        }
+
+        trimToSize();
+        writeIndex();
+    }
+
+    /**
+     * Save the index if enough was written to an entry since the last time.
+     * Call this every now and then while streaming, so not all is lost if
+     * the app is killed.
+     * 
+     * @param entry The entry written to.
+     */
+    public synchronized void sync(Entry entry) {
+        synchronized (entry) {
+            if (entry.unsaved < INDEX_SAVE_INTERVAL)
+                return;
+        }
+
+        writeIndex();
+    }
+
+    /**
+     * Move a completely cached media file to the given location, e.g. to make
+     * it an episode download without loading it again. The entry is removed
+     * from the cache.
+     * 
+     * @param key The media URL.
+     * @param target The file to move the media file to.
+     * @return <code>true</code> iff the file is now at the target location,
+     *         <code>false</code> if the media file is not completely cached,
+     *         in use, or cannot be moved.
+     */
+    public boolean promote(String key, File target) {
+        final Entry entry;
+        final File file;
+        synchronized (this) {
+            entry = index.get(key);
+            if (entry == null || entry.users > 0 || entry.promoting || !entry.isComplete())
+                return false;
+
+            file = getFile(entry);
+            try {
+                // Make sure there is nothing beyond the media file's end
+                final RandomAccessFile data = new RandomAccessFile(file, "rw");
+                data.setLength(entry.getLength());
+                data.close();
+
+                // Rename if on the same volume
+                target.getParentFile().mkdirs();
+                if (file.renameTo(target)) {
+                    index.remove(key);
+                    writeIndex();
+
+                    return true;
+                }
+            } catch (IOException ioe) {
+                Log.w(TAG, "Cannot promote " + key + " to " + target, ioe);
+
+                return false;
+            }
+
+            // Keep the entry while we copy, but do not block the cache
+            entry.promoting = true;
+        }
+
+        boolean copied = false;
+        try {
+            copy(file, target);
+            copied = true;
+        } catch (IOException ioe) {
+            Log.w(TAG, "Cannot promote " + key + " to " + target, ioe);
+
+            target.delete();
+        }
+
+        synchronized (this) {
+            entry.promoting = false;
+
+            if (copied)
+                remove(key);
+        }
+
+        return copied;
+    }
+
+    /**
+     * Remove the cached parts of a media file. Entries in use are kept.
+     * 
+     * @param key The media URL.
+     */
+    public synchronized void remove(String key) {
+        final Entry entry = index.get(key);
+
+        if (entry != null && entry.users == 0 && !entry.promoting) {
+            index.remove(key);
+            getFile(entry).delete();
+
+            writeIndex();
+        }
+    }
+
+    /**
+     * @return The total size of all cached ranges in bytes.
+     */
+    public synchronized long getSize() {
+        long size = 0;
+        for (Entry entry : index.values())
+            size += entry.getCachedSize();
+
+        return size;
+    }
+
+    private File getFile(Entry entry) {
+        return new File(dir, entry.name + DATA_ENDING);
+    }
+
+    private void trimToSize() {
+        final Iterator<Entry> entries = index.values().iterator();
+
+        while (getSize() > MAX_SIZE && entries.hasNext()) {
+            final Entry eldest = entries.next();
+
+            if (eldest.users == 0 && !eldest.promoting) {
+                entries.remove();
+
+                getFile(eldest).delete();
+            }
+        }
+    }
+
+    private void removeUnreferencedFiles() {
+        final Set<String> referenced = new HashSet<>();
+        for (Entry entry : index.values())
+            referenced.add(entry.name + DATA_ENDING);
+        referenced.add(INDEX_FILE);
+
+        // This also cleans up data written after the index was last saved
+        final File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                if (!referenced.contains(file.getName()))
+                    file.delete();
+    }
+
+    private void readIndex() {
+        final File file = new File(dir, INDEX_FILE);
+        if (!file.exists())
+            return;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), utf8));
+
+            if (INDEX_VERSION.equals(reader.readLine())) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split(SEPARATOR, -1);
+
+                    if (fields.length == 5) {
+                        final Entry entry = new Entry(fields[0], fields[1]);
+                        entry.length = Long.parseLong(fields[2]);
+                        entry.contentType = fields[3].isEmpty() ? null : fields[3];
+
+                        for (String range : fields[4].split(","))
+                            if (!range.isEmpty()) {
+                                final String[] bounds = range.split("-");
+                                entry.addRange(Long.parseLong(bounds[0]),
+                                        Long.parseLong(bounds[1]));
+                            }
+
+                        // Skip entries whose file has gone
+                        if (getFile(entry).exists())
+                            index.put(entry.key, entry);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot read stream cache index, starting over", e);
+
+            index.clear();
+        } finally {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                // Nothing more we could do here
+            }
+        }
+    }
+
+    private void writeIndex() {
+        // Write to a temporary file first, so the index is never left broken
+        final File file = new File(dir, INDEX_FILE);
+        final File temp = new File(dir, INDEX_FILE + PARTIAL_ENDING);
+
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), utf8));
+
+            writer.write(INDEX_VERSION);
+            writer.newLine();
+            for (Entry entry : index.values())
+                synchronized (entry) {
+                    final StringBuilder ranges = new StringBuilder();
+                    for (Map.Entry<Long, Long> range : entry.ranges.entrySet())
+                        ranges.append(ranges.length() == 0 ? "" : ",").append(range.getKey())
+                                .append('-').append(range.getValue());
+
+                    writer.write(toField(entry.key) + SEPARATOR + entry.name + SEPARATOR
+                            + entry.length + SEPARATOR + toField(entry.contentType)
+                            + SEPARATOR + ranges);
+                    writer.newLine();
+
+                    entry.unsaved = 0;
+                }
+
+            writer.close();
+            writer = null;
+
+            if (!temp.renameTo(file))
+                throw new IOException("Cannot move index to " + file);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write stream cache index", e);
+        } finally {
+            try {
+                writer.close();
+            } catch (Exception e) {
+                // Nothing more we could do here
+            }
+        }
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        final InputStream in = new FileInputStream(source);
+        final OutputStream out = new FileOutputStream(target);
+
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                out.write(buffer, 0, read);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static String toName(String key) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+
+            final StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash)
+                result.append(String.format("%02x", b & 0xff));
+
+            return result.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Every platform has SHA-1 and UTF-8, but anyway
+            return String.valueOf(key.hashCode() & 0x7fffffff) + new Date().getTime();
+        }
+    }
+
+    private static String toField(String value) {
+        // Make sure values do not break the index format
+        return value == null ? "" : value.replaceAll("[\\t\\r\\n]", " ");
+    }
+}
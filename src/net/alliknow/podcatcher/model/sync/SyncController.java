@@ -210,6 +210,14 @@ public abstract class SyncController implements OnLoadPodcastListener, OnChangeP
         }
     }
 
+    @Override
+    public void onPodcastMoved(Podcast podcast, String oldUrl) {
+        // To the services we sync with, this is the same as unsubscribing from
+        // the old location and subscribing to the new one
+        onPodcastRemoved(new Podcast(podcast.getName(), oldUrl));
+        onPodcastAdded(podcast);
+    }
+
     @Override
     public void onPodcastLoadProgress(Podcast podcast, Progress progress) {
         // pass, this is not a sync event
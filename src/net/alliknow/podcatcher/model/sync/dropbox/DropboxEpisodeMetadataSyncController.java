@@ -30,6 +30,7 @@ import net.alliknow.podcatcher.model.types.Podcast;
 
 import java.util.AbstractMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 
 /**
@@ -55,6 +56,8 @@ abstract class DropboxEpisodeMetadataSyncController extends DropboxPodcastListSy
 
     /** The sync running flag */
     private boolean syncRunning = false;
+    /** The episode metadata version last published to Dropbox */
+    private long publishedMetadataVersion = 0;
 
     /** Our async task that does the actual work for us */
     private class ApplyEpisodeMetadataTask extends AsyncTask<Void, Entry<Episode, DbxRecord>, Void> {
@@ -155,12 +158,21 @@ abstract class DropboxEpisodeMetadataSyncController extends DropboxPodcastListSy
 
     @Override
     protected void syncEpisodeMetadata() {
-        // For now, we only pull in what has been changed so far
-        syncStore();
+        // Publish the state of all episodes changed since we last looked. That
+        // way, changes done while the controller was inactive are included.
+        // Get the version first, changes coming in meanwhile will simply be
+        // published again next time.
+        final long version = episodeManager.getMetadataVersion();
+        for (Episode episode : episodeManager.getEpisodesChangedSince(publishedMetadataVersion)) {
+            onStateChanged(episode, episodeManager.getState(episode));
+
+            final int resumeAt = episodeManager.getResumeAt(episode);
+            onResumeAtChanged(episode, resumeAt == 0 ? null : resumeAt);
+        }
+        publishedMetadataVersion = version;
 
-        // In a later stage, one could actually walk through all episodes here
-        // and publish their state to the Dropbox data store. That way, even
-        // changes done when the sync controller was inactive would be included.
+        // Pull in what has been changed remotely
+        syncStore();
     }
 
     @Override
@@ -205,7 +217,7 @@ abstract class DropboxEpisodeMetadataSyncController extends DropboxPodcastListSy
     }
 
     @Override
-    public void onDownloadDeleted(Episode episode) {
+    public void onDownloadsDeleted(List<Episode> episodes) {
         // pass, deletion events are not synced via Dropbox
     }
 
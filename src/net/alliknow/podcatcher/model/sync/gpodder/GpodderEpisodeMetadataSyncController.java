@@ -224,8 +224,9 @@ abstract class GpodderEpisodeMetadataSyncController extends GpodderPodcastListSy
     }
 
     @Override
-    public void onDownloadDeleted(Episode episode) {
-        actions.add(prepareAction(episode, Action.DELETE, 0));
+    public void onDownloadsDeleted(List<Episode> episodes) {
+        for (Episode episode : episodes)
+            actions.add(prepareAction(episode, Action.DELETE, 0));
     }
 
     private EpisodeAction prepareAction(Episode episode, Action action, int position) {
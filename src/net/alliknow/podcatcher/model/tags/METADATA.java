@@ -35,4 +35,8 @@ public class METADATA {
     public static final String PODCAST_NAME = "podcastName";
     public static final String PODCAST_URL = "podcastUrl";
     public static final String LOCAL_FILE_PATH = "localFilePath";
+    public static final String LAST_TOUCHED = "lastTouched";
+    public static final String DOWNLOAD_PRIORITY = "downloadPriority";
+    public static final String DOWNLOAD_QUEUED_AT = "downloadQueuedAt";
+    public static final String GENERATION = "generation";
 }
@@ -32,4 +32,6 @@ public abstract class OPML {
 
     public static final String EXTRA_USER = "user";
     public static final String EXTRA_PASS = "pass";
+    public static final String EXTRA_REDIRECT = "redirect";
+    public static final String EXTRA_REDIRECT_COUNT = "redirectCount";
 }
@@ -0,0 +1,124 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.tasks;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.os.AsyncTask;
+
+import net.alliknow.podcatcher.listeners.OnDeleteDownloadsListener;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Deletes a batch of downloaded episodes. All downloads are removed from the
+ * system's {@link DownloadManager} with one call, the files left are then
+ * deleted in directory order. The task does not alter the metadata, callers
+ * are expected to have updated the records before.
+ */
+public class DeleteDownloadsTask extends AsyncTask<Void, Void, DeleteDownloadsTask.Result> {
+
+    /** Our context */
+    private final Context context;
+    /** The download manager ids to remove */
+    private final long[] downloadIds;
+    /** The file paths to delete */
+    private final List<String> filePaths;
+    /** The call-back */
+    private final OnDeleteDownloadsListener listener;
+
+    /** The result holder */
+    static class Result {
+
+        /** The number of files deleted */
+        int deleted;
+        /** The space freed */
+        long reclaimed;
+    }
+
+    /**
+     * Create new task.
+     * 
+     * @param context Context to get the download manager from.
+     * @param downloadIds The download manager ids to remove, ids less or equal
+     *            zero are ignored.
+     * @param filePaths The absolute paths of the files to delete.
+     * @param listener Call-back to alert on completion, might be
+     *            <code>null</code>.
+     */
+    public DeleteDownloadsTask(Context context, Collection<Long> downloadIds,
+            Collection<String> filePaths, OnDeleteDownloadsListener listener) {
+        this.context = context;
+        this.filePaths = new ArrayList<>(filePaths);
+        this.listener = listener;
+
+        int count = 0;
+        final long[] ids = new long[downloadIds.size()];
+        for (Long id : downloadIds)
+            if (id != null && id > 0)
+                ids[count++] = id;
+
+        this.downloadIds = new long[count];
+        System.arraycopy(ids, 0, this.downloadIds, 0, count);
+    }
+
+    @Override
+    protected Result doInBackground(Void... nothing) {
+        final Result result = new Result();
+
+        // Measure first, the download manager might delete some of the files
+        Collections.sort(filePaths);
+        final long[] sizes = new long[filePaths.size()];
+        for (int index = 0; index < sizes.length; index++)
+            sizes[index] = new File(filePaths.get(index)).length();
+
+        // This should delete the downloads and remove all information from
+        // the download manager
+        if (downloadIds.length > 0)
+            try {
+                ((DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE))
+                        .remove(downloadIds);
+            } catch (IllegalArgumentException e) {
+                // There seem to be weird cases where this fails
+            }
+
+        // Make sure the files are deleted since this might not have been taken
+        // care of by DownloadManager.remove() above, the paths are sorted, so
+        // we work through one directory at a time
+        for (int index = 0; index < sizes.length; index++) {
+            final File file = new File(filePaths.get(index));
+
+            if (file.delete() || (sizes[index] > 0 && !file.exists())) {
+                result.deleted++;
+                result.reclaimed += sizes[index];
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    protected void onPostExecute(Result result) {
+        if (listener != null)
+            listener.onDownloadsDeleted(result.deleted, result.reclaimed);
+    }
+}
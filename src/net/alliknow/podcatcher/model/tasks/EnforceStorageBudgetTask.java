@@ -0,0 +1,238 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.tasks;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+
+import net.alliknow.podcatcher.SettingsActivity;
+import net.alliknow.podcatcher.listeners.OnEnforceStorageBudgetListener;
+import net.alliknow.podcatcher.model.types.EpisodeMetadata;
+import net.alliknow.podcatcher.preferences.DownloadFolderPreference;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Checks the space taken by the downloaded episodes against the storage budget
+ * and finds the downloads to delete to get back within it. The budget is
+ * either given in bytes or as a percentage of the space available to the
+ * downloads (i.e. the free space plus the space taken by the downloads). The
+ * downloads are evicted in this order:
+ * <ol>
+ * <li>Episodes already played (marked old), least recently used first.</li>
+ * <li>Episodes not in the playlist, least recently used first.</li>
+ * </ol>
+ * Unplayed playlist entries, episodes with a resume position and the episode
+ * playing are never evicted. The task does not alter the
+ * metadata or delete anything, it reports the evictions needed to its
+ * listener.
+ */
+public class EnforceStorageBudgetTask extends
+        AsyncTask<Void, Void, EnforceStorageBudgetTask.Plan> {
+
+    /** The budget setting value meaning there is no limit */
+    public static final String UNLIMITED = "0";
+
+    /** Our context */
+    private final Context context;
+    /** The metadata to check (needs to be thread safe) */
+    private final Map<String, EpisodeMetadata> metadata;
+    /** The call-back */
+    private final OnEnforceStorageBudgetListener listener;
+    /** The media URL of the episode playing */
+    private String playingEpisode;
+
+    /** The result holder */
+    static class Plan {
+
+        /** The downloads to evict, in order */
+        Map<String, String> evictions = new LinkedHashMap<>();
+        /** The space taken by all downloads */
+        long used;
+        /** The budget checked against */
+        long budget = Long.MAX_VALUE;
+    }
+
+    /**
+     * Create new task.
+     * 
+     * @param context Context to read the budget and download folder settings
+     *            from.
+     * @param metadata The metadata map to check. We rely on getting an iterator
+     *            from this being thread safe.
+     * @param listener Call-back to alert on completion.
+     */
+    public EnforceStorageBudgetTask(Context context, Map<String, EpisodeMetadata> metadata,
+            OnEnforceStorageBudgetListener listener) {
+        this.context = context;
+        this.metadata = metadata;
+        this.listener = listener;
+    }
+
+    /**
+     * Set the episode playing (or last started), its download is never
+     * evicted. Default is <code>null</code>.
+     * 
+     * @param key The episode's media URL.
+     */
+    public void setPlayingEpisode(String key) {
+        this.playingEpisode = key;
+    }
+
+    @Override
+    protected Plan doInBackground(Void... nothing) {
+        final Plan result = new Plan();
+
+        final String setting = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(SettingsActivity.KEY_STORAGE_BUDGET, UNLIMITED);
+        final File podcastDir = new File(PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(SettingsActivity.KEY_DOWNLOAD_FOLDER,
+                        DownloadFolderPreference.getDefaultDownloadFolder().getAbsolutePath()));
+
+        // Measure all downloads, this is the part that needs to go off the
+        // main thread
+        final Map<String, EpisodeMetadata> downloads = new HashMap<>();
+        final Map<String, Long> sizes = new HashMap<>();
+        for (Entry<String, EpisodeMetadata> entry : metadata.entrySet()) {
+            final EpisodeMetadata meta = entry.getValue();
+
+            if (meta.downloadId != null && meta.filePath != null) {
+                final long size = new File(meta.filePath).length();
+
+                if (size > 0) {
+                    // The episode playing counts, but is not up for eviction
+                    if (!entry.getKey().equals(playingEpisode))
+                        downloads.put(entry.getKey(), meta);
+                    sizes.put(entry.getKey(), size);
+                    result.used += size;
+                }
+            }
+        }
+
+        result.budget = getBudget(setting, podcastDir.getUsableSpace() + result.used);
+        for (String key : selectEvictions(downloads, sizes, result.budget))
+            result.evictions.put(key, downloads.get(key).filePath);
+
+        return result;
+    }
+
+    @Override
+    protected void onPostExecute(Plan result) {
+        if (listener != null)
+            listener.onStorageBudgetChecked(result.evictions, result.used, result.budget);
+    }
+
+    /**
+     * Find the budget in bytes for the given setting.
+     * 
+     * @param setting The budget setting, this is either the number of bytes,
+     *            a percentage (e.g. "25%") or {@link #UNLIMITED}.
+     * @param available The space (in bytes) available to the downloads, i.e.
+     *            the free space plus the space already taken by downloads.
+     * @return The budget in bytes, {@link Long#MAX_VALUE} if unlimited or the
+     *         setting cannot be read.
+     */
+    public static long getBudget(String setting, long available) {
+        try {
+            final String value = setting.trim();
+            final long budget;
+
+            if (value.endsWith("%"))
+                budget = available / 100
+                        * Long.parseLong(value.substring(0, value.length() - 1).trim());
+            else
+                budget = Long.parseLong(value);
+
+            return budget > 0 ? budget : Long.MAX_VALUE;
+        } catch (NullPointerException | NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Select the downloads to delete in order to get within the budget.
+     * 
+     * @param downloads The metadata records of the downloads to consider.
+     * @param sizes The file sizes (in bytes) for the downloads, by key. Might
+     *            include downloads not up for eviction.
+     * @param budget The budget (in bytes).
+     * @return The keys of the downloads to evict, in eviction order. Might be
+     *         empty, but not <code>null</code>. If the budget cannot be met
+     *         without touching unplayed playlist entries or episodes with a
+     *         resume position, all other downloads are evicted.
+     */
+    public static List<String> selectEvictions(final Map<String, EpisodeMetadata> downloads,
+            Map<String, Long> sizes, long budget) {
+        final List<String> result = new ArrayList<>();
+
+        long used = 0;
+        for (Long size : sizes.values())
+            used += size;
+        if (used <= budget)
+            return result;
+
+        final List<String> candidates = new ArrayList<>();
+        for (Entry<String, EpisodeMetadata> entry : downloads.entrySet()) {
+            final EpisodeMetadata meta = entry.getValue();
+
+            // Episodes the user is in the middle of stay
+            if (meta.resumeAt == null && (isPlayed(meta) || meta.playlistPosition == null))
+                candidates.add(entry.getKey());
+        }
+
+        Collections.sort(candidates, new Comparator<String>() {
+
+            @Override
+            public int compare(String lhs, String rhs) {
+                final EpisodeMetadata left = downloads.get(lhs);
+                final EpisodeMetadata right = downloads.get(rhs);
+
+                // 1. Played episodes first
+                if (isPlayed(left) != isPlayed(right))
+                    return isPlayed(left) ? -1 : 1;
+                // 2. Least recently used first
+                else
+                    return left.lastTouched < right.lastTouched ? -1 :
+                            (left.lastTouched == right.lastTouched ? 0 : 1);
+            }
+        });
+
+        for (String key : candidates) {
+            if (used <= budget)
+                break;
+
+            result.add(key);
+            used -= sizes.get(key);
+        }
+
+        return result;
+    }
+
+    private static boolean isPlayed(EpisodeMetadata meta) {
+        return meta.isOld != null && meta.isOld;
+    }
+}
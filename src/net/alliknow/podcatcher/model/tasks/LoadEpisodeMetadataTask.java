@@ -19,40 +19,44 @@ package net.alliknow.podcatcher.model.tasks;
 
 import android.content.Context;
 import android.os.AsyncTask;
-import android.preference.PreferenceManager;
 
-import net.alliknow.podcatcher.SettingsActivity;
 import net.alliknow.podcatcher.listeners.OnLoadEpisodeMetadataListener;
-import net.alliknow.podcatcher.model.EpisodeDownloadManager;
 import net.alliknow.podcatcher.model.EpisodeManager;
 import net.alliknow.podcatcher.model.tags.METADATA;
 import net.alliknow.podcatcher.model.types.EpisodeMetadata;
 import net.alliknow.podcatcher.model.types.Progress;
-import net.alliknow.podcatcher.preferences.DownloadFolderPreference;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Load the episode metadata from the file system.
+ * Load the episode metadata from the file system. This does not check the
+ * download records against the files actually present, see
+ * {@link ReconcileDownloadsTask}.
  */
 public class LoadEpisodeMetadataTask extends
         AsyncTask<Void, Progress, Map<String, EpisodeMetadata>> {
 
+    /** The root tag we wrap the journal content into */
+    private static final String JOURNAL_START = "<journal>";
+    /** The end tag for the journal root */
+    private static final String JOURNAL_END = "</journal>";
+
     /** Our context */
     private Context context;
     /** The listener callback */
     private OnLoadEpisodeMetadataListener listener;
+    /** The generation of the metadata file */
+    private long generation = 0;
 
     /**
      * Create new task.
@@ -75,41 +79,9 @@ public class LoadEpisodeMetadataTask extends
         InputStream fileStream = null;
 
         try {
-            // 1. Build parser
-            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-            // Create the parser to use
-            XmlPullParser parser = factory.newPullParser();
-
-            // 2. Open default podcast file
+            // 1. Open default metadata file and parse it
             fileStream = context.openFileInput(EpisodeManager.METADATA_FILENAME);
-            parser.setInput(fileStream, StoreFileTask.FILE_ENCODING);
-
-            // 3. Parse the OPML file
-            int eventType = parser.next();
-
-            // Read complete document
-            while (eventType != XmlPullParser.END_DOCUMENT) {
-                // We only need start tags here
-                if (eventType == XmlPullParser.START_TAG) {
-                    String tagName = parser.getName();
-
-                    // Metadata found
-                    if (tagName.equalsIgnoreCase(METADATA.METADATA)) {
-                        final String key = parser.getAttributeValue(null, METADATA.EPISODE_URL);
-                        final EpisodeMetadata metadata = readMetadata(parser);
-
-                        result.put(key, metadata);
-                    }
-
-                }
-
-                // Done, get next parsing event
-                eventType = parser.next();
-            }
-
-            // 4. Do some house keeping since file availability might have
-            // changed
-            cleanMetadata(result);
+            readMetadataFile(fileStream, result, false);
         } catch (Exception e) {
             // Pass, metadata might be empty, that's okay
         } finally {
@@ -122,13 +94,91 @@ public class LoadEpisodeMetadataTask extends
                 }
         }
 
+        InputStream journalStream = null;
+        try {
+            // 2. Apply the changes from the journal. It holds a plain list of
+            // records, so we wrap it into a root tag to be able to parse it. If
+            // the last record was only written partially, the parser will fail
+            // there and all records before still apply. Records already
+            // included in the metadata file are skipped.
+            journalStream = new SequenceInputStream(new SequenceInputStream(
+                    new ByteArrayInputStream(JOURNAL_START.getBytes(StoreFileTask.FILE_ENCODING)),
+                    context.openFileInput(EpisodeManager.METADATA_JOURNAL_FILENAME)),
+                    new ByteArrayInputStream(JOURNAL_END.getBytes(StoreFileTask.FILE_ENCODING)));
+            readMetadataFile(journalStream, result, true);
+        } catch (Exception e) {
+            // Pass, there might be no journal
+        } finally {
+            // Make sure we close the file stream
+            if (journalStream != null)
+                try {
+                    journalStream.close();
+                } catch (IOException e) {
+                    // Nothing we can do here
+                }
+        }
+
         return result;
     }
 
     @Override
     protected void onPostExecute(Map<String, EpisodeMetadata> result) {
         if (listener != null)
-            listener.onEpisodeMetadataLoaded(result);
+            listener.onEpisodeMetadataLoaded(result, generation);
+    }
+
+    private void readMetadataFile(InputStream fileStream, Map<String, EpisodeMetadata> result,
+            boolean isJournal) throws XmlPullParserException, IOException {
+        // Build parser
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+        // Create the parser to use
+        XmlPullParser parser = factory.newPullParser();
+        parser.setInput(fileStream, StoreFileTask.FILE_ENCODING);
+
+        // Parse the file
+        int eventType = parser.next();
+
+        // Read complete document
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            // We only need start tags here
+            if (eventType == XmlPullParser.START_TAG) {
+                String tagName = parser.getName();
+
+                // The metadata file's root tells its generation
+                if (!isJournal && tagName.equalsIgnoreCase("xml"))
+                    generation = parseGeneration(parser, 0);
+                // Metadata found
+                else if (tagName.equalsIgnoreCase(METADATA.METADATA)) {
+                    final String key = parser.getAttributeValue(null, METADATA.EPISODE_URL);
+                    // Journal records written before we had generations
+                    // always apply
+                    final long recordGeneration = parseGeneration(parser, Long.MAX_VALUE);
+                    final EpisodeMetadata metadata = readMetadata(parser);
+
+                    // Journal records included in the metadata file already
+                    // are skipped, those without data are deletions
+                    final boolean skip = isJournal && recordGeneration <= generation;
+                    if (!skip && isJournal && !metadata.hasData())
+                        result.remove(key);
+                    else if (!skip)
+                        result.put(key, metadata);
+                }
+
+            }
+
+            // Done, get next parsing event
+            eventType = parser.next();
+        }
+    }
+
+    private long parseGeneration(XmlPullParser parser, long defaultValue) {
+        final String value = parser.getAttributeValue(null, METADATA.GENERATION);
+
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
     }
 
     private EpisodeMetadata readMetadata(XmlPullParser parser)
@@ -169,56 +219,22 @@ public class LoadEpisodeMetadataTask extends
                     result.isOld = Boolean.parseBoolean(parser.nextText());
                 else if (tagName.equalsIgnoreCase(METADATA.PLAYLIST_POSITION))
                     result.playlistPosition = Integer.parseInt(parser.nextText());
+                else if (tagName.equalsIgnoreCase(METADATA.LAST_TOUCHED))
+                    result.lastTouched = Long.parseLong(parser.nextText());
+                else if (tagName.equalsIgnoreCase(METADATA.DOWNLOAD_PRIORITY))
+                    result.downloadPriority = Integer.parseInt(parser.nextText());
+                else if (tagName.equalsIgnoreCase(METADATA.DOWNLOAD_QUEUED_AT))
+                    result.downloadQueuedAt = Long.parseLong(parser.nextText());
             }
 
             // Done, get next parsing event
             eventType = parser.next();
         }
 
-        return result;
-    }
-
-    private void cleanMetadata(Map<String, EpisodeMetadata> result) {
-        // Find download folder
-        File podcastDir = new File(PreferenceManager.getDefaultSharedPreferences(context)
-                .getString(SettingsActivity.KEY_DOWNLOAD_FOLDER,
-                        DownloadFolderPreference.getDefaultDownloadFolder().getAbsolutePath()));
-
-        // Handle the case where the download finished while the application was
-        // not running. In this case, there would be a downloadId but no
-        // filePath while the episode media file is actually there.
-        Iterator<Entry<String, EpisodeMetadata>> iterator = result.entrySet().iterator();
-
-        while (iterator.hasNext()) {
-            Entry<String, EpisodeMetadata> entry = iterator.next();
-            // Skip all entries without a download id
-            if (entry.getValue().downloadId == null)
-                continue;
-
-            final File downloadPath = new File(podcastDir,
-                    EpisodeDownloadManager.sanitizeAsFilePath(entry.getValue().podcastName,
-                            entry.getValue().episodeName, entry.getKey()));
-
-            if (entry.getValue().filePath == null && downloadPath.exists())
-                entry.getValue().filePath = downloadPath.getAbsolutePath();
-        }
+        // Records written before we kept track of changes start aging now
+        if (result.lastTouched <= 0)
+            result.lastTouched = System.currentTimeMillis();
 
-        // Handle the case that the media file has been delete from outside the
-        // app. In this case, downloadId and and filePath would be there, but no
-        // file.
-        iterator = result.entrySet().iterator();
-
-        while (iterator.hasNext()) {
-            Entry<String, EpisodeMetadata> entry = iterator.next();
-            // Skip all entries without a download id
-            if (entry.getValue().downloadId == null)
-                continue;
-
-            // Invalidate file path and download id data
-            if (entry.getValue().filePath != null && !new File(entry.getValue().filePath).exists()) {
-                entry.getValue().downloadId = null;
-                entry.getValue().filePath = null;
-            }
-        }
+        return result;
     }
 }
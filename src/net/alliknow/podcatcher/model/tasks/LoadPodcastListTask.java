@@ -184,6 +184,16 @@ public class LoadPodcastListTask extends AsyncTask<Void, Progress, List<Podcast>
             // Set authorization information
             result.setUsername(parser.getAttributeValue("", OPML.EXTRA_USER));
             result.setPassword(parser.getAttributeValue("", OPML.EXTRA_PASS));
+
+            // Set the location the feed moved to
+            final String redirectCount = parser.getAttributeValue("", OPML.EXTRA_REDIRECT_COUNT);
+            if (redirectCount != null)
+                try {
+                    result.restoreRedirect(parser.getAttributeValue("", OPML.EXTRA_REDIRECT),
+                            Integer.parseInt(redirectCount));
+                } catch (NumberFormatException nfe) {
+                    // Ignore, the redirect will be found again
+                }
         } catch (XmlPullParserException e) {
             /* Bad outline, skip */
         } catch (IOException e) {
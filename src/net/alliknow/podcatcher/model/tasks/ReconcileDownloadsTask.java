@@ -0,0 +1,163 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.tasks;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Environment;
+import android.preference.PreferenceManager;
+
+import net.alliknow.podcatcher.SettingsActivity;
+import net.alliknow.podcatcher.listeners.OnReconcileDownloadsListener;
+import net.alliknow.podcatcher.model.EpisodeDownloadManager;
+import net.alliknow.podcatcher.model.types.EpisodeMetadata;
+import net.alliknow.podcatcher.preferences.DownloadFolderPreference;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Checks the download records in the episode metadata against the files
+ * actually present, since file availability might have changed while the
+ * application was not running. This handles two cases:
+ * <ul>
+ * <li>The download finished while the application was not running. There is a
+ * download id but no file path while the episode media file is actually there.
+ * </li>
+ * <li>The media file has been deleted from outside the app. The download id and
+ * the file path are there, but no file.</li>
+ * </ul>
+ * Each directory involved is listed only once, records are then matched
+ * against the file names found. The task does not alter the metadata, it
+ * reports the corrections needed to its listener.
+ */
+public class ReconcileDownloadsTask extends
+        AsyncTask<Void, Void, ReconcileDownloadsTask.Corrections> {
+
+    /** Our context */
+    private final Context context;
+    /** The metadata to check (needs to be thread safe) */
+    private final Map<String, EpisodeMetadata> metadata;
+    /** The call-back */
+    private final OnReconcileDownloadsListener listener;
+
+    /** The directory listings, null values mark unreadable directories */
+    private final Map<File, Set<String>> listings = new HashMap<>();
+    /** Flag to indicate whether the external storage is available at all */
+    private boolean storageAvailable;
+
+    /** The result holder */
+    static class Corrections {
+
+        /** Files found for records without file path */
+        final Map<String, String> found = new HashMap<>();
+        /** Files missing for records with file path */
+        final Map<String, String> missing = new HashMap<>();
+    }
+
+    /**
+     * Create new task.
+     * 
+     * @param context Context to read the download folder setting from.
+     * @param metadata The metadata map to check. We rely on getting an iterator
+     *            from this being thread safe.
+     * @param listener Call-back to alert on completion.
+     */
+    public ReconcileDownloadsTask(Context context, Map<String, EpisodeMetadata> metadata,
+            OnReconcileDownloadsListener listener) {
+        this.context = context;
+        this.metadata = metadata;
+        this.listener = listener;
+    }
+
+    @Override
+    protected Corrections doInBackground(Void... nothing) {
+        final Corrections result = new Corrections();
+
+        // If the storage is not there, we cannot tell anything
+        final String state = Environment.getExternalStorageState();
+        storageAvailable = Environment.MEDIA_MOUNTED.equals(state)
+                || Environment.MEDIA_MOUNTED_READ_ONLY.equals(state);
+
+        // Find download folder
+        final File podcastDir = new File(PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(SettingsActivity.KEY_DOWNLOAD_FOLDER,
+                        DownloadFolderPreference.getDefaultDownloadFolder().getAbsolutePath()));
+
+        for (Entry<String, EpisodeMetadata> entry : metadata.entrySet()) {
+            final EpisodeMetadata meta = entry.getValue();
+            // Skip all entries without a download id
+            if (meta.downloadId == null)
+                continue;
+
+            // Download might have finished, look where it should have gone
+            if (meta.filePath == null) {
+                if (meta.podcastName == null || meta.episodeName == null)
+                    continue;
+
+                final File downloadPath = new File(podcastDir,
+                        EpisodeDownloadManager.sanitizeAsFilePath(meta.podcastName,
+                                meta.episodeName, entry.getKey()));
+
+                if (isPresent(downloadPath) == Boolean.TRUE)
+                    result.found.put(entry.getKey(), downloadPath.getAbsolutePath());
+            }
+            // File might have been deleted
+            else if (isPresent(new File(meta.filePath)) == Boolean.FALSE)
+                result.missing.put(entry.getKey(), meta.filePath);
+        }
+
+        return result;
+    }
+
+    @Override
+    protected void onPostExecute(Corrections result) {
+        if (listener != null)
+            listener.onDownloadsReconciled(result.found, result.missing);
+    }
+
+    /**
+     * @return Whether the file is present, <code>null</code> if we do not know
+     *         because the directory cannot be read (e.g. because the storage
+     *         is not mounted).
+     */
+    private Boolean isPresent(File file) {
+        final File dir = file.getParentFile();
+        if (dir == null)
+            return null;
+
+        // List each directory only once, if it cannot be listed although
+        // the storage is available, it is gone and so are all its files
+        if (!listings.containsKey(dir)) {
+            final String[] names = dir.list();
+
+            if (names != null)
+                listings.put(dir, new HashSet<>(Arrays.asList(names)));
+            else
+                listings.put(dir, storageAvailable ? new HashSet<String>() : null);
+        }
+
+        final Set<String> names = listings.get(dir);
+        return names == null ? null : names.contains(file.getName());
+    }
+}
@@ -0,0 +1,102 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.tasks;
+
+import android.os.AsyncTask;
+
+import net.alliknow.podcatcher.listeners.OnReconcileEpisodeMetadataListener;
+import net.alliknow.podcatcher.model.types.EpisodeMetadata;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Prunes episode metadata records that only carry state information (old/new
+ * and resume times) and are no longer needed because their episode has left
+ * the podcast feed or their podcast was removed. The task works through all
+ * the podcasts given in a single pass over the metadata, so the episode
+ * manager can collect podcast loads and removals and hand them in together.
+ */
+public class ReconcileEpisodeMetadataTask extends AsyncTask<Void, Void, Set<String>> {
+
+    /** The metadata to reconcile (needs to be thread safe) */
+    private final Map<String, EpisodeMetadata> metadata;
+    /** Podcasts loaded, keyed by URL, pointing at their live media URLs */
+    private final Map<String, Set<String>> loadedPodcasts;
+    /** URLs of podcasts removed */
+    private final Set<String> removedPodcasts;
+
+    /** The call-back */
+    private final OnReconcileEpisodeMetadataListener listener;
+
+    /**
+     * Create new task.
+     * 
+     * @param metadata The metadata map to work on. We rely on getting an
+     *            iterator from this being thread safe.
+     * @param loadedPodcasts The podcasts to check records against, keyed by
+     *            podcast URL. Each value is the set of media URLs for the
+     *            episodes currently in that podcast's feed.
+     * @param removedPodcasts URLs of podcasts no longer subscribed.
+     * @param listener Call-back to alert on completion.
+     */
+    public ReconcileEpisodeMetadataTask(Map<String, EpisodeMetadata> metadata,
+            Map<String, Set<String>> loadedPodcasts, Set<String> removedPodcasts,
+            OnReconcileEpisodeMetadataListener listener) {
+        this.metadata = metadata;
+        this.loadedPodcasts = loadedPodcasts;
+        this.removedPodcasts = removedPodcasts;
+        this.listener = listener;
+    }
+
+    @Override
+    protected Set<String> doInBackground(Void... nothing) {
+        final Set<String> pruned = new HashSet<>();
+
+        for (Entry<String, EpisodeMetadata> entry : metadata.entrySet()) {
+            final EpisodeMetadata meta = entry.getValue();
+
+            // We only ever touch records without download or playlist data,
+            // and only those that actually carry some state information
+            if (meta.podcastUrl == null || !meta.hasOnlyStateData() || !meta.hasData())
+                continue;
+
+            // Podcast removed or episode no longer in the feed
+            final Set<String> liveEpisodes = loadedPodcasts.get(meta.podcastUrl);
+            if (removedPodcasts.contains(meta.podcastUrl)
+                    || (liveEpisodes != null && !liveEpisodes.contains(entry.getKey()))) {
+                // This is actually enough since the task storing the metadata
+                // will clean empty records
+                meta.isOld = null;
+                meta.resumeAt = null;
+
+                pruned.add(entry.getKey());
+            }
+        }
+
+        return pruned;
+    }
+
+    @Override
+    protected void onPostExecute(Set<String> pruned) {
+        if (listener != null)
+            listener.onEpisodeMetadataReconciled(pruned);
+    }
+}
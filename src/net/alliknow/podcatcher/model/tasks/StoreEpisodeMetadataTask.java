@@ -18,12 +18,16 @@
 package net.alliknow.podcatcher.model.tasks;
 
 import static net.alliknow.podcatcher.model.tags.METADATA.DOWNLOAD_ID;
+import static net.alliknow.podcatcher.model.tags.METADATA.DOWNLOAD_PRIORITY;
+import static net.alliknow.podcatcher.model.tags.METADATA.DOWNLOAD_QUEUED_AT;
 import static net.alliknow.podcatcher.model.tags.METADATA.EPISODE_DATE;
 import static net.alliknow.podcatcher.model.tags.METADATA.EPISODE_DESCRIPTION;
 import static net.alliknow.podcatcher.model.tags.METADATA.EPISODE_NAME;
 import static net.alliknow.podcatcher.model.tags.METADATA.EPISODE_RESUME_AT;
 import static net.alliknow.podcatcher.model.tags.METADATA.EPISODE_STATE;
 import static net.alliknow.podcatcher.model.tags.METADATA.EPISODE_URL;
+import static net.alliknow.podcatcher.model.tags.METADATA.GENERATION;
+import static net.alliknow.podcatcher.model.tags.METADATA.LAST_TOUCHED;
 import static net.alliknow.podcatcher.model.tags.METADATA.LOCAL_FILE_PATH;
 import static net.alliknow.podcatcher.model.tags.METADATA.METADATA;
 import static net.alliknow.podcatcher.model.tags.METADATA.PLAYLIST_POSITION;
@@ -36,18 +40,25 @@ import android.text.TextUtils;
 import net.alliknow.podcatcher.listeners.OnStoreEpisodeMetadataListener;
 import net.alliknow.podcatcher.model.EpisodeManager;
 import net.alliknow.podcatcher.model.types.EpisodeMetadata;
+import net.alliknow.podcatcher.model.types.MetadataRetentionPolicy;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 /**
- * Stores the episode metadata information to the file system.
+ * Stores the episode metadata information to the file system. By default, the
+ * task rewrites the complete metadata file with the records given (and removes
+ * the journal, since all its changes are included). In journal mode, the
+ * records given are appended to the metadata journal instead, see
+ * {@link #setJournalMode(boolean)}.
  */
 public class StoreEpisodeMetadataTask extends StoreFileTask<Map<String, EpisodeMetadata>> {
 
@@ -59,6 +70,17 @@ public class StoreEpisodeMetadataTask extends StoreFileTask<Map<String, EpisodeM
     /** The exception that might have been occurred */
     protected Exception exception;
 
+    /** The retention policy to enforce */
+    protected MetadataRetentionPolicy retentionPolicy;
+    /** The podcasts currently subscribed to */
+    protected Set<String> subscribedPodcasts;
+    /** The records evicted by the policy */
+    protected Map<String, Long> evicted = Collections.emptyMap();
+    /** Flag to indicate that records should be appended to the journal */
+    protected boolean journalMode = false;
+    /** The generation to write */
+    protected long generation = 0;
+
     /**
      * Create a new persistence task.
      * 
@@ -70,12 +92,91 @@ public class StoreEpisodeMetadataTask extends StoreFileTask<Map<String, EpisodeM
         this.listener = listener;
     }
 
+    /**
+     * Make the task enforce a retention policy on the metadata before it is
+     * written. Records evicted will not make it to disk and are reported back
+     * to the listener. Default is not to enforce any policy.
+     * 
+     * @param policy The policy to apply.
+     * @param subscribedPodcasts The URLs of the podcasts currently subscribed
+     *            to, give <code>null</code> if not known.
+     */
+    public void setRetentionPolicy(MetadataRetentionPolicy policy, Set<String> subscribedPodcasts) {
+        this.retentionPolicy = policy;
+        this.subscribedPodcasts = subscribedPodcasts;
+    }
+
+    /**
+     * Make the task append the records given to the metadata journal instead of
+     * rewriting the metadata file. Records given as <code>null</code> or
+     * without any data are written as deletions. No retention policy is
+     * enforced in this mode. Default is <code>false</code>.
+     * 
+     * @param journal Whether to run in journal mode.
+     * @see EpisodeManager#METADATA_JOURNAL_FILENAME
+     */
+    public void setJournalMode(boolean journal) {
+        this.journalMode = journal;
+    }
+
+    /**
+     * Set the generation to write. The metadata file carries it in its header
+     * and includes all journal records of this generation or older, journal
+     * records carry it individually. The loader skips journal records not
+     * newer than the metadata file. Default is zero.
+     * 
+     * @param generation The generation to write.
+     */
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
     @Override
     protected Void doInBackground(Map<String, EpisodeMetadata>... params) {
+        if (journalMode)
+            appendToJournal(params[0]);
+        else
+            writeMetadataFile(params[0]);
+
+        return null;
+    }
+
+    private void appendToJournal(Map<String, EpisodeMetadata> delta) {
+        try {
+            // 1. Open the journal for appending and get a writer
+            OutputStream fileStream = context.openFileOutput(
+                    EpisodeManager.METADATA_JOURNAL_FILENAME, Context.MODE_APPEND);
+            writer = new BufferedWriter(new OutputStreamWriter(fileStream, FILE_ENCODING));
+
+            // 2. Write records, there is no header or footer in the journal
+            for (Entry<String, EpisodeMetadata> entry : delta.entrySet())
+                if (entry.getValue() == null || !entry.getValue().hasData())
+                    writeDeletion(entry.getKey());
+                else
+                    writeRecord(entry.getKey(), entry.getValue());
+        } catch (Exception ex) {
+            this.exception = ex;
+
+            cancel(true);
+        } finally {
+            // Make sure we close the file stream
+            if (writer != null)
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Nothing we can do here
+                }
+        }
+    }
+
+    private void writeMetadataFile(Map<String, EpisodeMetadata> metadata) {
         try {
             // 1. Do house keeping and remove all metadata instances without
-            // data
-            cleanMetadata(params[0]);
+            // data, then enforce the retention policy (if any)
+            cleanMetadata(metadata);
+            if (retentionPolicy != null)
+                evicted = retentionPolicy.compact(metadata, subscribedPodcasts,
+                        System.currentTimeMillis());
 
             // 2. Open the file and get a writer
             OutputStream fileStream =
@@ -84,7 +185,7 @@ public class StoreEpisodeMetadataTask extends StoreFileTask<Map<String, EpisodeM
 
             // 3. Write new file content
             writeHeader();
-            for (Entry<String, EpisodeMetadata> entry : params[0].entrySet())
+            for (Entry<String, EpisodeMetadata> entry : metadata.entrySet())
                 writeRecord(entry.getKey(), entry.getValue());
             writeFooter();
         } catch (Exception ex) {
@@ -101,13 +202,15 @@ public class StoreEpisodeMetadataTask extends StoreFileTask<Map<String, EpisodeM
                 }
         }
 
-        return null;
+        // 4. All changes from the journal are in the metadata file now
+        if (!isCancelled())
+            context.deleteFile(EpisodeManager.METADATA_JOURNAL_FILENAME);
     }
 
     @Override
     protected void onPostExecute(Void nothing) {
         if (listener != null)
-            listener.onEpisodeMetadataStored();
+            listener.onEpisodeMetadataStored(evicted);
     }
 
     @Override
@@ -117,7 +220,7 @@ public class StoreEpisodeMetadataTask extends StoreFileTask<Map<String, EpisodeM
     }
 
     private void writeRecord(String key, EpisodeMetadata value) throws IOException {
-        writeLine(1, "<" + METADATA + " " + EPISODE_URL + "=\"" + TextUtils.htmlEncode(key) + "\">");
+        writeRecordStart(key);
 
         writeData(value.episodeName, EPISODE_NAME);
         if (value.episodePubDate != null)
@@ -127,14 +230,30 @@ public class StoreEpisodeMetadataTask extends StoreFileTask<Map<String, EpisodeM
         writeData(value.podcastUrl, PODCAST_URL);
         writeData(value.downloadId, DOWNLOAD_ID);
         writeData(value.filePath, LOCAL_FILE_PATH);
+        writeData(value.downloadPriority, DOWNLOAD_PRIORITY);
+        writeData(value.downloadQueuedAt, DOWNLOAD_QUEUED_AT);
         writeData(value.resumeAt, EPISODE_RESUME_AT);
         if (value.isOld != null && value.isOld)
             writeData("true", EPISODE_STATE);
         writeData(value.playlistPosition, PLAYLIST_POSITION);
+        if (value.lastTouched > 0)
+            writeData(value.lastTouched, LAST_TOUCHED);
 
         writeLine(1, "</" + METADATA + ">");
     }
 
+    private void writeDeletion(String key) throws IOException {
+        // An empty record makes the loader drop the key
+        writeRecordStart(key);
+        writeLine(1, "</" + METADATA + ">");
+    }
+
+    private void writeRecordStart(String key) throws IOException {
+        // Journal records are stamped with their generation
+        writeLine(1, "<" + METADATA + " " + EPISODE_URL + "=\"" + TextUtils.htmlEncode(key) + "\""
+                + (journalMode ? " " + GENERATION + "=\"" + generation + "\"" : "") + ">");
+    }
+
     private void writeData(String data, String tag) throws IOException {
         // For all fields: only write data that is actually there!
         if (data != null)
@@ -154,7 +273,8 @@ public class StoreEpisodeMetadataTask extends StoreFileTask<Map<String, EpisodeM
 
     private void writeHeader() throws IOException {
         writeLine(0, "<?xml version=\"1.0\" encoding=\"" + FILE_ENCODING + "\"?>");
-        writeLine(0, "<xml dateModified=\"" + new Date().getTime() + "\">");
+        writeLine(0, "<xml dateModified=\"" + new Date().getTime() + "\" " + GENERATION + "=\""
+                + generation + "\">");
     }
 
     private void writeFooter() throws IOException {
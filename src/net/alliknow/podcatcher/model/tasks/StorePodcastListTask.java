@@ -61,6 +61,11 @@ public class StorePodcastListTask extends StoreFileTask<List<Podcast>> {
      * to the resulting file.
      */
     protected boolean writeAuthorization = false;
+    /**
+     * Flag to indicate whether the task should write the locations feeds were
+     * found to have moved to.
+     */
+    protected boolean writeRedirects = false;
     /** The exception that might have been occurred */
     protected Exception exception;
 
@@ -103,6 +108,18 @@ public class StorePodcastListTask extends StoreFileTask<List<Podcast>> {
         this.writeAuthorization = write;
     }
 
+    /**
+     * Sets the write redirects flag. If set to <code>true</code>, the resulting
+     * OPML file will contain extra information on where the podcasts' feeds
+     * were redirected to, so the next session does not need to find out
+     * again. The default is <code>false</code>.
+     * 
+     * @param write Whether redirects should be written to output.
+     */
+    public void setWriteRedirects(boolean write) {
+        this.writeRedirects = write;
+    }
+
     @Override
     protected Void doInBackground(List<Podcast>... params) {
         this.podcastList = params[0];
@@ -177,6 +194,14 @@ public class StorePodcastListTask extends StoreFileTask<List<Podcast>> {
                         OPML.EXTRA_PASS, htmlEncode(podcast.getPassword()));
             }
 
+            if (writeRedirects && podcast.getRedirectCount() > 0) {
+                opmlString = opmlString.substring(0, opmlString.length() - 3);
+
+                opmlString = String.format("%s %s=\"%s\" %s=\"%s\" />", opmlString,
+                        OPML.EXTRA_REDIRECT, htmlEncode(podcast.getLoadUrl()),
+                        OPML.EXTRA_REDIRECT_COUNT, String.valueOf(podcast.getRedirectCount()));
+            }
+
             writeLine(2, opmlString);
         }
     }
@@ -17,24 +17,13 @@
 
 package net.alliknow.podcatcher.model.tasks.remote;
 
-import static android.app.DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR;
-import static android.app.DownloadManager.COLUMN_LOCAL_FILENAME;
-import static android.app.DownloadManager.COLUMN_REASON;
-import static android.app.DownloadManager.COLUMN_STATUS;
-import static android.app.DownloadManager.COLUMN_TOTAL_SIZE_BYTES;
-import static android.app.DownloadManager.ERROR_FILE_ALREADY_EXISTS;
-import static android.app.DownloadManager.ERROR_INSUFFICIENT_SPACE;
-import static android.app.DownloadManager.STATUS_FAILED;
-import static android.app.DownloadManager.STATUS_SUCCESSFUL;
 import static net.alliknow.podcatcher.Podcatcher.AUTHORIZATION_KEY;
 import static net.alliknow.podcatcher.Podcatcher.USER_AGENT_KEY;
 import static net.alliknow.podcatcher.Podcatcher.USER_AGENT_VALUE;
 
 import android.app.DownloadManager;
-import android.app.DownloadManager.Query;
 import android.app.DownloadManager.Request;
 import android.content.Context;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.preference.PreferenceManager;
@@ -42,47 +31,41 @@ import android.preference.PreferenceManager;
 import net.alliknow.podcatcher.Podcatcher;
 import net.alliknow.podcatcher.SettingsActivity;
 import net.alliknow.podcatcher.model.EpisodeDownloadManager;
+import net.alliknow.podcatcher.model.EpisodeDownloadMonitor;
+import net.alliknow.podcatcher.model.StreamCache;
 import net.alliknow.podcatcher.model.types.Episode;
 import net.alliknow.podcatcher.preferences.DownloadFolderPreference;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 
 /**
- * Async task that triggers the download of an episode. The task will be alive
- * and busy in its doInBackground() method as long as the download takes. It
- * will publish updates of the download's progress to the call-back attached.
- * Use a new task for each episode you want to download. Make sure not to give
+ * Async task that triggers the download of an episode. The task will only run
+ * until the download is enqueued with the system's download manager, it then
+ * hands the download over to the {@link EpisodeDownloadMonitor} given, which
+ * will publish updates of the download's progress to the call-back. Use a new
+ * task for each episode you want to download. Make sure not to give
  * <code>null</code> as an episode to the {@link #doInBackground(Episode...)}
  * method or things will break.
  */
-public class DownloadEpisodeTask extends AsyncTask<Episode, Long, Void> {
-
-    /**
-     * The amount of time we wait (in ms) before checking on the download's
-     * status again.
-     */
-    private static final long DOWNLOAD_STATUS_POLL_INTERVALL = 1000;
+public class DownloadEpisodeTask extends AsyncTask<Episode, Void, Void> {
 
     /** The podcatcher app handle */
     private Podcatcher podcatcher;
     /** The listener (episode manager) we report to */
     private DownloadTaskListener listener;
+    /** The monitor watching the download once enqueued */
+    private EpisodeDownloadMonitor monitor;
     /** The system download manager */
     private DownloadManager downloadManager;
 
     /** The episode we are downloading */
     private Episode episode;
-    /** The file the episode is downloaded to */
+    /** The file the episode is (or should be) downloaded to */
+    private File localFile;
+    /** The file the episode is available at if already present */
     private File episodeFile;
-    /** The current percentage state of the download [0...100] */
-    private int percentProgress;
-    /** Flag on whether the download needs moving after the fact */
-    private boolean needsPostDownloadMove = false;
+    /** The download manager id once enqueued */
+    private long downloadId = 0;
     /** The episode download error code */
     private EpisodeDownloadError downloadError = EpisodeDownloadError.UNKNOWN;
 
@@ -159,10 +142,14 @@ public class DownloadEpisodeTask extends AsyncTask<Episode, Long, Void> {
      * 
      * @param podcatcher The podcatcher app handle.
      * @param listener The call-back used by the task.
+     * @param monitor The monitor to hand the download to once enqueued. It
+     *            should report to the same listener.
      */
-    public DownloadEpisodeTask(Podcatcher podcatcher, DownloadTaskListener listener) {
+    public DownloadEpisodeTask(Podcatcher podcatcher, DownloadTaskListener listener,
+            EpisodeDownloadMonitor monitor) {
         this.podcatcher = podcatcher;
         this.listener = listener;
+        this.monitor = monitor;
 
         // Get handle to the system download manager which does all the
         // downloading for us
@@ -181,7 +168,7 @@ public class DownloadEpisodeTask extends AsyncTask<Episode, Long, Void> {
         final String subPath = EpisodeDownloadManager.sanitizeAsFilePath(
                 episode.getPodcast().getName(), episode.getName(), episode.getMediaUrl());
         // The actual episode file
-        final File localFile = new File(podcastDir, subPath);
+        this.localFile = new File(podcastDir, subPath);
 
         // The episode is already there, alert listener
         if (localFile.exists()) {
@@ -196,6 +183,9 @@ public class DownloadEpisodeTask extends AsyncTask<Episode, Long, Void> {
 
             this.episodeFile = localFile;
         }
+        // The episode was streamed completely, no need to load it again
+        else if (StreamCache.getInstance(podcatcher).promote(episode.getMediaUrl(), localFile))
+            this.episodeFile = localFile;
         // Start download because the episode is not there
         else {
             // Make sure podcast directory exists
@@ -220,16 +210,13 @@ public class DownloadEpisodeTask extends AsyncTask<Episode, Long, Void> {
                 download.addRequestHeader(AUTHORIZATION_KEY, auth);
 
             // Start the download
-            long downloadId = 0;
             try {
                 downloadId = downloadManager.enqueue(download);
             } catch (SecurityException se) {
                 // This happens if the download manager has not the rights
-                // to write to the selected downloads directory
-                needsPostDownloadMove = true;
-
-                // Download the file to a temp folder and move it the the wanted
-                // destination once the download completed
+                // to write to the selected downloads directory. Download the
+                // file to a temp folder, the monitor will move it the the
+                // wanted destination once the download completed.
                 download.setDestinationUri(Uri.fromFile(
                         new File(podcatcher.getExternalCacheDir(), localFile.getName())));
                 downloadId = downloadManager.enqueue(download);
@@ -237,115 +224,22 @@ public class DownloadEpisodeTask extends AsyncTask<Episode, Long, Void> {
                 // The happens if the download app on the device is disabled
                 this.downloadError = EpisodeDownloadError.DOWNLOAD_APP_DISABLED;
                 cancel(false);
-
-                return null;
-            }
-
-            // We need to tell our listener about the download id, to
-            // separate it from percentage done, put minus sign. See
-            // onProgressUpdate() below.
-            publishProgress(downloadId > 0 ? downloadId * -1 : downloadId);
-
-            // Start checking the download manager for status updates
-            boolean finished = false;
-            while (!isCancelled() && !finished) {
-                // Wait between polls
-                try {
-                    Thread.sleep(DOWNLOAD_STATUS_POLL_INTERVALL);
-                } catch (InterruptedException e) {
-                    // pass
-                }
-
-                // Find download information
-                final Cursor info = downloadManager.query(new Query().setFilterById(downloadId));
-                // There should be information on the download
-                if (info != null && info.moveToFirst()) {
-                    final int state = info.getInt(info.getColumnIndex(COLUMN_STATUS));
-                    switch (state) {
-                        case STATUS_SUCCESSFUL:
-                            // This is the file the download manager got for us
-                            final File downloadedFile = new File(info.getString(info
-                                    .getColumnIndex(COLUMN_LOCAL_FILENAME)));
-
-                            // It might need to be moved to its final position
-                            if (needsPostDownloadMove) {
-                                // This worked
-                                if (moveFile(downloadedFile, localFile))
-                                    this.episodeFile = localFile;
-                                // Move operation failed -> download failed
-                                else {
-                                    this.downloadError = EpisodeDownloadError.DESTINATION_NOT_WRITEABLE;
-                                    cancel(false);
-                                }
-
-                                // We remove the file from the system's download
-                                // manager here, since we moved the downloaded
-                                // file (or it failed anyway)
-                                downloadManager.remove(downloadId);
-                            }
-                            else
-                                this.episodeFile = downloadedFile;
-
-                            finished = true;
-                            break;
-                        case STATUS_FAILED:
-                            final int reason = info.getInt(info.getColumnIndex(COLUMN_REASON));
-                            switch (reason) {
-                                case ERROR_FILE_ALREADY_EXISTS:
-                                    // This case is actually fine, finish
-                                    finished = true;
-                                    break;
-                                case ERROR_INSUFFICIENT_SPACE:
-                                    this.downloadError = EpisodeDownloadError.NO_SPACE;
-                                    // Fall through here, code below should run
-                                default:
-                                    downloadManager.remove(downloadId);
-
-                                    cancel(false);
-                                    break;
-                            }
-
-                            break;
-                        default:
-                            // Update progress
-                            final long total = info.getLong(info
-                                    .getColumnIndex(COLUMN_TOTAL_SIZE_BYTES));
-                            final long progress = info.getLong(info
-                                    .getColumnIndex(COLUMN_BYTES_DOWNLOADED_SO_FAR));
-
-                            if (total > 0 && progress > 0 && total >= progress)
-                                publishProgress((long) (((float) progress / (float) total) * 100));
-                    }
-                }
-
-                // Close cursor
-                if (info != null)
-                    info.close();
             }
         }
 
         return null;
     }
 
-    @Override
-    protected void onProgressUpdate(Long... values) {
-        long progress = values[0];
-
-        // This is the download id (because it is < 0, see above)
-        if (progress < 0)
-            listener.onEpisodeEnqueued(episode, progress * -1);
-        // This is the percentage of download done
-        else if (progress > 0 && progress != percentProgress) {
-            percentProgress = (int) progress;
-            listener.onEpisodeDownloadProgressed(episode, percentProgress);
-        }
-    }
-
     @Override
     protected void onPostExecute(Void result) {
-        // If the episodeFile member is set, the download was successful
+        // If the episodeFile member is set, the episode was already there
         if (episodeFile != null)
             listener.onEpisodeDownloaded(episode, episodeFile);
+        // The download is enqueued, let the monitor take over
+        else if (downloadId > 0) {
+            listener.onEpisodeEnqueued(episode, downloadId);
+            monitor.watch(episode, downloadId, localFile);
+        }
         else
             onCancelled(result);
     }
@@ -354,41 +248,4 @@ public class DownloadEpisodeTask extends AsyncTask<Episode, Long, Void> {
     protected void onCancelled(Void result) {
         listener.onEpisodeDownloadFailed(episode, downloadError);
     }
-
-    private boolean moveFile(File from, File to) {
-        boolean success = true;
-
-        BufferedInputStream reader = null;
-        BufferedOutputStream writer = null;
-        // Move file over, put try catch to set return value to false is the
-        // move fails
-        try {
-            reader = new BufferedInputStream(new FileInputStream(from));
-            writer = new BufferedOutputStream(new FileOutputStream(to));
-
-            byte[] buffer = new byte[1024];
-            while (reader.read(buffer) > 0)
-                writer.write(buffer);
-
-        } catch (IOException ioe) {
-            success = false;
-        } finally {
-            if (reader != null)
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    // pass
-                }
-            if (writer != null)
-                try {
-                    writer.close();
-                } catch (IOException e) {
-                    // pass
-                }
-
-            from.delete();
-        }
-
-        return success;
-    }
 }
@@ -0,0 +1,56 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.tasks.remote;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The transport used by {@link LoadRemoteFileTask}s to talk HTTP. Implement
+ * this to swap in a different client or a stand-in for tests and benchmarks,
+ * and set it using {@link LoadRemoteFileTask#setDefaultTransport(HttpTransport)}
+ * or {@link LoadRemoteFileTask#setTransport(HttpTransport)}.
+ * 
+ * @see PooledHttpTransport
+ */
+public interface HttpTransport {
+
+    /**
+     * Create a connection to the given location. The connection is not
+     * connected yet, so the caller can still configure it.
+     * 
+     * @param url The remote location.
+     * @return The new connection.
+     * @throws IOException If the connection cannot be created.
+     */
+    public HttpURLConnection open(URL url) throws IOException;
+
+    /**
+     * Give a connection back once the caller is done with it. The caller
+     * does not close the response stream itself, this is up to the
+     * transport.
+     * 
+     * @param connection The connection created by {@link #open(URL)}.
+     * @param reusable Whether the response was read completely, so the
+     *            underlying connection might be kept alive for the next
+     *            request to the same host. If <code>false</code>, the
+     *            connection should be dropped.
+     */
+    public void release(HttpURLConnection connection, boolean reusable);
+}
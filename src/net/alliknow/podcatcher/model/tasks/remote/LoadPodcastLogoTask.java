@@ -17,23 +17,35 @@
 
 package net.alliknow.podcatcher.model.tasks.remote;
 
-import static java.lang.Math.round;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
-import net.alliknow.podcatcher.R;
 import net.alliknow.podcatcher.listeners.OnLoadPodcastLogoListener;
+import net.alliknow.podcatcher.model.BitmapPool;
+import net.alliknow.podcatcher.model.LogoDiskCache;
+import net.alliknow.podcatcher.model.types.LogoVariant;
 import net.alliknow.podcatcher.model.types.Podcast;
 import net.alliknow.podcatcher.model.types.Progress;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
-import java.util.Date;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
 /**
  * An async task to load a podcast logo. Implement
@@ -42,18 +54,19 @@ import java.util.Date;
  * <b>Scaling and caching:</b> This task has some internal image scaling and
  * caching logic. Podcast logos are only downloaded or updated if absolutely
  * necessary. You can manipulate its behaviour by calling the
- * {@link #setLocalOnly(boolean)} and {@link #setMaxAge(int)} methods. Once
- * downloaded and scaled, all podcast logos are stored in the app's private
- * folders under the path <tt>logoCache/<i>podcast URL hash</i>.jpeg</tt>. The
- * task will prefer these downloaded copies whenever possible.
+ * {@link #setLocalOnly(boolean)} and {@link #setMaxAge(int)} methods. When
+ * downloaded, the original logo file is streamed as is to the
+ * {@link LogoDiskCache}. The task will prefer this downloaded copy whenever
+ * possible. Once older than the max age, the copy is revalidated with a
+ * conditional request and only loaded again if it changed. The logo is decoded
+ * straight from that file, once and sampled down to the size needed, and then
+ * scaled to the {@link LogoVariant}s asked for using
+ * {@link #setVariants(LogoVariant...)}. Pixel memory of the decoded source is
+ * re-used via the {@link BitmapPool}.
  * </p>
  */
-public class LoadPodcastLogoTask extends LoadRemoteFileTask<Podcast, Bitmap> {
+public class LoadPodcastLogoTask extends LoadRemoteFileTask<Podcast, Map<LogoVariant, Bitmap>> {
 
-    /** The name of the podcast logo cache directory */
-    private static final String CACHE_DIR = "logoCache";
-    /** The file name ending for cached logos */
-    private static final String CACHED_LOGO_ENDING = ".jpeg";
     /** Our log tag */
     private static final String TAG = "LoadPodcastLogoTask";
 
@@ -61,9 +74,13 @@ public class LoadPodcastLogoTask extends LoadRemoteFileTask<Podcast, Bitmap> {
     private final OnLoadPodcastLogoListener listener;
     /** The task's context */
     private final Context context;
+    /** The disk cache holding the original logo files */
+    private LogoDiskCache diskCache;
 
     /** Podcast currently loading logo for */
     private Podcast podcast;
+    /** The logo variants to load */
+    private Set<LogoVariant> variants = EnumSet.allOf(LogoVariant.class);
 
     /** Flag to indicate that we should return local copies only. */
     private boolean localOnly = false;
@@ -94,8 +111,8 @@ public class LoadPodcastLogoTask extends LoadRemoteFileTask<Podcast, Bitmap> {
     }
 
     /**
-     * Set the age of the cached logo that would trigger a reload from the
-     * internets. The default is equivalent to one week.
+     * Set the age of the cached logo that would trigger a revalidation with
+     * the internets. The default is equivalent to one week.
      * 
      * @param minutes Maximum age in minutes.
      */
@@ -103,37 +120,64 @@ public class LoadPodcastLogoTask extends LoadRemoteFileTask<Podcast, Bitmap> {
         this.maxAge = minutes;
     }
 
+    /**
+     * Set the logo variants to load. The default is to load all of them. Only
+     * the variants given here are decoded and set to the podcast, the others
+     * can be created from the cached logo file later.
+     * 
+     * @param variants The logo variants needed (at least one).
+     */
+    public void setVariants(LogoVariant... variants) {
+        if (variants.length > 0)
+            this.variants = EnumSet.copyOf(Arrays.asList(variants));
+    }
+
     @Override
-    protected Bitmap doInBackground(Podcast... podcasts) {
+    protected Map<LogoVariant, Bitmap> doInBackground(Podcast... podcasts) {
         this.podcast = podcasts[0];
-        Bitmap result = null;
+        Map<LogoVariant, Bitmap> result = new EnumMap<>(LogoVariant.class);
 
         // Let's go. There are a lot of options here, since we really want to
         // optimize this for re-using the cached versions as much as possible.
         try {
             publishProgress(Progress.CONNECT);
+            this.diskCache = LogoDiskCache.getInstance(context);
+            final LogoDiskCache.Entry cached = diskCache.get(podcast.getUrl());
+
             // 1. So this the simple case where we have the local version and
             // it is fresh enough. Return it.
-            if (isCachedLocally(podcast) && getCachedLogoAge(podcast) <= maxAge) {
+            if (cached != null && cached.getAge() <= maxAge) {
                 publishProgress(Progress.PARSE);
-                result = restoreBitmapFromFileCache(podcast);
+                result = decodeAndScaleBitmaps(diskCache.getFile(cached));
+
+                if (result.isEmpty()) {
+                    diskCache.remove(podcast.getUrl());
+                    throw new IOException("Cached logo cannot be decoded");
+                }
             }
             // 2. If that is not the case, we need to go over the air, unless
             // the localOnly flag is set or we do not know the remote location.
             else if (!localOnly && podcast.getLogoUrl() != null) {
-                // 2a. Get logo data remotely
+                // 2a. Ask for changes only if we have a copy of this very logo
+                if (cached != null && podcast.getLogoUrl().equals(cached.getLogoUrl())) {
+                    this.ifNoneMatch = cached.getETag();
+                    this.ifModifiedSince = cached.getLastModified();
+                }
+
+                // 2b. Stream logo data to the cache (or revalidate it)
                 this.authorization = podcast.getAuthorization();
-                final byte[] logo = loadFile(new URL(podcast.getLogoUrl()));
+                final File loadedLogo = loadFileToCache(new URL(podcast.getLogoUrl()));
 
-                // 2b. Decode and sample the result
-                if (!isCancelled()) {
+                // 2c. Decode and scale to the variants needed
+                if (loadedLogo != null && !isCancelled()) {
                     publishProgress(Progress.PARSE);
-                    result = decodeAndSampleBitmap(logo);
-                }
+                    result = decodeAndScaleBitmaps(loadedLogo);
 
-                // 2c. Save to file
-                if (!isCancelled())
-                    storeBitmapToFileCache(podcast, result);
+                    if (result.isEmpty()) {
+                        diskCache.remove(podcast.getUrl());
+                        throw new IOException("Logo cannot be decoded");
+                    }
+                }
             }
             // 3. No fresh cached logo available and we cannot get it over the
             // air. Throw an exception, the catch clause will try to get any
@@ -143,12 +187,13 @@ public class LoadPodcastLogoTask extends LoadRemoteFileTask<Podcast, Bitmap> {
         } catch (Throwable throwable) {
             // Return the cached version even though it is stale (having an old
             // logo for the podcast is better then having none).
-            if (isCachedLocally(podcast)) {
-                publishProgress(Progress.PARSE);
-                result = restoreBitmapFromFileCache(podcast);
-            }
+            final LogoDiskCache.Entry stale = diskCache == null ?
+                    null : diskCache.get(podcast.getUrl());
+            if (stale != null)
+                result = decodeAndScaleBitmaps(diskCache.getFile(stale));
+
             // We are out of options here
-            else {
+            if (result.isEmpty()) {
                 Log.d(TAG, "Logo failed to load for podcast \"" + podcast +
                         "\" with logo URL " + podcast.getLogoUrl(), throwable);
 
@@ -162,9 +207,10 @@ public class LoadPodcastLogoTask extends LoadRemoteFileTask<Podcast, Bitmap> {
     }
 
     @Override
-    protected void onPostExecute(Bitmap result) {
-        // Set the logo as a podcast member
-        podcast.setLogo(result);
+    protected void onPostExecute(Map<LogoVariant, Bitmap> result) {
+        // Set the logos to the podcast
+        for (Entry<LogoVariant, Bitmap> entry : result.entrySet())
+            podcast.setLogo(entry.getKey(), entry.getValue());
 
         // Podcast logo was loaded
         if (listener != null)
@@ -172,36 +218,66 @@ public class LoadPodcastLogoTask extends LoadRemoteFileTask<Podcast, Bitmap> {
     }
 
     @Override
-    protected void onCancelled(Bitmap result) {
+    protected void onCancelled(Map<LogoVariant, Bitmap> result) {
         // Background task failed to complete
         if (listener != null)
             listener.onPodcastLogoLoadFailed(podcast);
     }
 
     /**
-     * Create a memory-efficient bitmap at the correct size needed for the
-     * application.
+     * Decode the logo file once at the resolution needed for the largest
+     * variant asked for and create these variants from it.
      * 
-     * @param data Bitmap data loaded from the Internet.
-     * @return The decoded and sampled bitmap.
+     * @param logo The original logo file.
+     * @return The logo variants, empty if the file does not exist or cannot
+     *         be decoded.
      */
-    protected Bitmap decodeAndSampleBitmap(byte[] data) {
+    protected Map<LogoVariant, Bitmap> decodeAndScaleBitmaps(File logo) {
+        final Map<LogoVariant, Bitmap> result = new EnumMap<>(LogoVariant.class);
+        if (!logo.exists())
+            return result;
+
+        final String path = logo.getAbsolutePath();
         final BitmapFactory.Options options = new BitmapFactory.Options();
 
         // Decode with inJustDecodeBounds=true to check dimensions
         options.inJustDecodeBounds = true;
-        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return result;
 
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options);
-        // Decode bitmap with inSampleSize set
+        // Decode bitmap with inSampleSize set, re-using pixel memory if we can
         options.inJustDecodeBounds = false;
+        final BitmapPool pool = BitmapPool.getInstance();
+        pool.prepare(options);
+
+        Bitmap source = null;
+        try {
+            source = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException iae) {
+            // The pooled bitmap did not fit after all, go without it
+            options.inBitmap = null;
+            source = BitmapFactory.decodeFile(path, options);
+        }
+
+        if (source != null) {
+            for (LogoVariant variant : variants)
+                result.put(variant, Bitmap.createScaledBitmap(source,
+                        variant.getWidth(context), variant.getHeight(context), true));
+
+            // Give the source back unless it is used as a variant as is
+            if (!result.containsValue(source))
+                pool.put(source);
+        }
 
-        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        return result;
     }
 
     /**
-     * Calculate the sample size for the image.
+     * Calculate the sample size for the image, this is as small as possible
+     * while still not smaller than the largest variant asked for.
      * 
      * @param options Bitmap options to work with.
      * @return The sample size.
@@ -212,56 +288,69 @@ public class LoadPodcastLogoTask extends LoadRemoteFileTask<Podcast, Bitmap> {
         final int width = options.outWidth;
         int sampleSize = 1;
 
-        // Adjust max height/width according to screen resolution
-        final int max = context.getResources().getDimensionPixelSize(R.dimen.logo_size);
+        // Adjust max height/width according to the largest variant
+        int max = 0;
+        for (LogoVariant variant : variants)
+            max = max(max, max(variant.getWidth(context), variant.getHeight(context)));
         // ... and calculate sample size
         if (height > max || width > max)
-            sampleSize = round((width > height ? (float) height : (float) width) / (float) max);
+            sampleSize = max(1, min(width, height) / max);
 
         return sampleSize;
     }
 
-    private File getLogoCacheFile(Podcast podcast) {
-        // Create the complete path leading to where we expect the cached file
-        return new File(context.getCacheDir(), CACHE_DIR + File.separator
-                + podcast.getUrl().hashCode() + CACHED_LOGO_ENDING);
-    }
-
-    private boolean isCachedLocally(Podcast podcast) {
-        return getLogoCacheFile(podcast).exists();
-    }
-
-    private int getCachedLogoAge(Podcast podcast) {
-        if (isCachedLocally(podcast))
-            return (int) ((new Date().getTime() - getLogoCacheFile(podcast).lastModified())
-            / (60 * 1000)); // Calculate to minutes
-        else
-            return -1;
-    }
-
-    private Bitmap restoreBitmapFromFileCache(Podcast podcast) {
-        return BitmapFactory.decodeFile(getLogoCacheFile(podcast).getAbsolutePath());
-    }
+    private File loadFileToCache(URL remote) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IOException("Cannot hash logo content", nsae);
+        }
 
-    private void storeBitmapToFileCache(Podcast podcast, Bitmap bitmap) {
-        final File logoCacheDir = new File(context.getCacheDir(), CACHE_DIR);
-        logoCacheDir.mkdirs();
+        // Write to a partial file first and hash the content as it arrives,
+        // the cache will name the file by that hash.
+        final File partialLogo = diskCache.createPartialFile();
 
-        FileOutputStream out = null;
-        // If this fails, we have no cached version, but that's okay
+        OutputStream out = null;
+        boolean complete = false;
         try {
-            out = new FileOutputStream(getLogoCacheFile(podcast));
-
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
-            out.flush();
-        } catch (IOException e) {
-            // pass
+            out = new DigestOutputStream(new FileOutputStream(partialLogo), digest);
+            complete = loadFile(remote, out);
         } finally {
             try {
                 out.close();
             } catch (Exception e) {
                 // Nothing more we could do here
             }
+
+            if (!complete || notModified)
+                partialLogo.delete();
         }
+
+        final LogoDiskCache.Entry entry;
+        // Cancelled
+        if (!complete)
+            return null;
+        // Our copy is still good
+        else if (notModified)
+            entry = diskCache.validated(podcast.getUrl());
+        // New logo
+        else
+            entry = diskCache.put(podcast.getUrl(), podcast.getLogoUrl(), partialLogo,
+                    toHex(digest.digest()), eTag, lastModified);
+
+        if (entry == null)
+            throw new IOException("Logo vanished from cache while validating");
+
+        return diskCache.getFile(entry);
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+
+        return hex.toString();
     }
 }
@@ -31,6 +31,9 @@ import org.xmlpull.v1.XmlPullParserFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Loads a podcast's RSS file from the server and parses its contents
@@ -49,6 +52,24 @@ import java.net.URL;
  * {@link OnLoadPodcastListener#onPodcastLoadFailed(Podcast, PodcastLoadError)}
  * will be called with the code set to {@link PodcastLoadError#AUTH_REQUIRED}.
  * </p>
+ * <p>
+ * <b>Single flight:</b> All feed loads go through this task, no matter who
+ * started them. Tasks started for a feed (as identified by its normalized URL
+ * and credentials) that is already loading will not go over the air but wait
+ * for the load in flight and share its outcome, i.e. the same feed content or
+ * the same error. If the waiting task was given the very podcast object the
+ * feed is parsed into, the parse and the removal of explicit episodes are
+ * shared as well, waiting tasks only see that podcast once the loading task
+ * is done with it.
+ * </p>
+ * <p>
+ * <b>Redirects:</b> The feed is requested from {@link Podcast#getLoadUrl()}
+ * and permanent redirects are recorded to the podcast, so later loads go
+ * straight to the feed's new location. If loading from there fails, the
+ * podcast falls back to its own URL for the next load. For feeds with
+ * credentials, these are only sent to the podcast's own host (and never from
+ * https to plain http), redirects they could not follow are not recorded.
+ * </p>
  */
 public class LoadPodcastTask extends LoadRemoteFileTask<Podcast, Void> {
 
@@ -57,6 +78,31 @@ public class LoadPodcastTask extends LoadRemoteFileTask<Podcast, Void> {
     /** Our log tag */
     private static final String TAG = "LoadPodcastTask";
 
+    /** The feed loads currently in flight, keyed by URL and credentials */
+    private static final ConcurrentMap<String, FeedLoad> feedLoads = new ConcurrentHashMap<>();
+
+    /** A feed load and parse in flight, tasks for the same feed share it */
+    private static class FeedLoad {
+
+        /** The podcast the feed is parsed into */
+        private final Podcast podcast;
+        /** The latch released when the load is over */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** The feed content, available on success */
+        private volatile byte[] feed;
+        /** The error, or <code>null</code> on success */
+        private volatile PodcastLoadError error = PodcastLoadError.UNKNOWN;
+        /** The flag to indicate that the loading task was cancelled */
+        private volatile boolean abandoned = false;
+        /** The flag to indicate that all the podcast's episodes were explicit */
+        private volatile boolean explicitBlocked = false;
+
+        private FeedLoad(Podcast podcast) {
+            this.podcast = podcast;
+        }
+    }
+
     /**
      * Podcast load error codes as returned by
      * {@link OnLoadPodcastListener#onPodcastLoadFailed(Podcast, PodcastLoadError)}
@@ -105,6 +151,8 @@ public class LoadPodcastTask extends LoadRemoteFileTask<Podcast, Void> {
 
     /** Flag whether we strip out explicit episodes */
     private boolean blockExplicit = false;
+    /** Flag whether the load changed the podcast's redirect */
+    private boolean redirectChanged = false;
 
     /**
      * Create new task.
@@ -129,45 +177,28 @@ public class LoadPodcastTask extends LoadRemoteFileTask<Podcast, Void> {
         this.blockExplicit = block;
     }
 
+    /**
+     * @return Whether the load changed what the podcast knows about the
+     *         location its feed moved to, i.e. the podcast list needs to be
+     *         saved to keep it. Only valid once the task is done.
+     */
+    public boolean isRedirectChanged() {
+        return redirectChanged;
+    }
+
     @Override
     protected Void doInBackground(Podcast... podcasts) {
         this.podcast = podcasts[0];
 
         try {
-            // 1. Load the file from the Internet
+            // 1. Load and parse the file, or join the load in flight
             publishProgress(Progress.CONNECT);
 
             // Set auth
             this.authorization = podcast.getAuthorization();
-            // ... and go get the file
-            byte[] podcastRssFile = loadFile(new URL(podcast.getUrl()));
-
-            if (isCancelled())
+            // ... and go get the file (this also cleans out explicit episodes)
+            if (!loadOrJoin())
                 return null;
-            else
-                publishProgress(Progress.PARSE);
-
-            // 2. Create the parser to use
-            XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-            factory.setNamespaceAware(true);
-            XmlPullParser parser = factory.newPullParser();
-            parser.setInput(new ByteArrayInputStream(podcastRssFile), null);
-
-            // 3. Parse as podcast content
-            if (!isCancelled())
-                podcast.parse(parser);
-
-            // 4. Clean out explicit episodes
-            if (!isCancelled() && blockExplicit) {
-                final int episodeCount = podcast.getEpisodeCount();
-                final int cleanEpisodeCount = podcast.removeExplicitEpisodes();
-
-                if (cleanEpisodeCount == 0 && episodeCount > 0) {
-                    errorCode = PodcastLoadError.EXPLICIT_BLOCKED;
-
-                    cancel(true);
-                }
-            }
 
             // 5. We need to wait here and make sure the episode metadata is
             // available before we return
@@ -198,6 +229,175 @@ public class LoadPodcastTask extends LoadRemoteFileTask<Podcast, Void> {
             listener.onPodcastLoadProgress(podcast, progress[0]);
     }
 
+    /**
+     * Load and parse the feed and remove explicit episodes if asked to,
+     * sharing the work with other tasks for the same feed running at the same
+     * time.
+     * 
+     * @return <code>false</code> if the task was cancelled.
+     */
+    private boolean loadOrJoin() throws IOException, XmlPullParserException,
+            InterruptedException {
+        // Feeds without URL fail right away
+        if (podcast.getUrl() == null)
+            return load(null) && removeExplicitEpisodes();
+
+        final String key = podcast.getUrl()
+                + (authorization == null ? "" : "\n" + authorization);
+
+        while (true) {
+            final FeedLoad load = new FeedLoad(podcast);
+            final FeedLoad inFlight = feedLoads.putIfAbsent(key, load);
+
+            // We are the first, so we go over the air
+            if (inFlight == null)
+                try {
+                    final boolean loaded = load(load);
+                    // Make the others try for themselves if we are cancelled
+                    load.abandoned = !loaded;
+                    if (!loaded)
+                        return false;
+
+                    // 4. Clean out explicit episodes before we let the others
+                    // go, they might share our podcast object
+                    final boolean clean = removeExplicitEpisodes();
+                    load.explicitBlocked = errorCode == PodcastLoadError.EXPLICIT_BLOCKED;
+
+                    return clean;
+                } finally {
+                    feedLoads.remove(key, load);
+                    load.done.countDown();
+                }
+            // Somebody else is loading the feed, wait for the outcome
+            else {
+                publishProgress(Progress.WAIT);
+                inFlight.done.await();
+
+                // Their task was cancelled, try again (we might go first now)
+                if (inFlight.abandoned)
+                    continue;
+                else if (isCancelled())
+                    return false;
+                else if (inFlight.error != null) {
+                    errorCode = inFlight.error;
+                    needsAuthorization = errorCode == PodcastLoadError.AUTH_REQUIRED;
+
+                    cancel(true);
+                    return false;
+                }
+                // Their podcast is ours, it is all done already
+                else if (inFlight.podcast == podcast) {
+                    if (inFlight.explicitBlocked) {
+                        errorCode = PodcastLoadError.EXPLICIT_BLOCKED;
+
+                        cancel(true);
+                    }
+
+                    return !isCancelled();
+                }
+                // Parse their feed content into our podcast
+                else {
+                    publishProgress(Progress.PARSE);
+                    parse(inFlight.feed);
+
+                    return !isCancelled() && removeExplicitEpisodes();
+                }
+            }
+        }
+    }
+
+    private boolean load(FeedLoad load) throws IOException, XmlPullParserException {
+        final String loadUrl = podcast.getLoadUrl();
+        final int redirectCount = podcast.getRedirectCount();
+
+        try {
+            // Credentials were given for the podcast's own URL, do not load
+            // from a location learned elsewhere or without https
+            if (authorization != null) {
+                this.authorizationUrl = new URL(podcast.getUrl());
+
+                if (!canSendAuthorization(authorizationUrl, new URL(podcast.getLoadUrl())))
+                    podcast.resetRedirect();
+            }
+
+            final byte[] podcastRssFile = loadFile(new URL(podcast.getLoadUrl()));
+
+            if (isCancelled())
+                return false;
+
+            // Keep track of the transfer sizes for this feed
+            podcast.getTransferStats().record(bytesTransferred, bytesLoaded);
+            publishProgress(Progress.PARSE);
+
+            parse(podcastRssFile);
+
+            // Only a feed that parsed well is a valid new location, and one
+            // our credentials cannot go to only if we do not need them
+            if (authorizationUrl != null && permanentLocation != null
+                    && !canSendAuthorization(authorizationUrl, permanentLocation))
+                podcast.resetRedirect();
+            else
+                podcast.recordRedirect(permanentLocation == null ?
+                        null : permanentLocation.toString());
+
+            if (load != null) {
+                load.feed = podcastRssFile;
+                load.error = null;
+            }
+
+            return !isCancelled();
+        } catch (XmlPullParserException xppe) {
+            if (load != null)
+                load.error = PodcastLoadError.NOT_PARSEABLE;
+
+            podcast.resetRedirect();
+            throw xppe;
+        } catch (IOException ioe) {
+            if (load != null)
+                load.error = needsAuthorization ?
+                        PodcastLoadError.AUTH_REQUIRED : PodcastLoadError.NOT_REACHABLE;
+
+            podcast.resetRedirect();
+            throw ioe;
+        } finally {
+            redirectChanged = redirectCount != podcast.getRedirectCount()
+                    || (loadUrl != null && !loadUrl.equals(podcast.getLoadUrl()));
+        }
+    }
+
+    /**
+     * Clean out explicit episodes if the task is set to do so.
+     * 
+     * @return <code>false</code> if the task was cancelled, i.e. because all
+     *         episodes were explicit.
+     */
+    private boolean removeExplicitEpisodes() {
+        if (!isCancelled() && blockExplicit) {
+            final int episodeCount = podcast.getEpisodeCount();
+            final int cleanEpisodeCount = podcast.removeExplicitEpisodes();
+
+            if (cleanEpisodeCount == 0 && episodeCount > 0) {
+                errorCode = PodcastLoadError.EXPLICIT_BLOCKED;
+
+                cancel(true);
+            }
+        }
+
+        return !isCancelled();
+    }
+
+    private void parse(byte[] podcastRssFile) throws IOException, XmlPullParserException {
+        // 2. Create the parser to use
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        XmlPullParser parser = factory.newPullParser();
+        parser.setInput(new ByteArrayInputStream(podcastRssFile), null);
+
+        // 3. Parse as podcast content
+        if (!isCancelled())
+            podcast.parse(parser);
+    }
+
     @Override
     protected void onPostExecute(Void nothing) {
         // Podcast was loaded
@@ -17,6 +17,10 @@
 
 package net.alliknow.podcatcher.model.tasks.remote;
 
+import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
+import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
+import static java.net.HttpURLConnection.HTTP_NOT_MODIFIED;
+import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
 import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
 import static net.alliknow.podcatcher.Podcatcher.AUTHORIZATION_KEY;
 import static net.alliknow.podcatcher.Podcatcher.USER_AGENT_KEY;
@@ -28,12 +32,22 @@ import net.alliknow.podcatcher.model.types.Progress;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
- * Abstract super class for file download tasks.
+ * Abstract super class for file download tasks. Connections are created
+ * through a {@link HttpTransport}, see {@link #setDefaultTransport(HttpTransport)}.
+ * Redirects are followed by the task itself (also from http to https and vice
+ * versa), see {@link #permanentLocation} for how to skip them next time.
  * 
  * @param <Params> Params as defined by {@link AsyncTask}
  * @param <Result> Result as defined by {@link AsyncTask}
@@ -46,6 +60,20 @@ public abstract class LoadRemoteFileTask<Params, Result> extends
     protected static final int CONNECT_TIMEOUT = 8000;
     /** The read timeout */
     protected static final int READ_TIMEOUT = 60000;
+    /** The minimum time between two load progress updates in milliseconds */
+    protected static final int PROGRESS_INTERVAL = 100;
+    /** The maximum number of redirects followed for one load */
+    protected static final int MAX_REDIRECTS = 5;
+    /** The permanent redirect status code not defined by HttpURLConnection */
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
+    /** The temporary redirect status code not defined by HttpURLConnection */
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+
+    /** The transport used by tasks unless set otherwise */
+    private static HttpTransport defaultTransport;
+
+    /** The transport used by this task */
+    protected HttpTransport transport = getDefaultTransport();
 
     /** The use caches flag set to the http connection before it is opened. */
     protected boolean useCaches;
@@ -57,9 +85,106 @@ public abstract class LoadRemoteFileTask<Params, Result> extends
 
     /** The authorization to send */
     protected String authorization;
+    /**
+     * The location the authorization was given for, credentials are only ever
+     * sent to its host and never downgraded from https to http, see
+     * {@link #canSendAuthorization(URL, URL)}. If <code>null</code>, the
+     * location loaded is used.
+     */
+    protected URL authorizationUrl;
     /** The flag to indicate that authorization is/was required */
     protected boolean needsAuthorization = false;
 
+    /** The entity tag of the local copy to send for a conditional request */
+    protected String ifNoneMatch;
+    /** The modification date of the local copy to send for a conditional request */
+    protected String ifModifiedSince;
+    /** The flag to indicate that the remote file was not modified */
+    protected boolean notModified = false;
+    /** The entity tag of the remote file as given in the last response */
+    protected String eTag;
+    /** The modification date of the remote file as given in the last response */
+    protected String lastModified;
+    /** The bytes transferred over the wire by the last load */
+    protected long bytesTransferred;
+    /** The bytes of content (after decompression) of the last load */
+    protected long bytesLoaded;
+    /**
+     * The location the last load was permanently redirected to, i.e. the
+     * target of the leading run of 301/308 redirects, or <code>null</code> if
+     * there were none. Loading from here saves these round trips next time.
+     */
+    protected URL permanentLocation;
+
+    /** An input stream counting the bytes read through it */
+    private static class CountingInputStream extends FilterInputStream {
+
+        /** The number of bytes read */
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int result = super.read();
+            if (result >= 0)
+                count++;
+
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int result = super.read(buffer, offset, length);
+            if (result > 0)
+                count += result;
+
+            return result;
+        }
+
+        @Override
+        public long skip(long length) throws IOException {
+            final long result = super.skip(length);
+            count += result;
+
+            return result;
+        }
+    }
+
+    /**
+     * @return The transport used by tasks unless set otherwise, by default a
+     *         {@link PooledHttpTransport}.
+     */
+    public static synchronized HttpTransport getDefaultTransport() {
+        if (defaultTransport == null)
+            defaultTransport = new PooledHttpTransport();
+
+        return defaultTransport;
+    }
+
+    /**
+     * Set the transport used by all tasks created from now on. Use this to
+     * swap in a different HTTP client.
+     * 
+     * @param transport The transport to use, <code>null</code> resets to the
+     *            default.
+     */
+    public static synchronized void setDefaultTransport(HttpTransport transport) {
+        defaultTransport = transport;
+    }
+
+    /**
+     * Set the transport used by this task only, e.g. a stand-in for tests.
+     * Call this before the task is executed.
+     * 
+     * @param transport The transport to use.
+     */
+    public void setTransport(HttpTransport transport) {
+        this.transport = transport;
+    }
+
     /**
      * Set a "max-stale" cache control directive when downloading the file. The
      * default is a negative number, turning off the directive. If not negative,
@@ -88,32 +213,88 @@ public abstract class LoadRemoteFileTask<Params, Result> extends
      * {@link #publishProgress(Object...)}.
      * 
      * @param remote URL connection to load from.
-     * @return The file content.
+     * @return The file content or <code>null</code> if the task was cancelled.
      * @throws IOException If something goes wrong.
      */
     protected byte[] loadFile(URL remote) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) remote.openConnection();
-        connection.setConnectTimeout(CONNECT_TIMEOUT);
-        connection.setReadTimeout(READ_TIMEOUT);
-        // Set whether we use the http cache
-        connection.setUseCaches(useCaches);
-        // We set a custom user agent here because some servers (e.g. ZDF.de)
-        // redirect connections from mobile devices to servers where the content
-        // we are looking for might not be available.
-        connection.setRequestProperty(USER_AGENT_KEY, USER_AGENT_VALUE);
-        // Set cache control directive
-        if (maxStale >= 0)
-            connection.addRequestProperty("Cache-Control", "max-stale=" + maxStale);
-        // Allow for password protected feeds
-        if (authorization != null)
-            connection.setRequestProperty(AUTHORIZATION_KEY, authorization);
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
 
-        BufferedInputStream bufferedRemoteStream = null;
-        ByteArrayOutputStream result = null;
+        try {
+            return loadFile(remote, result) ? result.toByteArray() : null;
+        } finally {
+            // To the local byte array
+            try {
+                result.close();
+            } catch (Exception e) {
+                // Nothing we can do here
+            }
+        }
+    }
+
+    /**
+     * Download the file and write its content to the given stream as it
+     * arrives, so the file does not need to be held in memory. Will feed
+     * {@link #publishProgress(Object...)}. The output stream is not closed. If
+     * {@link #ifNoneMatch} or {@link #ifModifiedSince} are set and the remote
+     * file did not change, nothing is written and {@link #notModified} is set.
+     * 
+     * @param remote URL connection to load from.
+     * @param out The stream to write the file content to.
+     * @return <code>true</code> if the file was loaded completely,
+     *         <code>false</code> if the task was cancelled.
+     * @throws IOException If something goes wrong.
+     */
+    protected boolean loadFile(URL remote, OutputStream out) throws IOException {
+        HttpURLConnection connection = openConnection(remote, isAuthorized(remote, remote));
+
+        InputStream content = null;
+        // Whether the response was read completely, so the connection can be
+        // kept alive for the next request
+        boolean reusable = false;
+
+        bytesTransferred = 0;
+        bytesLoaded = 0;
+        permanentLocation = null;
 
         try {
-            // 1. Open stream and check whether we know its length
-            bufferedRemoteStream = new BufferedInputStream(connection.getInputStream());
+            // 0. Follow redirects, the platform would not follow them across
+            // protocols and would not tell us about permanent ones
+            int redirects = 0;
+            boolean permanent = true;
+            int responseCode = connection.getResponseCode();
+            while (isRedirect(responseCode)) {
+                final URL target = getRedirectTarget(connection, ++redirects);
+
+                // Only a leading run of permanent redirects can be skipped
+                permanent &= responseCode == HTTP_MOVED_PERM
+                        || responseCode == HTTP_PERMANENT_REDIRECT;
+                if (permanent)
+                    permanentLocation = target;
+
+                // Credentials only go where they are safe, see isAuthorized()
+                final HttpURLConnection redirect = connection;
+                connection = openConnection(target, isAuthorized(remote, target));
+                transport.release(redirect, true);
+
+                responseCode = connection.getResponseCode();
+            }
+
+            // 1. Check whether the local copy is still good and keep the
+            // validators for the file we are about to load
+            notModified = responseCode == HTTP_NOT_MODIFIED;
+            if (notModified) {
+                reusable = true;
+                return true;
+            }
+
+            eTag = connection.getHeaderField("ETag");
+            lastModified = connection.getHeaderField("Last-Modified");
+
+            // 2. Open stream, decompress if needed, and check whether we know
+            // its length (which is the length of the compressed stream)
+            final CountingInputStream remoteStream = new CountingInputStream(
+                    new BufferedInputStream(connection.getInputStream()));
+            content = decode(remoteStream, connection.getContentEncoding());
             final int contentLength = connection.getContentLength();
             // Check whether we should abort load since we have a load limit set
             // and the content length is higher.
@@ -121,40 +302,55 @@ public abstract class LoadRemoteFileTask<Params, Result> extends
                 throw new IOException("Load limit exceeded (content length reported by remote is "
                         + contentLength + " bytes, limit was " + loadLimit + " bytes)!");
             // Check whether we could calculate the percentage of completion,
-            // this only works if a content length is given and the content is
-            // not gzipped
-            final boolean isZippedResponse = connection.getContentEncoding() != null
-                    && connection.getContentEncoding().equals("gzip");
-            final boolean sendLoadProgress = contentLength > 0 && !isZippedResponse;
+            // this only works if a content length is given. For compressed
+            // content, this is calculated on the compressed bytes.
+            final boolean sendLoadProgress = contentLength > 0;
 
             // showResponseHeaderDetails(connection);
 
-            // 2. Create the byte buffer to write to
-            result = new ByteArrayOutputStream();
+            // 3. Start writing to the output
             publishProgress(Progress.LOAD);
 
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[8 * 1024];
             int bytesRead = 0;
             int totalBytes = 0;
+            // Only publish progress on whole percent changes and not more
+            // often than every PROGRESS_INTERVAL, each update is a message to
+            // the main thread fanned out to all listeners
+            int lastPercent = -1;
+            long lastProgressTime = 0;
 
-            // 3. Read stream and report progress (if possible)
-            while ((bytesRead = bufferedRemoteStream.read(buffer)) > 0) {
+            // 4. Read stream and report progress (if possible)
+            while ((bytesRead = content.read(buffer)) > 0) {
                 if (isCancelled())
-                    return null;
+                    return false;
 
                 totalBytes += bytesRead;
                 if (loadLimit >= 0 && totalBytes > loadLimit)
                     throw new IOException("Load limit exceeded (read " + totalBytes +
                             " bytes, limit was " + loadLimit + " bytes)!");
 
-                result.write(buffer, 0, bytesRead);
+                out.write(buffer, 0, bytesRead);
 
-                if (sendLoadProgress)
-                    publishProgress(new Progress(totalBytes, contentLength));
+                if (sendLoadProgress) {
+                    final int percent = (int) (remoteStream.count * 100 / contentLength);
+                    final long now = System.nanoTime() / 1000000;
+
+                    if (percent > lastPercent
+                            && (percent >= 100 || now - lastProgressTime >= PROGRESS_INTERVAL)) {
+                        publishProgress(Progress.forPercent(percent));
+
+                        lastPercent = percent;
+                        lastProgressTime = now;
+                    }
+                }
             }
 
-            // 4. Return result as a byte array
-            return result.toByteArray();
+            // 5. All done
+            bytesTransferred = remoteStream.count;
+            bytesLoaded = totalBytes;
+            reusable = true;
+            return true;
         } catch (IOException ioe) {
             // Make sure sub-classes can react if auth is needed
             if (connection.getResponseCode() == HTTP_UNAUTHORIZED)
@@ -162,27 +358,170 @@ public abstract class LoadRemoteFileTask<Params, Result> extends
 
             throw ioe;
         } finally {
-            // Close the streams
-            // To remote
-            if (bufferedRemoteStream != null)
-                try {
-                    bufferedRemoteStream.close();
-                } catch (Exception e) {
-                    // Nothing we can do here
-                }
+            // Hand back the connection, the transport closes the stream and
+            // keeps the connection alive if possible
+            transport.release(connection, reusable);
 
-            // To the local byte array
-            if (result != null)
+            // Free the decompressor (the remote stream is closed already)
+            if (content != null)
                 try {
-                    result.close();
+                    content.close();
                 } catch (Exception e) {
                     // Nothing we can do here
                 }
 
-            // Disconnect
-            connection.disconnect();
-
             // reportCacheStats();
         }
     }
+
+    /**
+     * Find where the given location ends up after all redirects without
+     * loading the file, using HEAD requests. Use this to hand the final
+     * location to clients that would otherwise follow the redirects
+     * themselves every time.
+     * 
+     * @param remote The location to resolve.
+     * @return The final location, i.e. the first one not redirecting further.
+     *         This is the location given if there are no redirects.
+     * @throws IOException If the redirects cannot be followed.
+     */
+    protected URL resolve(URL remote) throws IOException {
+        URL location = remote;
+
+        for (int redirects = 1; !isCancelled(); redirects++) {
+            final HttpURLConnection connection = openConnection(location,
+                    isAuthorized(remote, location));
+
+            try {
+                connection.setRequestMethod("HEAD");
+
+                // Any other response (even an error, e.g. for servers not
+                // supporting HEAD) means we arrived
+                if (!isRedirect(connection.getResponseCode()))
+                    return location;
+
+                location = getRedirectTarget(connection, redirects);
+            } finally {
+                transport.release(connection, true);
+            }
+        }
+
+        return location;
+    }
+
+    /**
+     * Check whether credentials may go to the given location.
+     * 
+     * @param remote The location the load was started for.
+     * @param location The location about to be requested.
+     * @return Whether the credentials can be sent to the location, as decided
+     *         by {@link #canSendAuthorization(URL, URL)} for the
+     *         {@link #authorizationUrl} or, if that is not set, the remote
+     *         location.
+     */
+    protected boolean isAuthorized(URL remote, URL location) {
+        return canSendAuthorization(authorizationUrl == null ? remote : authorizationUrl,
+                location);
+    }
+
+    /**
+     * Check whether credentials given for one location may be sent to
+     * another, e.g. the target of a redirect. This is the case if both are on
+     * the same host and the request does not drop from https to plain http.
+     * 
+     * @param origin The location the credentials were given for.
+     * @param location The location about to be requested.
+     * @return Whether the credentials can go to the location.
+     */
+    public static boolean canSendAuthorization(URL origin, URL location) {
+        return origin.getHost().equalsIgnoreCase(location.getHost())
+                && ("https".equals(location.getProtocol())
+                || origin.getProtocol().equals(location.getProtocol()));
+    }
+
+    private URL getRedirectTarget(HttpURLConnection connection, int redirects)
+            throws IOException {
+        final String location = connection.getHeaderField("Location");
+        if (location == null || redirects > MAX_REDIRECTS)
+            throw new IOException("Cannot follow redirect from " + connection.getURL()
+                    + " (" + redirects + " redirects, location " + location + ")");
+
+        final URL target = new URL(connection.getURL(), location);
+        if (!"http".equals(target.getProtocol()) && !"https".equals(target.getProtocol()))
+            throw new IOException("Redirect to unsupported protocol: " + target);
+
+        return target;
+    }
+
+    private HttpURLConnection openConnection(URL remote, boolean sendAuthorization)
+            throws IOException {
+        final HttpURLConnection connection = transport.open(remote);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        // We follow redirects ourselves, see loadFile()
+        connection.setInstanceFollowRedirects(false);
+        // Set whether we use the http cache
+        connection.setUseCaches(useCaches);
+        // We set a custom user agent here because some servers (e.g. ZDF.de)
+        // redirect connections from mobile devices to servers where the content
+        // we are looking for might not be available.
+        connection.setRequestProperty(USER_AGENT_KEY, USER_AGENT_VALUE);
+        // Set cache control directive
+        if (maxStale >= 0)
+            connection.addRequestProperty("Cache-Control", "max-stale=" + maxStale);
+        // Allow for password protected feeds
+        if (authorization != null && sendAuthorization)
+            connection.setRequestProperty(AUTHORIZATION_KEY, authorization);
+        // Ask for compression explicitly, this makes the platform hand us the
+        // compressed stream and its real length, so we can show progress
+        connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        // Make this a conditional request if we have a local copy
+        if (ifNoneMatch != null)
+            connection.setRequestProperty("If-None-Match", ifNoneMatch);
+        if (ifModifiedSince != null)
+            connection.setRequestProperty("If-Modified-Since", ifModifiedSince);
+
+        return connection;
+    }
+
+    private static boolean isRedirect(int responseCode) {
+        return responseCode == HTTP_MOVED_PERM || responseCode == HTTP_MOVED_TEMP
+                || responseCode == HTTP_SEE_OTHER || responseCode == HTTP_TEMPORARY_REDIRECT
+                || responseCode == HTTP_PERMANENT_REDIRECT;
+    }
+
+    private static InputStream decode(InputStream in, String encoding) throws IOException {
+        if ("gzip".equalsIgnoreCase(encoding) || "x-gzip".equalsIgnoreCase(encoding))
+            return new GZIPInputStream(in);
+        else if ("deflate".equalsIgnoreCase(encoding)) {
+            // Servers send deflate either with or without the zlib wrapper,
+            // peek at the header to find out
+            final PushbackInputStream peek = new PushbackInputStream(in, 2);
+            final int first = peek.read();
+            final int second = peek.read();
+            if (second >= 0)
+                peek.unread(second);
+            if (first >= 0)
+                peek.unread(first);
+
+            final boolean zlib = first >= 0 && second >= 0 && (first & 0x0f) == 8
+                    && ((first << 8) | second) % 31 == 0;
+
+            // Streams given their own inflater do not end it on close, we
+            // need to do that to free its native memory right away
+            return new InflaterInputStream(peek, new Inflater(!zlib)) {
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+        else
+            return in;
+    }
 }
@@ -0,0 +1,73 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.tasks.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * The default {@link HttpTransport} based on the platform's
+ * {@link HttpURLConnection}. Connections are kept alive and pooled per host
+ * by the platform, so loading several files from the same host (e.g. feeds
+ * from feedburner or libsyn) only pays for the TCP and TLS handshake once.
+ * This only works if connections are not disconnected and their response is
+ * read completely and closed, which is what {@link #release(HttpURLConnection,
+ * boolean)} does for reusable connections.
+ */
+public class PooledHttpTransport implements HttpTransport {
+
+    /** The maximum number of idle connections the platform keeps alive */
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+
+    /**
+     * Create the transport. This configures the platform's connection pool,
+     * which reads its settings on first use, so create the transport early.
+     */
+    public PooledHttpTransport() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    }
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    @Override
+    public void release(HttpURLConnection connection, boolean reusable) {
+        if (reusable)
+            try {
+                // Read whatever is left and close the stream, this hands the
+                // connection back to the pool
+                final InputStream in = connection.getInputStream();
+                final byte[] buffer = new byte[1024];
+                while (in.read(buffer) >= 0) {
+                    // Discard
+                }
+                in.close();
+
+                return;
+            } catch (IOException ioe) {
+                // Fall through and drop the connection
+            }
+
+        connection.disconnect();
+    }
+}
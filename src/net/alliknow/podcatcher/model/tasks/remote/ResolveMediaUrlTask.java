@@ -0,0 +1,84 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.tasks.remote;
+
+import android.util.Log;
+
+import net.alliknow.podcatcher.listeners.OnResolveMediaUrlListener;
+import net.alliknow.podcatcher.model.types.Episode;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Follows the redirects of an episode's media URL (e.g. via tracking services
+ * like podtrac or blubrry) to the location the media file is actually served
+ * from. Only HEAD requests are sent, the media file itself is not loaded.
+ */
+public class ResolveMediaUrlTask extends LoadRemoteFileTask<Episode, String> {
+
+    /** Our log tag */
+    private static final String TAG = "ResolveMediaUrlTask";
+
+    /** Call back */
+    private final OnResolveMediaUrlListener listener;
+
+    /** The media URL resolved */
+    private String mediaUrl;
+
+    /**
+     * Create new task.
+     * 
+     * @param listener Callback to be alerted on completion or failure.
+     */
+    public ResolveMediaUrlTask(OnResolveMediaUrlListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    protected String doInBackground(Episode... episodes) {
+        this.mediaUrl = episodes[0].getMediaUrl();
+
+        try {
+            // Credentials are needed by some servers for the HEAD request
+            if (episodes[0].getPodcast() != null)
+                this.authorization = episodes[0].getPodcast().getAuthorization();
+
+            return resolve(new URL(mediaUrl)).toString();
+        } catch (IOException ioe) {
+            // This will also catch mal-formed URLs
+            Log.d(TAG, "Cannot resolve media URL " + mediaUrl, ioe);
+
+            cancel(true);
+        }
+
+        return null;
+    }
+
+    @Override
+    protected void onPostExecute(String location) {
+        if (listener != null)
+            listener.onMediaUrlResolved(mediaUrl, location);
+    }
+
+    @Override
+    protected void onCancelled(String location) {
+        if (listener != null)
+            listener.onMediaUrlResolveFailed(mediaUrl);
+    }
+}
@@ -0,0 +1,659 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.tasks.remote;
+
+import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_NOT_IMPLEMENTED;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+import static net.alliknow.podcatcher.Podcatcher.AUTHORIZATION_KEY;
+import static net.alliknow.podcatcher.Podcatcher.USER_AGENT_KEY;
+import static net.alliknow.podcatcher.Podcatcher.USER_AGENT_VALUE;
+
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import net.alliknow.podcatcher.Podcatcher;
+import net.alliknow.podcatcher.SettingsActivity;
+import net.alliknow.podcatcher.model.EpisodeDownloadManager;
+import net.alliknow.podcatcher.model.StreamCache;
+import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask.DownloadTaskListener;
+import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask.EpisodeDownloadError;
+import net.alliknow.podcatcher.model.types.Episode;
+import net.alliknow.podcatcher.preferences.DownloadFolderPreference;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Async task that downloads an episode in-app, i.e. without using the system's
+ * download manager. Large files from servers supporting range requests are
+ * fetched using several connections in parallel, each writing its segment of
+ * the file directly to the final location through a shared {@link FileChannel}
+ * . Interrupted downloads leave a partial file and a small state file behind,
+ * so the next task for the same episode picks up where the last one stopped.
+ * Bandwidth can be capped per download and globally for all in-app downloads.
+ * The task reports to the same {@link DownloadTaskListener} as the
+ * {@link DownloadEpisodeTask}, but is busy for as long as the download takes.
+ */
+public class SegmentedDownloadTask extends AsyncTask<Episode, Integer, Void> {
+
+    /** The suffix for the partial file while the download runs */
+    public static final String PARTIAL_FILE_SUFFIX = ".part";
+    /** The suffix for the state file kept next to the partial file */
+    public static final String STATE_FILE_SUFFIX = ".state";
+
+    /** The default maximum number of parallel connections per download */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    /** The minimum size for a segment loaded via its own connection */
+    public static final long MIN_SEGMENT_SIZE = 2 * 1024 * 1024;
+
+    /** The connection timeout */
+    private static final int CONNECT_TIMEOUT = 8000;
+    /** The read timeout */
+    private static final int READ_TIMEOUT = 60000;
+    /** The size of the read buffer used for each connection */
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /** The amount of bytes a segment loads before the state is saved */
+    private static final long STATE_SAVE_INTERVAL = 512 * 1024;
+
+    /** The bandwidth limit shared by all in-app downloads */
+    private static final BandwidthLimiter GLOBAL_LIMITER = new BandwidthLimiter(0);
+    /** The executor running the connections for all segments */
+    private static final ExecutorService SEGMENT_EXECUTOR = Executors.newCachedThreadPool();
+
+    /** The podcatcher app handle */
+    private final Podcatcher podcatcher;
+    /** The listener (episode manager) we report to */
+    private final DownloadTaskListener listener;
+    /** The bandwidth limit for this download only */
+    private final BandwidthLimiter limiter = new BandwidthLimiter(0);
+
+    /** The maximum number of connections to use */
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    /** The authorization to send */
+    private String authorization;
+
+    /** The episode we are downloading */
+    private Episode episode;
+    /** The file the episode is available at once done */
+    private File episodeFile;
+    /** The episode download error code */
+    private EpisodeDownloadError downloadError = EpisodeDownloadError.UNKNOWN;
+    /** Flag to indicate that the download was discarded */
+    private volatile boolean discarded = false;
+
+    /** The number of bytes available locally (including resumed) */
+    private final AtomicLong bytesLoaded = new AtomicLong();
+    /** The current percentage state of the download [0...100] */
+    private final AtomicInteger percentProgress = new AtomicInteger(-1);
+
+    /**
+     * A token bucket limiting the throughput of the connections using it. A
+     * limit of zero or less turns the limiter off.
+     */
+    public static class BandwidthLimiter {
+
+        /** The limit in bytes per second */
+        private volatile int bytesPerSecond;
+        /** The bytes we can consume right now */
+        private long available;
+        /** The last time the bucket was refilled (in ns) */
+        private long lastRefill = System.nanoTime();
+
+        /**
+         * Create a new limiter.
+         * 
+         * @param bytesPerSecond The limit to apply, zero or less for none.
+         */
+        public BandwidthLimiter(int bytesPerSecond) {
+            setLimit(bytesPerSecond);
+        }
+
+        /**
+         * @param bytesPerSecond The limit to apply, zero or less for none.
+         */
+        public synchronized void setLimit(int bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.available = Math.max(0, bytesPerSecond);
+        }
+
+        /**
+         * @return The limit applied, zero or less for none.
+         */
+        public int getLimit() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * Block until the given amount of bytes can be consumed without
+         * exceeding the limit.
+         * 
+         * @param bytes The amount of bytes to consume.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        public void acquire(int bytes) throws InterruptedException {
+            while (true) {
+                final long wait;
+
+                synchronized (this) {
+                    final int limit = bytesPerSecond;
+                    if (limit <= 0)
+                        return;
+
+                    final long now = System.nanoTime();
+                    available = Math.min(limit,
+                            available + (now - lastRefill) * limit / 1000000000l);
+                    lastRefill = now;
+
+                    // Chunks larger than the bucket go through once it is full
+                    if (available >= bytes || available == limit) {
+                        available -= bytes;
+                        return;
+                    }
+
+                    wait = (bytes - available) * 1000l / limit;
+                }
+
+                Thread.sleep(Math.max(1, wait));
+            }
+        }
+    }
+
+    /** A range of the file loaded via one connection */
+    private static class Segment {
+
+        /** The first byte of the segment */
+        private final long start;
+        /** The next byte to load */
+        private volatile long position;
+        /** The last byte to load (inclusive) or -1 if unknown */
+        private final long end;
+
+        private Segment(long start, long position, long end) {
+            this.start = start;
+            this.position = position;
+            this.end = end;
+        }
+
+        private boolean isComplete() {
+            return end >= 0 && position > end;
+        }
+    }
+
+    /**
+     * Create a new task.
+     * 
+     * @param podcatcher The podcatcher app handle.
+     * @param listener The call-back used by the task.
+     */
+    public SegmentedDownloadTask(Podcatcher podcatcher, DownloadTaskListener listener) {
+        this.podcatcher = podcatcher;
+        this.listener = listener;
+    }
+
+    /**
+     * Set the bandwidth limit shared by all in-app downloads.
+     * 
+     * @param bytesPerSecond The limit in bytes per second, zero or less to turn
+     *            the limit off.
+     */
+    public static void setGlobalBandwidthLimit(int bytesPerSecond) {
+        GLOBAL_LIMITER.setLimit(bytesPerSecond);
+    }
+
+    /**
+     * Set the bandwidth limit for this download only.
+     * 
+     * @param bytesPerSecond The limit in bytes per second, zero or less to turn
+     *            the limit off.
+     */
+    public void setBandwidthLimit(int bytesPerSecond) {
+        limiter.setLimit(bytesPerSecond);
+    }
+
+    /**
+     * Set the maximum number of parallel connections for the download. The
+     * default is {@link #DEFAULT_MAX_CONNECTIONS}.
+     * 
+     * @param connections The number of connections to use at most.
+     */
+    public void setMaxConnections(int connections) {
+        this.maxConnections = Math.max(1, connections);
+    }
+
+    /**
+     * Cancel the download and remove all partial content. The listener will
+     * not be alerted.
+     */
+    public void discard() {
+        this.discarded = true;
+        cancel(false);
+    }
+
+    @Override
+    protected Void doInBackground(Episode... params) {
+        this.episode = params[0];
+        this.authorization = episode.getPodcast().getAuthorization();
+
+        // Find the podcast directory and the path to store episode under
+        final File podcastDir = new File(PreferenceManager.getDefaultSharedPreferences(podcatcher)
+                .getString(SettingsActivity.KEY_DOWNLOAD_FOLDER,
+                        DownloadFolderPreference.getDefaultDownloadFolder().getAbsolutePath()));
+        final String subPath = EpisodeDownloadManager.sanitizeAsFilePath(
+                episode.getPodcast().getName(), episode.getName(), episode.getMediaUrl());
+        // The actual episode file
+        final File localFile = new File(podcastDir, subPath);
+
+        // The episode is already there
+        if (localFile.exists())
+            this.episodeFile = localFile;
+        // The episode was streamed completely, no need to load it again
+        else if (StreamCache.getInstance(podcatcher).promote(episode.getMediaUrl(), localFile))
+            this.episodeFile = localFile;
+        else {
+            // Make sure podcast directory exists
+            localFile.getParentFile().mkdirs();
+
+            try {
+                if (download(new URL(episode.getMediaUrl()), localFile))
+                    this.episodeFile = localFile;
+            } catch (IOException ioe) {
+                Log.w(getClass().getSimpleName(), "Download failed for " + episode, ioe);
+
+                cancel(false);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Run the actual download synchronously. This is what the task runs in the
+     * background, it is available here so the engine can be used without an
+     * episode object.
+     * 
+     * @param source The URL to load from.
+     * @param target The file to write to. Its partial and state files are
+     *            placed next to it.
+     * @return <code>true</code> if the download completed, <code>false</code>
+     *         if it was cancelled.
+     * @throws IOException If the download fails.
+     */
+    public boolean download(URL source, File target) throws IOException {
+        final File partial = new File(target.getPath() + PARTIAL_FILE_SUFFIX);
+        final File state = new File(partial.getPath() + STATE_FILE_SUFFIX);
+
+        // 1. Find out about the file to load
+        long length = -1;
+        boolean acceptsRanges = false;
+        String validator = null;
+
+        final HttpURLConnection probe = openConnection(source);
+        try {
+            probe.setRequestMethod("HEAD");
+            final int code = probe.getResponseCode();
+
+            // Some servers do not like HEAD, we go without information then
+            if (code != HTTP_BAD_METHOD && code != HTTP_NOT_IMPLEMENTED) {
+                if (code >= 400)
+                    throw new IOException("Server responded with " + code);
+
+                length = parseLength(probe.getHeaderField("Content-Length"));
+                acceptsRanges = "bytes".equalsIgnoreCase(probe.getHeaderField("Accept-Ranges"));
+                validator = probe.getHeaderField("ETag");
+                if (validator == null)
+                    validator = probe.getHeaderField("Last-Modified");
+            }
+        } finally {
+            probe.disconnect();
+        }
+
+        // 2. Resume if possible, create new plan otherwise
+        final boolean ranged = acceptsRanges && length > 0;
+        List<Segment> segments = ranged && partial.exists() ?
+                readState(state, length, validator) : null;
+        if (segments == null) {
+            partial.delete();
+            segments = planSegments(ranged ? length : -1);
+        }
+
+        long loaded = 0;
+        for (Segment segment : segments)
+            loaded += segment.position - segment.start;
+        bytesLoaded.set(loaded);
+
+        // Make sure there is enough room for the rest
+        final File directory = target.getAbsoluteFile().getParentFile();
+        if (length > 0 && directory != null && directory.getUsableSpace() < length - loaded) {
+            downloadError = EpisodeDownloadError.NO_SPACE;
+            throw new IOException("Not enough space for " + (length - loaded) + " bytes");
+        }
+
+        // 3. Load all missing segments in parallel
+        final RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(partial, "rw");
+        } catch (IOException ioe) {
+            downloadError = EpisodeDownloadError.DESTINATION_NOT_WRITEABLE;
+            throw ioe;
+        }
+
+        final FileChannel channel = file.getChannel();
+        try {
+            if (!ranged)
+                channel.truncate(0);
+
+            runSegments(source, channel, segments, state, length, ranged ? validator : null);
+        } finally {
+            try {
+                channel.close();
+                file.close();
+            } catch (IOException ioe) {
+                // pass
+            }
+        }
+
+        // 4. Clean up or finish
+        if (isCancelled()) {
+            if (discarded) {
+                partial.delete();
+                state.delete();
+            }
+            else if (ranged)
+                writeState(state, segments, length, validator);
+
+            return false;
+        }
+        else {
+            if (length > 0 && partial.length() != length)
+                throw new IOException("Expected " + length + " bytes, got " + partial.length());
+
+            state.delete();
+            if (!partial.renameTo(target)) {
+                downloadError = EpisodeDownloadError.DESTINATION_NOT_WRITEABLE;
+                throw new IOException("Cannot move " + partial + " to " + target);
+            }
+
+            return true;
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        if (!discarded)
+            listener.onEpisodeDownloadProgressed(episode, values[0]);
+    }
+
+    @Override
+    protected void onPostExecute(Void result) {
+        // If the episodeFile member is set, the download was successful
+        if (episodeFile != null)
+            listener.onEpisodeDownloaded(episode, episodeFile);
+        else
+            onCancelled(result);
+    }
+
+    @Override
+    protected void onCancelled(Void result) {
+        if (!discarded)
+            listener.onEpisodeDownloadFailed(episode, downloadError);
+    }
+
+    private List<Segment> planSegments(long length) {
+        final List<Segment> segments = new ArrayList<Segment>();
+
+        // Unknown length or no range support: one stream
+        if (length <= 0)
+            segments.add(new Segment(0, 0, -1));
+        else {
+            final int count = (int) Math.max(1, Math.min(maxConnections, length / MIN_SEGMENT_SIZE));
+            final long size = length / count;
+
+            for (int index = 0; index < count; index++)
+                segments.add(new Segment(index * size, index * size,
+                        index == count - 1 ? length - 1 : (index + 1) * size - 1));
+        }
+
+        return segments;
+    }
+
+    private void runSegments(final URL source, final FileChannel channel,
+            final List<Segment> segments, final File state, final long length,
+            final String validator) throws IOException {
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        final List<Future<?>> workers = new ArrayList<Future<?>>();
+        final boolean ranged = segments.get(0).end >= 0;
+
+        for (final Segment segment : segments)
+            if (!segment.isComplete())
+                workers.add(SEGMENT_EXECUTOR.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            loadSegment(source, channel, segment, validator, segments, state,
+                                    length, failure);
+                        } catch (IOException ioe) {
+                            failure.compareAndSet(null, ioe);
+                        } catch (InterruptedException ie) {
+                            failure.compareAndSet(null, new IOException("Interrupted"));
+                        }
+                    }
+                }));
+
+        // Wait for all segments to finish
+        for (Future<?> worker : workers)
+            try {
+                worker.get();
+            } catch (InterruptedException ie) {
+                failure.compareAndSet(null, new IOException("Interrupted"));
+            } catch (ExecutionException ee) {
+                failure.compareAndSet(null, new IOException(ee.getCause()));
+            }
+
+        if (failure.get() != null) {
+            // Keep what we have for the next attempt
+            if (ranged)
+                writeState(state, segments, length, validator);
+
+            throw failure.get();
+        }
+    }
+
+    private void loadSegment(URL source, FileChannel channel, Segment segment, String validator,
+            List<Segment> segments, File state, long length,
+            AtomicReference<IOException> failure) throws IOException, InterruptedException {
+        final boolean ranged = segment.end >= 0;
+        final HttpURLConnection connection = openConnection(source);
+        if (ranged) {
+            connection.setRequestProperty("Range", "bytes=" + segment.position + "-" + segment.end);
+            // Make sure we get the same file we started with
+            if (validator != null)
+                connection.setRequestProperty("If-Range", validator);
+        }
+
+        InputStream remote = null;
+        try {
+            remote = connection.getInputStream();
+            if (ranged && connection.getResponseCode() != HTTP_PARTIAL)
+                throw new IOException("Server ignored range request for " + source);
+
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long sinceSave = 0;
+
+            while (!isCancelled() && failure.get() == null && !segment.isComplete()) {
+                final int toRead = ranged ?
+                        (int) Math.min(buffer.length, segment.end - segment.position + 1)
+                        : buffer.length;
+                final int bytesRead = remote.read(buffer, 0, toRead);
+                if (bytesRead < 0)
+                    break;
+
+                limiter.acquire(bytesRead);
+                GLOBAL_LIMITER.acquire(bytesRead);
+
+                // Positional writes, the channel is shared by all segments
+                final ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                long position = segment.position;
+                while (data.hasRemaining())
+                    position += channel.write(data, position);
+                segment.position = position;
+
+                publishLoadProgress(bytesLoaded.addAndGet(bytesRead), length);
+
+                sinceSave += bytesRead;
+                if (ranged && sinceSave >= STATE_SAVE_INTERVAL) {
+                    writeState(state, segments, length, validator);
+                    sinceSave = 0;
+                }
+            }
+
+            if (ranged && !segment.isComplete() && !isCancelled() && failure.get() == null)
+                throw new IOException("Connection closed early at byte " + segment.position);
+        } finally {
+            if (remote != null)
+                try {
+                    remote.close();
+                } catch (IOException ioe) {
+                    // pass
+                }
+
+            connection.disconnect();
+        }
+    }
+
+    private void publishLoadProgress(long loaded, long length) {
+        if (length > 0) {
+            final int percent = (int) (((float) loaded / (float) length) * 100);
+            final int last = percentProgress.get();
+
+            if (percent > last && percentProgress.compareAndSet(last, percent))
+                publishProgress(percent);
+        }
+    }
+
+    private synchronized void writeState(File state, List<Segment> segments, long length,
+            String validator) {
+        final File temp = new File(state.getPath() + ".tmp");
+        FileWriter writer = null;
+
+        try {
+            writer = new FileWriter(temp);
+            writer.write(length + "\n");
+            writer.write((validator == null ? "" : validator) + "\n");
+            for (Segment segment : segments)
+                writer.write(segment.start + " " + segment.position + " " + segment.end + "\n");
+            writer.close();
+            writer = null;
+
+            if (!temp.renameTo(state))
+                temp.delete();
+        } catch (IOException ioe) {
+            // Not fatal, we might not be able to resume though
+            Log.d(getClass().getSimpleName(), "Cannot write download state to " + state, ioe);
+        } finally {
+            if (writer != null)
+                try {
+                    writer.close();
+                } catch (IOException ioe) {
+                    // pass
+                }
+        }
+    }
+
+    private List<Segment> readState(File state, long length, String validator) {
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new FileReader(state));
+
+            // Only resume if the remote file is still the same
+            if (Long.parseLong(reader.readLine()) != length)
+                return null;
+            final String storedValidator = reader.readLine();
+            if (validator == null || !validator.equals(storedValidator))
+                return null;
+
+            final List<Segment> segments = new ArrayList<Segment>();
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                final String[] values = line.split(" ");
+                segments.add(new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]),
+                        Long.parseLong(values[2])));
+            }
+
+            return segments.isEmpty() ? null : segments;
+        } catch (IOException ioe) {
+            return null;
+        } catch (RuntimeException re) {
+            // Broken state file
+            return null;
+        } finally {
+            if (reader != null)
+                try {
+                    reader.close();
+                } catch (IOException ioe) {
+                    // pass
+                }
+        }
+    }
+
+    private HttpURLConnection openConnection(URL source) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) source.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setUseCaches(false);
+        // We set a custom user agent here because there are servers out there
+        // that apparently block downloads based on this information
+        connection.setRequestProperty(USER_AGENT_KEY, USER_AGENT_VALUE);
+        // We need the actual bytes, not a compressed version
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        // Allow for password protected feeds
+        if (authorization != null)
+            connection.setRequestProperty(AUTHORIZATION_KEY, authorization);
+
+        return connection;
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return value == null ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+}
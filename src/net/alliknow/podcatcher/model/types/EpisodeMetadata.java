@@ -40,6 +40,12 @@ public class EpisodeMetadata {
     public Boolean isOld;
     /** The playlist position for the episode */
     public Integer playlistPosition;
+    /** The point in time (millis) this record was last changed */
+    public long lastTouched;
+    /** The priority of the download while queued, <code>null</code> if not */
+    public Integer downloadPriority;
+    /** The point in time (millis) the download was queued */
+    public Long downloadQueuedAt;
 
     /**
      * Extra information that is only valid when the app runs and is not saved.
@@ -85,6 +91,16 @@ public class EpisodeMetadata {
                 playlistPosition == null;
     }
 
+    /**
+     * Mark this record as changed just now. This is used to decide which
+     * records to evict first if there are too many.
+     * 
+     * @see MetadataRetentionPolicy
+     */
+    public void touch() {
+        this.lastTouched = System.currentTimeMillis();
+    }
+
     /**
      * Create an actual episode object from the metadata.
      * 
@@ -0,0 +1,68 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.types;
+
+import android.content.Context;
+
+import net.alliknow.podcatcher.R;
+
+/**
+ * The sizes podcast logos are prepared in. All variants are created once from
+ * the same source when the logo is decoded, so the places showing logos never
+ * need to scale them at runtime.
+ */
+public enum LogoVariant {
+    /** The small logo shown in the podcast list rows */
+    THUMBNAIL(R.dimen.logo_thumbnail_size, R.dimen.logo_thumbnail_size),
+
+    /** The large logo shown below the podcast list */
+    LARGE(R.dimen.logo_size, R.dimen.logo_size),
+
+    /** The large icon of the playback notification */
+    NOTIFICATION(android.R.dimen.notification_large_icon_width,
+            android.R.dimen.notification_large_icon_height),
+
+    /** The artwork shown on the lock screen */
+    ARTWORK(R.dimen.logo_artwork_size, R.dimen.logo_artwork_size);
+
+    /** The dimension resource for the width */
+    private final int widthResource;
+    /** The dimension resource for the height */
+    private final int heightResource;
+
+    private LogoVariant(int widthResource, int heightResource) {
+        this.widthResource = widthResource;
+        this.heightResource = heightResource;
+    }
+
+    /**
+     * @param context The context to read the dimension from.
+     * @return The width of the variant in pixels.
+     */
+    public int getWidth(Context context) {
+        return context.getResources().getDimensionPixelSize(widthResource);
+    }
+
+    /**
+     * @param context The context to read the dimension from.
+     * @return The height of the variant in pixels.
+     */
+    public int getHeight(Context context) {
+        return context.getResources().getDimensionPixelSize(heightResource);
+    }
+}
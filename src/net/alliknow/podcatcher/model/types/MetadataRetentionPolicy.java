@@ -0,0 +1,165 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.types;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Defines which episode metadata records are worth keeping. Only records that
+ * carry state information alone (see {@link EpisodeMetadata#hasOnlyStateData()}
+ * ) are ever evicted, downloads and playlist entries are never touched. The
+ * policy is enforced whenever the metadata is compacted, i.e. fully written to
+ * disk. Records are evicted if:
+ * <ul>
+ * <li>their podcast is no longer subscribed to (if enabled),</li>
+ * <li>they have not been changed for longer than the maximum age, or</li>
+ * <li>the total number of records exceeds the maximum record count. In this
+ * case the least recently touched records go first.</li>
+ * </ul>
+ * To keep the compaction cheap, a single run will evict a bounded number of
+ * records only, the remainder is taken care of by the following runs.
+ */
+public class MetadataRetentionPolicy {
+
+    /** The maximum number of records evicted per compaction */
+    private static final int MAX_EVICTIONS_PER_RUN = 1000;
+
+    /** The policy used unless the episode manager is told otherwise */
+    public static final MetadataRetentionPolicy DEFAULT =
+            new MetadataRetentionPolicy(5000, 365L * 24 * 60 * 60 * 1000, true);
+
+    /** The maximum number of records to keep */
+    private final int maxRecords;
+    /** The maximum age in millis since a record was last touched */
+    private final long maxAge;
+    /** Whether state is kept for subscribed podcasts only */
+    private final boolean subscribedOnly;
+
+    /**
+     * Create a new retention policy.
+     * 
+     * @param maxRecords The maximum number of records to keep. Give a number
+     *            <= 0 to disable this limit.
+     * @param maxAge The maximum time in millis since a record was last changed
+     *            before it is evicted. Give a number <= 0 to disable.
+     * @param subscribedOnly Whether to evict state for podcasts no longer in
+     *            the podcast list.
+     */
+    public MetadataRetentionPolicy(int maxRecords, long maxAge, boolean subscribedOnly) {
+        this.maxRecords = maxRecords;
+        this.maxAge = maxAge;
+        this.subscribedOnly = subscribedOnly;
+    }
+
+    /**
+     * @return The maximum number of records to keep.
+     */
+    public int getMaxRecords() {
+        return maxRecords;
+    }
+
+    /**
+     * @return The maximum age of a record since last change in millis.
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @return Whether state is only kept for subscribed podcasts.
+     */
+    public boolean isSubscribedOnly() {
+        return subscribedOnly;
+    }
+
+    /**
+     * Apply the policy to the given metadata. Evicted records are removed from
+     * the map given.
+     * 
+     * @param metadata The metadata to compact, make sure nobody else is
+     *            altering it while this runs.
+     * @param subscribedPodcasts The URLs of all podcasts currently subscribed
+     *            to. Give <code>null</code> if not known, state is then kept
+     *            for all podcasts.
+     * @param now The current time in millis.
+     * @return The evicted records' keys, each pointing at the last touched
+     *         time stamp the record had when evicted. Might be empty, but not
+     *         <code>null</code>.
+     */
+    public Map<String, Long> compact(Map<String, EpisodeMetadata> metadata,
+            Set<String> subscribedPodcasts, long now) {
+        final Map<String, Long> evicted = new HashMap<>();
+        // The records we are allowed to evict
+        final List<Entry<String, EpisodeMetadata>> candidates = new ArrayList<>();
+
+        // 1. Evict records for unsubscribed podcasts and records too old
+        Iterator<Entry<String, EpisodeMetadata>> iterator = metadata.entrySet().iterator();
+        while (iterator.hasNext() && evicted.size() < MAX_EVICTIONS_PER_RUN) {
+            final Entry<String, EpisodeMetadata> entry = iterator.next();
+            final EpisodeMetadata meta = entry.getValue();
+
+            if (!meta.hasOnlyStateData())
+                continue;
+
+            final boolean unsubscribed = subscribedOnly && subscribedPodcasts != null
+                    && meta.podcastUrl != null && !subscribedPodcasts.contains(meta.podcastUrl);
+            final boolean expired = maxAge > 0 && meta.lastTouched > 0
+                    && now - meta.lastTouched > maxAge;
+
+            if (unsubscribed || expired) {
+                evicted.put(entry.getKey(), meta.lastTouched);
+                iterator.remove();
+            }
+            else
+                candidates.add(entry);
+        }
+
+        // 2. Evict least recently touched records if there are too many
+        if (maxRecords > 0 && metadata.size() > maxRecords) {
+            Collections.sort(candidates, new Comparator<Entry<String, EpisodeMetadata>>() {
+
+                @Override
+                public int compare(Entry<String, EpisodeMetadata> lhs,
+                        Entry<String, EpisodeMetadata> rhs) {
+                    final long left = lhs.getValue().lastTouched;
+                    final long right = rhs.getValue().lastTouched;
+
+                    return left < right ? -1 : (left == right ? 0 : 1);
+                }
+            });
+
+            for (Entry<String, EpisodeMetadata> entry : candidates) {
+                if (metadata.size() <= maxRecords || evicted.size() >= MAX_EVICTIONS_PER_RUN)
+                    break;
+
+                evicted.put(entry.getKey(), entry.getValue().lastTouched);
+                metadata.remove(entry.getKey());
+            }
+        }
+
+        return evicted;
+    }
+}
@@ -22,6 +22,7 @@ import android.net.Uri;
 import android.text.Html;
 import android.util.Base64;
 
+import net.alliknow.podcatcher.model.LogoCache;
 import net.alliknow.podcatcher.model.ParserUtils;
 import net.alliknow.podcatcher.model.tags.RSS;
 
@@ -58,7 +59,15 @@ import java.util.Locale;
  * the logo's online location (after {@link #parse(XmlPullParser)}, of course)
  * and for caching of the logo using {@link #setLogo(Bitmap)}. Use
  * {@link #isLogoCached()} to find the current state, {@link #getLogo()} will
- * return an immutable copy.
+ * return the shared, immutable bitmap. The logos are not held by the podcast
+ * itself, but by the {@link LogoCache} with the podcast's URL as the key, so
+ * they might disappear if memory is tight and need to be loaded again.
+ * </p>
+ * <p>
+ * <b>Redirects:</b> Feeds that moved permanently are loaded from their new
+ * location, use {@link #getLoadUrl()} when requesting the feed and report
+ * where it was found with {@link #recordRedirect(String)}. Once the new
+ * location proved stable, {@link #applyRedirect()} makes it the podcast's URL.
  * </p>
  */
 public class Podcast extends FeedEntity implements Comparable<Podcast> {
@@ -72,8 +81,6 @@ public class Podcast extends FeedEntity implements Comparable<Podcast> {
 
     /** The podcast's image (logo) location */
     protected String logoUrl;
-    /** The cached logo bitmap */
-    protected Bitmap logo;
 
     /** Username for http authorization */
     protected String username;
@@ -87,6 +94,15 @@ public class Podcast extends FeedEntity implements Comparable<Podcast> {
 
     /** The count of failed load attempts */
     private int failedLoadAttempts = 0;
+    /** The transfer sizes of the feed loads */
+    private final TransferStats transferStats = new TransferStats();
+
+    /** The number of loads a redirect needs to be seen on to be stable */
+    public static final int STABLE_REDIRECT_COUNT = 3;
+    /** The location the feed permanently moved to, if any */
+    private String redirectUrl;
+    /** The number of loads that confirmed the redirect location */
+    private int redirectCount = 0;
 
     /**
      * Create a new podcast by name and RSS file location. The name will not be
@@ -230,30 +246,66 @@ public class Podcast extends FeedEntity implements Comparable<Podcast> {
     }
 
     /**
-     * Get a cached logo for this podcast.
+     * Get the cached large logo for this podcast.
      * 
      * @return The cached logo if it was previously set using
-     *         {@link #setLogo(Bitmap)}, <code>null</code> otherwise.
+     *         {@link #setLogo(Bitmap)} and is still in the cache,
+     *         <code>null</code> otherwise. The bitmap is shared, do not
+     *         recycle or alter it.
+     * @see #getLogo(LogoVariant)
      */
     public Bitmap getLogo() {
-        return logo == null ? null : Bitmap.createBitmap(logo);
+        return getLogo(LogoVariant.LARGE);
+    }
+
+    /**
+     * Get a cached logo variant for this podcast.
+     * 
+     * @param variant The logo size wanted.
+     * @return The cached logo if it was previously set using
+     *         {@link #setLogo(LogoVariant, Bitmap)} and is still in the cache,
+     *         <code>null</code> otherwise. The bitmap is shared, do not
+     *         recycle or alter it.
+     */
+    public Bitmap getLogo(LogoVariant variant) {
+        return LogoCache.getInstance().get(url, variant);
     }
 
     /**
-     * @return Whether the podcast's logo is currently cached and returned by
-     *         {@link #getLogo()}.
+     * @return Whether the podcast's large logo is currently cached and returned
+     *         by {@link #getLogo()}.
      */
     public boolean isLogoCached() {
-        return logo != null;
+        return isLogoCached(LogoVariant.LARGE);
     }
 
     /**
-     * Cache the podcast logo given.
+     * @param variant The logo size to check for.
+     * @return Whether the podcast's logo in the given size is currently cached
+     *         and returned by {@link #getLogo(LogoVariant)}.
+     */
+    public boolean isLogoCached(LogoVariant variant) {
+        return LogoCache.getInstance().contains(url, variant);
+    }
+
+    /**
+     * Cache the large podcast logo given.
      * 
      * @param logo Logo to use for this podcast.
      */
     public void setLogo(Bitmap logo) {
-        this.logo = logo;
+        setLogo(LogoVariant.LARGE, logo);
+    }
+
+    /**
+     * Cache the podcast logo given.
+     * 
+     * @param variant The logo size given.
+     * @param logo Logo to use for this podcast, should match the variant's
+     *            size.
+     */
+    public void setLogo(LogoVariant variant, Bitmap logo) {
+        LogoCache.getInstance().put(url, variant, logo);
     }
 
     /**
@@ -286,6 +338,117 @@ public class Podcast extends FeedEntity implements Comparable<Podcast> {
         return this.failedLoadAttempts;
     }
 
+    /**
+     * @return The transfer size statistics for the loads of this podcast's
+     *         feed, record to it when loading the feed.
+     */
+    public TransferStats getTransferStats() {
+        return transferStats;
+    }
+
+    /**
+     * @return The location to load the feed from. This is the podcast's URL
+     *         unless the feed was found to have moved permanently.
+     * @see #recordRedirect(String)
+     */
+    public String getLoadUrl() {
+        return redirectUrl == null ? url : redirectUrl;
+    }
+
+    /**
+     * Record the outcome of a successful feed load from {@link #getLoadUrl()}
+     * regarding redirects.
+     * 
+     * @param location The location the load was permanently redirected to,
+     *            give <code>null</code> if there was no permanent redirect.
+     */
+    public void recordRedirect(String location) {
+        // Loaded from the known location without further redirects
+        if (location == null) {
+            if (redirectUrl != null && redirectCount < STABLE_REDIRECT_COUNT)
+                redirectCount++;
+        } else {
+            final String normalized = normalizeUrl(location);
+
+            // Moved (back) to the podcast's URL, nothing to skip
+            if (normalized.equals(url))
+                resetRedirect();
+            else {
+                redirectUrl = normalized;
+                redirectCount = 1;
+            }
+        }
+    }
+
+    /**
+     * Restore a redirect recorded before, e.g. when reading the podcast list.
+     * Invalid values are ignored.
+     * 
+     * @param location The location the feed moved to, as given by
+     *            {@link #getLoadUrl()}.
+     * @param count The number of loads that confirmed the location, as given
+     *            by {@link #getRedirectCount()}.
+     */
+    public void restoreRedirect(String location, int count) {
+        if (location != null && count > 0 && !normalizeUrl(location).equals(url)) {
+            this.redirectUrl = normalizeUrl(location);
+            this.redirectCount = Math.min(count, STABLE_REDIRECT_COUNT);
+        }
+    }
+
+    /**
+     * @return The number of loads that confirmed the location the feed was
+     *         redirected to, 0 if there is no such location.
+     * @see #isRedirectStable()
+     */
+    public int getRedirectCount() {
+        return redirectCount;
+    }
+
+    /**
+     * Forget about the location the feed was redirected to, e.g. because
+     * loading from it failed. The next load will use the podcast's URL.
+     */
+    public void resetRedirect() {
+        this.redirectUrl = null;
+        this.redirectCount = 0;
+    }
+
+    /**
+     * @return Whether the feed was found at the same new location for at
+     *         least {@link #STABLE_REDIRECT_COUNT} loads.
+     */
+    public boolean isRedirectStable() {
+        return redirectUrl != null && redirectCount >= STABLE_REDIRECT_COUNT;
+    }
+
+    /**
+     * Make the location the feed was redirected to the podcast's URL. This
+     * changes the podcast's identity (see {@link #equals(Object)}), so take
+     * it out of any hashed collection first. Logos cached in memory are
+     * moved along.
+     * 
+     * @return The podcast's former URL or <code>null</code> if there was no
+     *         redirect to apply.
+     */
+    public String applyRedirect() {
+        if (redirectUrl == null)
+            return null;
+
+        final String oldUrl = url;
+        for (LogoVariant variant : LogoVariant.values()) {
+            final Bitmap logo = getLogo(variant);
+
+            LogoCache.getInstance().put(oldUrl, variant, null);
+            LogoCache.getInstance().put(redirectUrl, variant, logo);
+        }
+
+        this.url = redirectUrl;
+        resetRedirect();
+
+        return oldUrl;
+    }
+
     @Override
     public String toString() {
         return name + " at " + url;
@@ -48,6 +48,14 @@ public class Progress {
     /** Done state */
     public static final Progress DONE = new Progress(PROGRESS_DONE, -1);
 
+    /** The shared progress instances for whole percentages */
+    private static final Progress[] PERCENTAGES = new Progress[101];
+
+    static {
+        for (int percent = 0; percent < PERCENTAGES.length; percent++)
+            PERCENTAGES[percent] = new Progress(percent, 100);
+    }
+
     /** The actual amount of progress made */
     protected final int progress;
     /** The total amount of work */
@@ -64,6 +72,22 @@ public class Progress {
         this.total = total;
     }
 
+    /**
+     * Get progress information for a whole percentage. Use this for frequent
+     * updates, since instances for 0 to 100 percent are shared and not
+     * created on each call.
+     * 
+     * @param percent The percentage of work done.
+     * @return The progress with {@link #getPercentDone()} returning the
+     *         percentage given.
+     */
+    public static Progress forPercent(int percent) {
+        if (percent >= 0 && percent < PERCENTAGES.length)
+            return PERCENTAGES[percent];
+        else
+            return new Progress(percent, 100);
+    }
+
     /**
      * @return The amount of work already done.
      */
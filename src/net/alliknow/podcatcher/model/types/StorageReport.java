@@ -0,0 +1,83 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.types;
+
+/**
+ * Summary of a storage budget enforcement run, i.e. the downloads deleted and
+ * the space given back to the system.
+ */
+public class StorageReport {
+
+    /** The number of downloads deleted */
+    private final int evicted;
+    /** The space (in bytes) actually freed */
+    private final long reclaimed;
+    /** The space (in bytes) taken by the downloads before eviction */
+    private final long used;
+    /** The budget (in bytes) enforced */
+    private final long budget;
+
+    /**
+     * Create a new report.
+     * 
+     * @param evicted The number of downloads deleted.
+     * @param reclaimed The space (in bytes) freed.
+     * @param used The space (in bytes) taken by the downloads before.
+     * @param budget The budget (in bytes) enforced.
+     */
+    public StorageReport(int evicted, long reclaimed, long used, long budget) {
+        this.evicted = evicted;
+        this.reclaimed = reclaimed;
+        this.used = used;
+        this.budget = budget;
+    }
+
+    /**
+     * @return The number of downloads deleted.
+     */
+    public int getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return The space (in bytes) freed by deleting the downloads.
+     */
+    public long getReclaimed() {
+        return reclaimed;
+    }
+
+    /**
+     * @return The space (in bytes) taken by all downloads before eviction.
+     */
+    public long getUsed() {
+        return used;
+    }
+
+    /**
+     * @return The space (in bytes) the downloads are allowed to take.
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    @Override
+    public String toString() {
+        return "Evicted " + evicted + " download(s), reclaimed " + reclaimed + " of " + used
+                + " bytes (budget " + budget + " bytes)";
+    }
+}
@@ -0,0 +1,104 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.types;
+
+import java.util.Locale;
+
+/**
+ * Transfer size statistics for a remote file loaded repeatedly, e.g. a
+ * podcast's feed. For each load, the bytes transferred over the wire (which
+ * might be compressed) and the bytes of content they amount to are recorded.
+ * Instances are safe to record to and read from different threads.
+ */
+public class TransferStats {
+
+    /** The number of loads recorded */
+    private int loadCount;
+    /** The total bytes transferred */
+    private long bytesTransferred;
+    /** The total bytes of content loaded */
+    private long bytesLoaded;
+    /** The bytes transferred by the last load */
+    private long lastBytesTransferred;
+    /** The bytes of content loaded by the last load */
+    private long lastBytesLoaded;
+
+    /**
+     * Record a load.
+     * 
+     * @param transferred The bytes transferred over the wire.
+     * @param loaded The bytes of content (after decompression).
+     */
+    public synchronized void record(long transferred, long loaded) {
+        loadCount++;
+        bytesTransferred += transferred;
+        bytesLoaded += loaded;
+        lastBytesTransferred = transferred;
+        lastBytesLoaded = loaded;
+    }
+
+    /**
+     * @return The number of loads recorded.
+     */
+    public synchronized int getLoadCount() {
+        return loadCount;
+    }
+
+    /**
+     * @return The total bytes transferred over the wire.
+     */
+    public synchronized long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * @return The total bytes of content loaded.
+     */
+    public synchronized long getBytesLoaded() {
+        return bytesLoaded;
+    }
+
+    /**
+     * @return The bytes transferred over the wire by the last load.
+     */
+    public synchronized long getLastBytesTransferred() {
+        return lastBytesTransferred;
+    }
+
+    /**
+     * @return The bytes of content loaded by the last load.
+     */
+    public synchronized long getLastBytesLoaded() {
+        return lastBytesLoaded;
+    }
+
+    /**
+     * @return The ratio of content bytes to bytes transferred over all loads,
+     *         e.g. 5 if compression made the transfers five times smaller.
+     *         Returns 1 if nothing was recorded.
+     */
+    public synchronized float getCompressionRatio() {
+        return bytesTransferred <= 0 ? 1 : (float) bytesLoaded / bytesTransferred;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d loads, %d bytes transferred for %d bytes (%.1fx)",
+                loadCount, bytesTransferred, bytesLoaded, getCompressionRatio());
+    }
+}
@@ -26,8 +26,6 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
-import android.graphics.Bitmap;
 import android.os.Build;
 
 import net.alliknow.podcatcher.BaseActivity.ContentMode;
@@ -36,10 +34,7 @@ import net.alliknow.podcatcher.PodcastActivity;
 import net.alliknow.podcatcher.R;
 import net.alliknow.podcatcher.model.EpisodeManager;
 import net.alliknow.podcatcher.model.types.Episode;
-import net.alliknow.podcatcher.model.types.Podcast;
-
-import java.util.HashMap;
-import java.util.Map;
+import net.alliknow.podcatcher.model.types.LogoVariant;
 
 /**
  * Helper class for the {@link PlayEpisodeService} to encapsulate the complexity
@@ -52,11 +47,6 @@ public class PlayEpisodeNotification {
     /** The context the notifications live in */
     private final Context context;
 
-    /** Large icon width for the device (used for down-scaling) */
-    private final int largeIconWidth;
-    /** Large icon height for the device (used for down-scaling) */
-    private final int largeIconHeight;
-
     /** The intent that brings back the app */
     private final Intent appIntent;
     /** The pending intents for the actions */
@@ -66,18 +56,10 @@ public class PlayEpisodeNotification {
 
     /** Our builder */
     private Notification.Builder notificationBuilder;
-    /** The cache for the scaled bitmaps */
-    private Map<String, Bitmap> bitmapCache = new HashMap<>();
 
     private PlayEpisodeNotification(Context context) {
         this.context = context;
 
-        final Resources res = context.getResources();
-        this.largeIconWidth =
-                (int) res.getDimension(android.R.dimen.notification_large_icon_width);
-        this.largeIconHeight =
-                (int) res.getDimension(android.R.dimen.notification_large_icon_height);
-
         // Create all the static intents we need for every build
         appIntent = new Intent(context, PodcastActivity.class)
                 .putExtra(EpisodeListActivity.MODE_KEY, ContentMode.SINGLE_PODCAST)
@@ -152,9 +134,10 @@ public class PlayEpisodeNotification {
                 .setWhen(0)
                 .setProgress(duration, position, false)
                 .setOngoing(true);
-        // Add large image if available
-        if (episode.getPodcast().isLogoCached())
-            notificationBuilder.setLargeIcon(getScaledBitmap(episode.getPodcast()));
+        // Add large image if available, this is already at the right size
+        if (episode.getPodcast().isLogoCached(LogoVariant.NOTIFICATION))
+            notificationBuilder.setLargeIcon(
+                    episode.getPodcast().getLogo(LogoVariant.NOTIFICATION));
 
         // Adding actions to notification is only supported in Android >4.1
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
@@ -193,14 +176,4 @@ public class PlayEpisodeNotification {
         // This will call build(), not available before Android 4.1
         return notificationBuilder.getNotification();
     }
-
-    private Bitmap getScaledBitmap(Podcast podcast) {
-        final String cacheKey = podcast.getUrl();
-
-        if (!bitmapCache.containsKey(cacheKey))
-            bitmapCache.put(cacheKey, Bitmap.createScaledBitmap(podcast.getLogo(),
-                    largeIconWidth, largeIconHeight, false));
-
-        return bitmapCache.get(cacheKey);
-    }
 }
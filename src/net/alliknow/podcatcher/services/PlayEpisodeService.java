@@ -23,7 +23,9 @@ import static android.media.RemoteControlClient.PLAYSTATE_PAUSED;
 import static android.media.RemoteControlClient.PLAYSTATE_PLAYING;
 import static android.media.RemoteControlClient.PLAYSTATE_STOPPED;
 import static net.alliknow.podcatcher.Podcatcher.AUTHORIZATION_KEY;
+import static net.alliknow.podcatcher.model.tasks.remote.LoadRemoteFileTask.canSendAuthorization;
 
+import android.annotation.TargetApi;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ComponentName;
@@ -42,6 +44,8 @@ import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.preference.PreferenceManager;
@@ -52,8 +56,12 @@ import net.alliknow.podcatcher.SettingsActivity;
 import net.alliknow.podcatcher.listeners.OnChangePlaylistListener;
 import net.alliknow.podcatcher.listeners.PlayServiceListener;
 import net.alliknow.podcatcher.model.EpisodeManager;
+import net.alliknow.podcatcher.model.MediaUrlResolver;
+import net.alliknow.podcatcher.model.PodcastManager;
 import net.alliknow.podcatcher.model.types.Episode;
 
+import java.io.IOException;
+import java.net.URL;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -97,6 +105,18 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
     private Episode currentEpisode;
     /** Our MediaPlayer handle */
     private MediaPlayer player;
+    /** The media player prepared for the next playlist entry, if any */
+    private MediaPlayer nextPlayer;
+    /** The episode the next player is prepared for */
+    private Episode nextEpisode;
+    /** Flag indicating whether the next player is prepared */
+    private boolean nextPrepared = false;
+    /** Flag indicating whether the next player takes over by itself */
+    private boolean nextChained = false;
+    /** The proxy URL the player streams from, if any */
+    private String streamUrl;
+    /** The proxy URL the next player streams from, if any */
+    private String nextStreamUrl;
     /** Is the player prepared ? */
     private boolean prepared = false;
     /** Is the player currently buffering ? */
@@ -116,11 +136,15 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
     private WifiLock wifiLock;
     /** Our notification helper */
     private PlayEpisodeNotification notification;
+    /** Our local proxy caching streamed episodes */
+    private StreamProxy streamProxy;
 
     /** Play update timer for notification */
     private Timer playUpdateTimer = new Timer();
     /** Play update timer task for notification */
     private TimerTask playUpdateTimerTask;
+    /** Our handler to get back to the main thread from the timer */
+    private final Handler handler = new Handler();
 
     /** Our notification id (does not really matter) */
     private static final int NOTIFICATION_ID = 123;
@@ -128,6 +152,8 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
     private static final int SKIP_AMOUNT = 10 * 1000;
     /** The volume we duck playback to */
     private static final float DUCK_VOLUME = 0.1f;
+    /** Time before the end of an episode to prepare the next one in */
+    private static final int PREPARE_NEXT_AHEAD = 30 * 1000;
     /** Our log tag */
     private static final String TAG = "PlayEpisodeService";
 
@@ -174,6 +200,15 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
         episodeManager.addPlaylistListener(this);
         // Our notification helper
         notification = PlayEpisodeNotification.getInstance(this);
+
+        // Start the stream proxy, we play from the server directly if this
+        // fails
+        streamProxy = new StreamProxy(this);
+        try {
+            streamProxy.start();
+        } catch (IOException ioe) {
+            Log.w(TAG, "Cannot start stream proxy", ioe);
+        }
     }
 
     @Override
@@ -261,6 +296,9 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
         // Disable broadcast receivers
         disableReceiver(noisyReceiver);
         disableReceiver(mediaButtonReceiver);
+
+        // Stop the stream proxy
+        streamProxy.stop();
     }
 
     /**
@@ -293,34 +331,20 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
 
             // Make the new episode our current source
             this.currentEpisode = episode;
+            // Let the episode manager know, so it can prefetch what comes next
+            episodeManager.onPlaybackStarted(episode);
+            // Have the notification and lock screen logos ready
+            PodcastManager.getInstance().loadLogo(episode.getPodcast());
 
             // Start playback for new episode
             try {
-                initPlayer();
-
-                // Play local file
-                if (episodeManager.isDownloaded(episode))
-                    player.setDataSource(episodeManager.getLocalPath(episode));
-                // Need to resort to remote file
-                else {
-                    // We add some request headers to overwrite the default user
-                    // agent because this is blocked by some servers
-                    final HashMap<String, String> headers = new HashMap<>(2);
-                    headers.put(Podcatcher.USER_AGENT_KEY, Podcatcher.USER_AGENT_VALUE);
-
-                    // Also set the authorization header data if needed
-                    final String auth = episode.getPodcast().getAuthorization();
-                    if (auth != null)
-                        headers.put(AUTHORIZATION_KEY, auth);
-
-                    // Actually set the remote source for the playback
-                    player.setDataSource(this, Uri.parse(currentEpisode.getMediaUrl()), headers);
-
-                    // We are streaming, so make wifi stay alive
+                player = createPlayer();
+
+                // We are streaming, so make wifi stay alive
+                streamUrl = setDataSource(player, episode);
+                if (streamUrl != null && !wifiLock.isHeld())
                     wifiLock.acquire();
-                }
 
-                player.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
                 player.prepareAsync(); // might take long! (for buffering, etc)
             } catch (Exception e) {
                 Log.d(TAG, "Prepare/Play failed for episode: " + episode, e);
@@ -338,20 +362,21 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
      * either not in the playlist or is at the end of the playlist.
      */
     public void playNext() {
-        final List<Episode> playlist = episodeManager.getPlaylist();
-        final int currentEpisodePosition = playlist.indexOf(currentEpisode);
-
-        // Pop the episode off the playlist
-        episodeManager.removeFromPlaylist(currentEpisode);
-        playlist.remove(currentEpisode);
+        final Episode previous = currentEpisode;
+        final Episode next = getNextEpisode();
 
-        if (!playlist.isEmpty()) {
-            Episode next = playlist.get(0);
+        // Take over the player prepared ahead if it has the right episode
+        if (next != null && nextPrepared && next.equals(nextEpisode)) {
+            startNextPlayer();
 
-            if (currentEpisodePosition > 0 && currentEpisodePosition < playlist.size())
-                next = playlist.get(currentEpisodePosition);
+            // Pop the episode off the playlist
+            episodeManager.removeFromPlaylist(previous);
+        } else {
+            // Pop the episode off the playlist
+            episodeManager.removeFromPlaylist(previous);
 
-            playEpisode(next);
+            if (next != null)
+                playEpisode(next);
         }
     }
 
@@ -363,6 +388,10 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
         // Update rc if any (e.g. lock screen)
         if (currentEpisode != null && remoteControlClient != null)
             remoteControlClient.showNext(!episodeManager.isPlaylistEmptyBesides(currentEpisode));
+
+        // Drop the episode prepared ahead if it is not up next anymore
+        if (nextPlayer != null && !nextEpisode.equals(getNextEpisode()))
+            releaseNextPlayer();
     }
 
     /**
@@ -496,6 +525,12 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
 
     @Override
     public void onPrepared(MediaPlayer mediaPlayer) {
+        // The next episode is ready, it waits for the current one to end
+        if (mediaPlayer == nextPlayer) {
+            onNextPrepared();
+            return;
+        }
+
         this.prepared = true;
 
         // Try to get audio focus
@@ -525,6 +560,10 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
 
     @Override
     public void onBufferingUpdate(MediaPlayer mp, int percent) {
+        // We only report on the episode playing
+        if (mp != player)
+            return;
+
         // Send buffer information to listeners
         for (PlayServiceListener listener : listeners)
             listener.onBufferUpdate(getDuration() * percent / 100);
@@ -538,6 +577,9 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
 
     @Override
     public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if (mp != player)
+            return false;
+
         switch (what) {
             case MediaPlayer.MEDIA_INFO_BUFFERING_START:
                 buffering = true;
@@ -562,6 +604,9 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
 
     @Override
     public void onCompletion(MediaPlayer mp) {
+        if (mp != player)
+            return;
+
         updateRemoteControlPlaystate(PLAYSTATE_STOPPED);
 
         // Mark the episode old (needs to be done before resetting the service!)
@@ -590,8 +635,27 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
+        // The next episode failed, we keep the idle player around so we do
+        // not retry before it is up, but it must not take over: unchain it so
+        // playNext() falls back to playEpisode()
+        if (mp == nextPlayer) {
+            if (nextChained && player != null)
+                chainNextPlayer(false);
+
+            MediaUrlResolver.getInstance().invalidate(nextEpisode.getMediaUrl());
+            nextPlayer.reset();
+            this.nextPrepared = false;
+
+            return true;
+        }
+
         updateRemoteControlPlaystate(PLAYSTATE_ERROR);
 
+        // The resolved location might have expired early, use the original
+        // media URL next time
+        if (currentEpisode != null)
+            MediaUrlResolver.getInstance().invalidate(currentEpisode.getMediaUrl());
+
         // If there is another downloaded episode in the playlist, play it.
         final SortedMap<Integer, Episode> playlist = episodeManager.getDownloadedPlaylist();
         if (!(playlist.isEmpty() || (playlist.size() == 1 && playlist.values().contains(
@@ -684,11 +748,14 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
         if (wifiLock.isHeld())
             wifiLock.release();
 
-        // Release player
+        // Release players
+        releaseNextPlayer();
         if (player != null) {
             player.release();
             player = null;
         }
+        streamProxy.release(streamUrl);
+        this.streamUrl = null;
     }
 
     private void storeResumeAt() {
@@ -728,15 +795,185 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
         }.start();
     }
 
-    private void initPlayer() {
-        player = new MediaPlayer();
+    private MediaPlayer createPlayer() {
+        final MediaPlayer mediaPlayer = new MediaPlayer();
+
+        mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        mediaPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+        mediaPlayer.setOnPreparedListener(this);
+        mediaPlayer.setOnCompletionListener(this);
+        mediaPlayer.setOnErrorListener(this);
+        mediaPlayer.setOnInfoListener(this);
+        mediaPlayer.setOnBufferingUpdateListener(this);
+
+        return mediaPlayer;
+    }
+
+    /**
+     * Point a media player at the episode's local file, or at its remote
+     * location if not downloaded.
+     * 
+     * @return The location the episode is streamed from, hand it back to
+     *         {@link StreamProxy#release(String)} once done with it. Gives
+     *         <code>null</code> if the episode is played from its local file.
+     */
+    private String setDataSource(MediaPlayer mediaPlayer, Episode episode) throws IOException {
+        // Play local file
+        if (episodeManager.isDownloaded(episode)) {
+            mediaPlayer.setDataSource(episodeManager.getLocalPath(episode));
+
+            return null;
+        }
+        // Need to resort to remote file
+        else {
+            // We add some request headers to overwrite the default user
+            // agent because this is blocked by some servers
+            final HashMap<String, String> headers = new HashMap<>(2);
+            headers.put(Podcatcher.USER_AGENT_KEY, Podcatcher.USER_AGENT_VALUE);
+
+            // Skip the redirects to the media file if we know where it is
+            final String location = MediaUrlResolver.getInstance()
+                    .getResolvedUrl(episode.getMediaUrl());
+
+            // Also set the authorization header data if needed, but only if
+            // the file is still on the host the credentials were given for
+            // and not moved from https to plain http
+            final String auth = canSendAuthorization(new URL(episode.getMediaUrl()),
+                    new URL(location)) ? episode.getPodcast().getAuthorization() : null;
+            if (auth != null)
+                headers.put(AUTHORIZATION_KEY, auth);
+
+            // Actually set the remote source for the playback, go through the
+            // proxy to keep what we load
+            final String proxyUrl = streamProxy.getProxyUrl(episode.getMediaUrl(), location, auth);
+            mediaPlayer.setDataSource(this, Uri.parse(proxyUrl), headers);
+
+            return proxyUrl;
+        }
+    }
+
+    /**
+     * @return The episode to play after the current one, this is the episode
+     *         following the current one in the playlist or the first one if
+     *         the current episode is not in the playlist or at its end.
+     *         Might be <code>null</code> if there is no other episode.
+     */
+    private Episode getNextEpisode() {
+        final List<Episode> playlist = episodeManager.getPlaylist();
+        final int currentEpisodePosition = playlist.indexOf(currentEpisode);
+        playlist.remove(currentEpisode);
+
+        if (playlist.isEmpty())
+            return null;
+        else if (currentEpisodePosition > 0 && currentEpisodePosition < playlist.size())
+            return playlist.get(currentEpisodePosition);
+        else
+            return playlist.get(0);
+    }
+
+    private void prepareNextPlayer() {
+        final Episode next = getNextEpisode();
+        if (!prepared || nextPlayer != null || next == null)
+            return;
+
+        nextEpisode = next;
+        nextPlayer = createPlayer();
+        try {
+            // Make wifi stay alive while loading the next episode
+            nextStreamUrl = setDataSource(nextPlayer, next);
+            if (nextStreamUrl != null && !wifiLock.isHeld())
+                wifiLock.acquire();
+
+            nextPlayer.prepareAsync();
+        } catch (Exception e) {
+            Log.d(TAG, "Prepare failed for next episode: " + next, e);
+
+            releaseNextPlayer();
+        }
+    }
+
+    private void onNextPrepared() {
+        this.nextPrepared = true;
+        nextPlayer.seekTo(episodeManager.getResumeAt(nextEpisode));
 
-        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
-        player.setOnPreparedListener(this);
-        player.setOnCompletionListener(this);
-        player.setOnErrorListener(this);
-        player.setOnInfoListener(this);
-        player.setOnBufferingUpdateListener(this);
+        // Have the next player take over the moment the current one completes
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            chainNextPlayer(true);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void chainNextPlayer(boolean chain) {
+        player.setNextMediaPlayer(chain ? nextPlayer : null);
+        this.nextChained = chain;
+    }
+
+    private void startNextPlayer() {
+        // Store resume at time for the episode we leave
+        storeResumeAt();
+
+        // Stop the current player, unless it completed and the next player
+        // already took over
+        if (player.isPlaying()) {
+            if (nextChained)
+                chainNextPlayer(false);
+
+            player.stop();
+        }
+        player.release();
+        streamProxy.release(streamUrl);
+
+        // Make the next episode the current one
+        this.player = nextPlayer;
+        this.streamUrl = nextStreamUrl;
+        this.currentEpisode = nextEpisode;
+        this.prepared = true;
+        this.buffering = false;
+        this.nextPlayer = null;
+        this.nextStreamUrl = null;
+        this.nextEpisode = null;
+        this.nextPrepared = false;
+        this.nextChained = false;
+
+        // Only keep wifi alive if we are streaming
+        if (episodeManager.isDownloaded(currentEpisode)) {
+            if (wifiLock.isHeld())
+                wifiLock.release();
+        } else if (!wifiLock.isHeld())
+            wifiLock.acquire();
+
+        // This does nothing if the player started by itself
+        player.start();
+
+        // Let the episode manager know, so it can prefetch what comes next
+        episodeManager.onPlaybackStarted(currentEpisode);
+        // Have the notification and lock screen logos ready
+        PodcastManager.getInstance().loadLogo(currentEpisode.getPodcast());
+
+        // Show the new episode on the lock screen and in the notification
+        audioManager.unregisterRemoteControlClient(remoteControlClient);
+        updateAudioManager();
+        updateRemoteControlPlaystate(PLAYSTATE_PLAYING);
+        startForeground(NOTIFICATION_ID, notification.build(currentEpisode));
+        startPlayProgressTimer();
+
+        // Alert the listeners
+        for (PlayServiceListener listener : listeners)
+            listener.onPlaybackStarted();
+    }
+
+    private void releaseNextPlayer() {
+        if (nextChained && player != null)
+            chainNextPlayer(false);
+
+        if (nextPlayer != null)
+            nextPlayer.release();
+        streamProxy.release(nextStreamUrl);
+
+        this.nextPlayer = null;
+        this.nextStreamUrl = null;
+        this.nextEpisode = null;
+        this.nextPrepared = false;
+        this.nextChained = false;
     }
 
     private void startPlayProgressTimer() {
@@ -748,6 +985,17 @@ public class PlayEpisodeService extends Service implements OnPreparedListener,
                 public void run() {
                     startForeground(NOTIFICATION_ID,
                             notification.updateProgress(getCurrentPosition(), getDuration()));
+
+                    // Get the next episode ready shortly before this one ends
+                    if (nextPlayer == null && getDuration() > 0
+                            && getDuration() - getCurrentPosition() < PREPARE_NEXT_AHEAD)
+                        handler.post(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                prepareNextPlayer();
+                            }
+                        });
                 }
             };
 
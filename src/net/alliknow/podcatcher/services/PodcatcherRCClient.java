@@ -25,11 +25,13 @@ import static android.media.RemoteControlClient.MetadataEditor.BITMAP_KEY_ARTWOR
 
 import android.annotation.TargetApi;
 import android.app.PendingIntent;
+import android.graphics.Bitmap;
 import android.media.RemoteControlClient;
 import android.os.Build;
 
 import net.alliknow.podcatcher.model.EpisodeManager;
 import net.alliknow.podcatcher.model.types.Episode;
+import net.alliknow.podcatcher.model.types.LogoVariant;
 import net.alliknow.podcatcher.view.Utils;
 
 /**
@@ -109,8 +111,11 @@ public class PodcatcherRCClient extends RemoteControlClient {
                     .putString(METADATA_KEY_DATE, Utils.getRelativePubDate(episode))
                     .putLong(METADATA_KEY_DURATION, episode.getDuration() * 1000);
 
-            if (episode.getPodcast().isLogoCached())
-                editor.putBitmap(BITMAP_KEY_ARTWORK, episode.getPodcast().getLogo());
+            // The remote control client recycles the artwork it replaces, so
+            // we cannot hand over the shared logo from the cache
+            final Bitmap logo = episode.getPodcast().getLogo(LogoVariant.ARTWORK);
+            if (logo != null)
+                editor.putBitmap(BITMAP_KEY_ARTWORK, logo.copy(logo.getConfig(), false));
 
             editor.apply();
         }
@@ -0,0 +1,511 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.services;
+
+import static java.net.HttpURLConnection.HTTP_MOVED_PERM;
+import static java.net.HttpURLConnection.HTTP_MOVED_TEMP;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
+import static net.alliknow.podcatcher.Podcatcher.AUTHORIZATION_KEY;
+import static net.alliknow.podcatcher.Podcatcher.USER_AGENT_KEY;
+import static net.alliknow.podcatcher.Podcatcher.USER_AGENT_VALUE;
+import static net.alliknow.podcatcher.model.tasks.remote.LoadRemoteFileTask.canSendAuthorization;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.alliknow.podcatcher.model.StreamCache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local HTTP proxy for streaming episodes. The media player is pointed at
+ * the proxy (see {@link #getProxyUrl(String, String, String)}) which serves
+ * the media file from the {@link StreamCache} and only loads the ranges
+ * missing from the server, writing them to the cache on their way to the
+ * player. Replaying or seeking backwards in an episode thus does not load the
+ * same bytes again, and range requests from the player are honored. The proxy
+ * only listens on the loopback interface. Redirects are followed by the proxy
+ * itself and credentials only go to the host of the episode's media URL (and
+ * never from https to plain http). Hand back proxy URLs no longer played via
+ * {@link #release(String)}.
+ */
+public class StreamProxy implements Runnable {
+
+    /** The connection timeout */
+    private static final int CONNECT_TIMEOUT = 8000;
+    /** The read timeout */
+    private static final int READ_TIMEOUT = 60000;
+    /** The maximum number of redirects followed for one request */
+    private static final int MAX_REDIRECTS = 5;
+    /** The temporary redirect status code not defined by HttpURLConnection */
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    /** The permanent redirect status code not defined by HttpURLConnection */
+    private static final int HTTP_PERMANENT_REDIRECT = 308;
+    /** The size of the buffer used to pass bytes on */
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /** Our log tag */
+    private static final String TAG = "StreamProxy";
+
+    /** The context used to find the stream cache */
+    private final Context context;
+    /** The media files served, keyed by the token in their proxy URL */
+    private final Map<String, Source> sources = new ConcurrentHashMap<>();
+
+    /** The server socket while running */
+    private ServerSocket serverSocket;
+
+    /** A media file served by the proxy */
+    private static class Source {
+
+        /** The cache key, i.e. the media URL */
+        private final String key;
+        /** The location to load the media file from */
+        private final String location;
+        /** The authorization to send to the server */
+        private final String authorization;
+
+        private Source(String key, String location, String authorization) {
+            this.key = key;
+            this.location = location;
+            this.authorization = authorization;
+        }
+    }
+
+    /** An open connection to the server and its position in the media file */
+    private static class Upstream {
+
+        /** The connection */
+        private final HttpURLConnection connection;
+        /** The flag to indicate that the server honored our range request */
+        private final boolean ranged;
+        /** The response stream */
+        private InputStream in;
+        /** The position in the media file the stream is at */
+        private long position;
+
+        private Upstream(HttpURLConnection connection, boolean ranged, long position) {
+            this.connection = connection;
+            this.ranged = ranged;
+            this.position = position;
+        }
+
+        private void close() {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+                // Nothing more we could do here
+            }
+
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Create a new proxy, call {@link #start()} to make it listen.
+     * 
+     * @param context The context to find the stream cache with.
+     */
+    public StreamProxy(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Start listening for the media player on a free local port.
+     * 
+     * @throws IOException If the server socket cannot be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket == null) {
+            serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+
+            new Thread(this, TAG).start();
+        }
+    }
+
+    /**
+     * Stop listening and forget all media files handed out. Connections
+     * currently served are not interrupted.
+     */
+    public synchronized void stop() {
+        sources.clear();
+
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Nothing more we could do here
+            }
+
+            serverSocket = null;
+        }
+    }
+
+    /**
+     * Get the location to hand to the media player for a media file.
+     * 
+     * @param key The episode's media URL (this is the key the file is cached
+     *            under).
+     * @param location The location to load the media file from, e.g. the
+     *            media URL with its redirects resolved.
+     * @param authorization The authorization to send to the server, might be
+     *            <code>null</code>.
+     * @return The proxy URL to stream from, or the location given if the
+     *         proxy is not running.
+     */
+    public synchronized String getProxyUrl(String key, String location, String authorization) {
+        if (serverSocket == null)
+            return location;
+
+        final String token = UUID.randomUUID().toString();
+        sources.put(token, new Source(key, location, authorization));
+
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + token;
+    }
+
+    /**
+     * Forget about a media file handed out, e.g. because the player it was
+     * given to moved on. Does nothing for locations not pointing at the proxy.
+     * 
+     * @param proxyUrl The location as returned by
+     *            {@link #getProxyUrl(String, String, String)}, might be
+     *            <code>null</code>.
+     */
+    public void release(String proxyUrl) {
+        if (proxyUrl != null)
+            sources.remove(proxyUrl.substring(proxyUrl.lastIndexOf('/') + 1));
+    }
+
+    @Override
+    public void run() {
+        final ServerSocket server;
+        synchronized (this) {
+            server = serverSocket;
+        }
+
+        try {
+            while (server != null && !server.isClosed()) {
+                final Socket socket = server.accept();
+
+                new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Never let a bad request take the app down
+                        try {
+                            serve(socket);
+                        } catch (RuntimeException re) {
+                            Log.w(TAG, "Failed to serve stream", re);
+                        }
+                    }
+                }, TAG + " connection").start();
+            }
+        } catch (IOException ioe) {
+            // The server socket was closed, we are done
+        }
+    }
+
+    private void serve(Socket socket) {
+        StreamCache.Entry entry = null;
+        Upstream upstream = null;
+
+        try {
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            // 1. Read the player's request
+            final String requestLine = readLine(in);
+            String range = null;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty())
+                if (line.toLowerCase(Locale.US).startsWith("range:"))
+                    range = line.substring(6).trim();
+
+            // Anybody on the device can connect, do not trust the request
+            final String[] request = requestLine == null ? new String[0] : requestLine.split(" ");
+            final String path = request.length < 2 ? null : request[1];
+            if (path == null || path.length() < 2 || !path.startsWith("/")) {
+                writeHeader(out, "400 Bad Request", null);
+                return;
+            }
+
+            final Source source = sources.get(path.substring(1));
+            final boolean head = "HEAD".equals(request[0]);
+            if (source == null) {
+                writeHeader(out, "404 Not Found", null);
+                return;
+            }
+
+            // 2. Find out about the media file if we do not know it yet
+            final StreamCache cache = StreamCache.getInstance(context);
+            entry = cache.open(source.key);
+            long start = parseRangeStart(range);
+            if (entry.getLength() < 0)
+                upstream = openUpstream(source, entry, Math.max(0, start));
+
+            final long length = entry.getLength();
+            // The server does not tell us, simply hand the bytes through
+            if (length < 0) {
+                final String contentType = upstream.connection.getContentType();
+                writeHeader(out, "200 OK", contentType == null ? null : "Content-Type: " + contentType);
+                if (!head)
+                    copy(upstream.in, out);
+
+                return;
+            }
+
+            // 3. Work out the range to send
+            long end = parseRangeEnd(range);
+            if (start < 0 && end >= 0) {
+                // Suffix range, i.e. the last bytes of the file
+                start = Math.max(0, length - end);
+                end = length - 1;
+            } else if (start < 0)
+                start = 0;
+            if (end < 0 || end >= length)
+                end = length - 1;
+
+            if (start >= length) {
+                writeHeader(out, "416 Requested Range Not Satisfiable",
+                        "Content-Range: bytes */" + length);
+                return;
+            }
+
+            final StringBuilder headers = new StringBuilder();
+            if (entry.getContentType() != null)
+                headers.append("Content-Type: ").append(entry.getContentType()).append("\r\n");
+            headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            headers.append("Accept-Ranges: bytes");
+            if (range != null)
+                headers.append("\r\nContent-Range: bytes ").append(start).append('-')
+                        .append(end).append('/').append(length);
+            writeHeader(out, range == null ? "200 OK" : "206 Partial Content",
+                    headers.toString());
+            if (head)
+                return;
+
+            // 4. Send the range, from the cache where possible
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            while (position <= end) {
+                final long cachedEnd = Math.min(entry.getCachedEnd(position), end + 1);
+                if (cachedEnd > position) {
+                    final int read = entry.read(position, buffer, 0,
+                            (int) Math.min(buffer.length, cachedEnd - position));
+                    if (read <= 0)
+                        throw new IOException("Cannot read cached range at " + position);
+
+                    out.write(buffer, 0, read);
+                    position += read;
+
+                    continue;
+                }
+
+                // Keep using the open connection if it fits, servers ignoring
+                // ranges make us read (and cache) up to the position
+                if (upstream == null || upstream.position > position
+                        || (upstream.ranged && upstream.position != position)) {
+                    if (upstream != null)
+                        upstream.close();
+
+                    upstream = openUpstream(source, entry, position);
+                }
+
+                final long target = upstream.position < position ? position
+                        : Math.min(entry.getMissingEnd(position), end + 1);
+                final int read = upstream.in.read(buffer, 0,
+                        (int) Math.min(buffer.length, target - upstream.position));
+                if (read < 0)
+                    throw new IOException("Server stream ended at " + upstream.position);
+
+                entry.write(upstream.position, buffer, 0, read);
+                if (upstream.position == position) {
+                    out.write(buffer, 0, read);
+                    position += read;
+                }
+                upstream.position += read;
+
+                cache.sync(entry);
+            }
+
+            out.flush();
+        } catch (IOException ioe) {
+            // This happens all the time, the player closes connections when
+            // seeking
+            Log.d(TAG, "Stopped serving stream", ioe);
+        } finally {
+            if (upstream != null)
+                upstream.close();
+            if (entry != null)
+                StreamCache.getInstance(context).close(entry);
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more we could do here
+            }
+        }
+    }
+
+    private Upstream openUpstream(Source source, StreamCache.Entry entry, long position)
+            throws IOException {
+        // Follow redirects ourselves, so credentials stay on their host and
+        // are never sent over plain http if given for https
+        final URL origin = new URL(source.key);
+        URL location = new URL(source.location);
+        HttpURLConnection connection = openConnection(location,
+                canSendAuthorization(origin, location) ? source.authorization : null, position);
+        int responseCode = connection.getResponseCode();
+        for (int redirects = 1; isRedirect(responseCode); redirects++) {
+            final String target = connection.getHeaderField("Location");
+            connection.disconnect();
+            if (target == null || redirects > MAX_REDIRECTS)
+                throw new IOException("Cannot follow redirect from " + location
+                        + " (" + redirects + " redirects, location " + target + ")");
+
+            location = new URL(location, target);
+            if (!"http".equals(location.getProtocol()) && !"https".equals(location.getProtocol()))
+                throw new IOException("Redirect to unsupported protocol: " + location);
+
+            connection = openConnection(location,
+                    canSendAuthorization(origin, location) ? source.authorization : null,
+                    position);
+            responseCode = connection.getResponseCode();
+        }
+
+        final Upstream upstream;
+        final long length;
+        if (responseCode == HTTP_PARTIAL) {
+            upstream = new Upstream(connection, true, position);
+
+            // Content-Range: bytes <start>-<end>/<length>
+            final String contentRange = connection.getHeaderField("Content-Range");
+            length = contentRange == null || contentRange.indexOf('/') < 0 ? -1 :
+                    parseLong(contentRange.substring(contentRange.indexOf('/') + 1));
+        } else if (responseCode == HTTP_OK) {
+            upstream = new Upstream(connection, false, 0);
+            length = parseLong(connection.getHeaderField("Content-Length"));
+        } else {
+            connection.disconnect();
+            throw new IOException("Server responded " + responseCode + " for " + location);
+        }
+
+        if (length >= 0)
+            entry.setDetails(length, connection.getContentType());
+        upstream.in = connection.getInputStream();
+
+        return upstream;
+    }
+
+    private static HttpURLConnection openConnection(URL location, String authorization,
+            long position) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) location.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setUseCaches(false);
+        // We follow redirects ourselves, see openUpstream()
+        connection.setInstanceFollowRedirects(false);
+        // We set a custom user agent here because there are servers out there
+        // that apparently block downloads based on this information
+        connection.setRequestProperty(USER_AGENT_KEY, USER_AGENT_VALUE);
+        // We need the actual bytes, not a compressed version
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        // Allow for password protected feeds
+        if (authorization != null)
+            connection.setRequestProperty(AUTHORIZATION_KEY, authorization);
+        // Ask for the rest of the file, we stop reading once we get to
+        // bytes already cached
+        if (position > 0)
+            connection.setRequestProperty("Range", "bytes=" + position + "-");
+
+        return connection;
+    }
+
+    private static boolean isRedirect(int responseCode) {
+        return responseCode == HTTP_MOVED_PERM || responseCode == HTTP_MOVED_TEMP
+                || responseCode == HTTP_SEE_OTHER || responseCode == HTTP_TEMPORARY_REDIRECT
+                || responseCode == HTTP_PERMANENT_REDIRECT;
+    }
+
+    private static void writeHeader(OutputStream out, String status, String headers)
+            throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n" + (headers == null ? "" : headers + "\r\n")
+                + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+            out.write(buffer, 0, read);
+
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        int read;
+        while ((read = in.read()) >= 0 && read != '\n')
+            if (read != '\r')
+                line.write(read);
+
+        return read < 0 && line.size() == 0 ? null : line.toString("US-ASCII");
+    }
+
+    private static long parseRangeStart(String range) {
+        // Range: bytes=<start>-[<end>] or bytes=-<suffix length>
+        if (range == null || !range.startsWith("bytes=") || range.indexOf('-') < 0)
+            return -1;
+
+        return parseLong(range.substring(6, range.indexOf('-')));
+    }
+
+    private static long parseRangeEnd(String range) {
+        if (range == null || !range.startsWith("bytes=") || range.indexOf('-') < 0)
+            return -1;
+
+        // Only the first range of multiple ranges is honored
+        final String end = range.substring(range.indexOf('-') + 1).split(",")[0];
+        return parseLong(end);
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value == null || value.trim().isEmpty() ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+}
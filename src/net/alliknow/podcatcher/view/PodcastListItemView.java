@@ -25,6 +25,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import net.alliknow.podcatcher.R;
+import net.alliknow.podcatcher.model.types.LogoVariant;
 import net.alliknow.podcatcher.model.types.Podcast;
 import net.alliknow.podcatcher.model.types.Progress;
 
@@ -94,7 +95,7 @@ public class PodcastListItemView extends PodcatcherListItemView {
         final boolean loading = podcastManager.isLoading(podcast);
         final int episodeNumber = podcast.getEpisodeCount();
         final int newEpisodeCount = episodeManager.getNewEpisodeCount(podcast);
-        final boolean showLogoView = showLogo && podcast.isLogoCached();
+        final boolean showLogoView = showLogo && podcast.isLogoCached(LogoVariant.THUMBNAIL);
         final boolean progressShouldFade = podcast.hashCode() == lastItemId;
 
         // 1. Set podcast title
@@ -126,7 +127,7 @@ public class PodcastListItemView extends PodcatcherListItemView {
 
         // 4. Set podcast logo if available
         logoView.setVisibility(showLogoView ? VISIBLE : GONE);
-        logoView.setImageBitmap(showLogoView ? podcast.getLogo() : null);
+        logoView.setImageBitmap(showLogoView ? podcast.getLogo(LogoVariant.THUMBNAIL) : null);
 
         // 5. Store state to make sure it is available next time show() is
         // called and we can decide whether to crossfade or not
@@ -33,6 +33,8 @@ import android.view.ViewGroup;
 import android.view.ViewGroup.LayoutParams;
 import android.view.ViewStub;
 import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
@@ -43,10 +45,12 @@ import net.alliknow.podcatcher.R;
 import net.alliknow.podcatcher.adapters.PodcastListAdapter;
 import net.alliknow.podcatcher.listeners.OnSelectPodcastListener;
 import net.alliknow.podcatcher.listeners.PodcastListContextListener;
+import net.alliknow.podcatcher.model.PodcastManager;
 import net.alliknow.podcatcher.model.types.Podcast;
 import net.alliknow.podcatcher.model.types.Progress;
 import net.alliknow.podcatcher.view.PodcastListItemView;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -98,6 +102,15 @@ public class PodcastListFragment extends PodcatcherListFragment {
     /** Status flag indicating that our view is created */
     private boolean viewCreated = false;
 
+    /** The number of rows ahead of the visible ones to load logos for */
+    private static final int LOGO_PREFETCH_WINDOW = 4;
+    /** The first visible position on the last scroll event */
+    private int lastFirstVisiblePosition = 0;
+    /** The first position of the rows logos were last requested for */
+    private int logoWindowStart = -1;
+    /** The last position of the rows logos were last requested for */
+    private int logoWindowEnd = -1;
+
     @Override
     public void onAttach(Activity activity) {
         super.onAttach(activity);
@@ -173,6 +186,20 @@ public class PodcastListFragment extends PodcatcherListFragment {
 
         // Set list choice listener (context action mode)
         getListView().setMultiChoiceModeListener(new PodcastListContextListener(this));
+        // Load logos for the rows showing as the list scrolls
+        getListView().setOnScrollListener(new OnScrollListener() {
+
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                // pass
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                requestLogos(firstVisibleItem, visibleItemCount, totalItemCount);
+            }
+        });
 
         // Consider the view created successfully beyond this point
         viewCreated = true;
@@ -235,6 +262,8 @@ public class PodcastListFragment extends PodcatcherListFragment {
 
         // Reset selection since it might not work with the new list
         selectNone();
+        // Make sure logos are requested for the new list
+        logoWindowStart = -1;
 
         // Maps the podcast list items to the list UI
         // Only update the UI if it has been inflated
@@ -358,9 +387,15 @@ public class PodcastListFragment extends PodcatcherListFragment {
 
             // SMALL means that the adapter needs to make the individual podcast
             // list item view show the podcast icon, see there
-            if (adapter != null)
+            if (adapter != null) {
                 ((PodcastListAdapter) adapter).setShowLogo(LogoViewMode.SMALL.equals(logoViewMode));
 
+                // Logos might be needed now (or not anymore)
+                logoWindowStart = -1;
+                requestLogos(getListView().getFirstVisiblePosition(),
+                        getListView().getChildCount(), adapter.getCount());
+            }
+
             // LARGE shows the big image view below the list
             if (LogoViewMode.LARGE.equals(logoViewMode)) {
                 updatePodcastLogoView();
@@ -440,6 +475,49 @@ public class PodcastListFragment extends PodcatcherListFragment {
         animator.start();
     }
 
+    /**
+     * Ask the podcast manager to load the logos for the rows showing, then for
+     * some rows ahead in scroll direction. Only the podcasts in the list at the
+     * time are requested, logos for rows scrolled away are not loaded anymore.
+     */
+    private void requestLogos(int firstVisible, int visibleCount, int totalCount) {
+        // Nothing to show if the list has no logos or is empty
+        if (!LogoViewMode.SMALL.equals(logoViewMode) || adapter == null || visibleCount <= 0) {
+            if (logoWindowStart != -2 && PodcastManager.getInstance() != null)
+                PodcastManager.getInstance().requestLogos(new ArrayList<Podcast>());
+
+            logoWindowStart = logoWindowEnd = -2;
+            return;
+        }
+
+        final int count = Math.min(totalCount, adapter.getCount());
+        final int lastVisible = Math.min(count - 1, firstVisible + visibleCount - 1);
+        final boolean down = firstVisible >= lastFirstVisiblePosition;
+        lastFirstVisiblePosition = firstVisible;
+
+        final int start = down ? firstVisible : Math.max(0, firstVisible - LOGO_PREFETCH_WINDOW);
+        final int end = down ? Math.min(count - 1, lastVisible + LOGO_PREFETCH_WINDOW) : lastVisible;
+        // Only bother the manager if the rows changed
+        if (start == logoWindowStart && end == logoWindowEnd)
+            return;
+
+        logoWindowStart = start;
+        logoWindowEnd = end;
+
+        // Visible rows first, then the ones ahead, closest first
+        final List<Podcast> podcasts = new ArrayList<Podcast>();
+        for (int position = firstVisible; position <= lastVisible; position++)
+            podcasts.add((Podcast) adapter.getItem(position));
+        if (down)
+            for (int position = lastVisible + 1; position <= end; position++)
+                podcasts.add((Podcast) adapter.getItem(position));
+        else
+            for (int position = firstVisible - 1; position >= start; position--)
+                podcasts.add((Podcast) adapter.getItem(position));
+
+        PodcastManager.getInstance().requestLogos(podcasts);
+    }
+
     private void updatePodcastLogoView() {
         if (currentPodcastList != null && selectedPosition >= 0) {
             final Podcast selectedPodcast = currentPodcastList.get(selectedPosition);
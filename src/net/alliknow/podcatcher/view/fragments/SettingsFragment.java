@@ -26,6 +26,7 @@ import android.widget.BaseAdapter;
 
 import net.alliknow.podcatcher.R;
 import net.alliknow.podcatcher.SettingsActivity;
+import net.alliknow.podcatcher.model.EpisodeManager;
 
 /**
  * Fragment for settings.
@@ -52,6 +53,13 @@ public class SettingsFragment extends PreferenceFragment implements
                 || SettingsActivity.KEY_DOWNLOAD_FOLDER.equals(key))
             // Update the preference UIs to reflect new setting
             ((BaseAdapter) getPreferenceScreen().getRootAdapter()).notifyDataSetChanged();
+        // Make the downloads fit a lower budget right away
+        else if (SettingsActivity.KEY_STORAGE_BUDGET.equals(key))
+            EpisodeManager.getInstance().enforceStorageBudget();
+        // Running downloads should respect new bandwidth limits as well
+        else if (SettingsActivity.KEY_DOWNLOAD_BANDWIDTH_LIMIT.equals(key)
+                || SettingsActivity.KEY_TOTAL_BANDWIDTH_LIMIT.equals(key))
+            EpisodeManager.getInstance().applyBandwidthLimits();
     }
 
     @Override
@@ -22,11 +22,19 @@ import android.test.InstrumentationTestCase;
 import android.util.Log;
 
 import net.alliknow.podcatcher.listeners.OnLoadPodcastLogoListener;
+import net.alliknow.podcatcher.model.LogoDiskCache;
+import net.alliknow.podcatcher.model.tasks.remote.HttpTransport;
 import net.alliknow.podcatcher.model.tasks.remote.LoadPodcastLogoTask;
 import net.alliknow.podcatcher.model.tasks.remote.LoadPodcastTask.PodcastLoadError;
+import net.alliknow.podcatcher.model.test.LocalHttpTransport;
 import net.alliknow.podcatcher.model.test.Utils;
 import net.alliknow.podcatcher.model.types.Podcast;
 
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
@@ -145,13 +153,58 @@ public class LoadPodcastLogoTaskTest extends InstrumentationTestCase {
         }
     }
 
+    public final void testLoadAndRevalidateFromTransport() throws Exception {
+        final String feedUrl = "http://www.example.com/logo-test/feed.xml";
+        final String logoUrl = "http://www.example.com/logo-test/logo.png";
+        final LocalHttpTransport transport = new LocalHttpTransport();
+
+        // Serve a logo
+        final Bitmap logo = Bitmap.createBitmap(600, 600, Bitmap.Config.ARGB_8888);
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        logo.compress(Bitmap.CompressFormat.PNG, 100, png);
+        transport.put(logoUrl, png.toByteArray());
+
+        // Create a podcast pointing at it
+        final Podcast podcast = new Podcast("Logo test", feedUrl);
+        final XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(new StringReader("<rss><channel><title>Logo test</title>"
+                + "<image><url>" + logoUrl + "</url></image></channel></rss>"));
+        podcast.parse(parser);
+        LogoDiskCache.getInstance(getInstrumentation().getTargetContext()).remove(feedUrl);
+
+        try {
+            final MockPodcastLogoLoader mockLoader = new MockPodcastLogoLoader();
+            loadAndWait(mockLoader, podcast, transport, 1);
+            assertFalse(mockLoader.failed);
+            assertNotNull(mockLoader.result);
+            assertEquals(1, transport.getRequestCount());
+            assertEquals(1, transport.getReusedCount());
+
+            // Stale copy is revalidated, not loaded again
+            loadAndWait(mockLoader, podcast, transport, -1);
+            assertFalse(mockLoader.failed);
+            assertNotNull(mockLoader.result);
+            assertEquals(2, transport.getRequestCount());
+            assertEquals(1, transport.getNotModifiedCount());
+        } finally {
+            LogoDiskCache.getInstance(getInstrumentation().getTargetContext()).remove(feedUrl);
+        }
+    }
+
     private LoadPodcastLogoTask loadAndWait(final MockPodcastLogoLoader mockLoader,
             final Podcast podcast) {
+        return loadAndWait(mockLoader, podcast, null, 1);
+    }
+
+    private LoadPodcastLogoTask loadAndWait(final MockPodcastLogoLoader mockLoader,
+            final Podcast podcast, HttpTransport transport, int maxAge) {
         // Create task and latch
         signal = new CountDownLatch(1);
         final LoadPodcastLogoTask task = new LoadPodcastLogoTask(
                 getInstrumentation().getTargetContext(), mockLoader);
-        task.setMaxAge(1);
+        task.setMaxAge(maxAge);
+        if (transport != null)
+            task.setTransport(transport);
 
         // Go load podcast logo
         final Date start = new Date();
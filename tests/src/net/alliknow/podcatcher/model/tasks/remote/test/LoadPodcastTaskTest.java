@@ -21,12 +21,17 @@ import android.test.InstrumentationTestCase;
 import android.util.Log;
 
 import net.alliknow.podcatcher.listeners.OnLoadPodcastListener;
+import net.alliknow.podcatcher.model.tasks.remote.HttpTransport;
 import net.alliknow.podcatcher.model.tasks.remote.LoadPodcastTask;
 import net.alliknow.podcatcher.model.tasks.remote.LoadPodcastTask.PodcastLoadError;
+import net.alliknow.podcatcher.model.test.LocalHttpServer;
+import net.alliknow.podcatcher.model.test.LocalHttpTransport;
 import net.alliknow.podcatcher.model.test.Utils;
 import net.alliknow.podcatcher.model.types.Podcast;
 import net.alliknow.podcatcher.model.types.Progress;
+import net.alliknow.podcatcher.model.types.TransferStats;
 
+import java.net.HttpURLConnection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -44,9 +49,11 @@ public class LoadPodcastTaskTest extends InstrumentationTestCase {
         Podcast result;
         boolean failed;
         PodcastLoadError code;
+        int progressUpdates;
 
         @Override
         public void onPodcastLoadProgress(Podcast podcast, Progress progress) {
+            progressUpdates++;
         }
 
         @Override
@@ -88,6 +95,8 @@ public class LoadPodcastTaskTest extends InstrumentationTestCase {
         int size = examplePodcasts.size();
         int index = 0;
         int failed = 0;
+        int progressUpdates = 0;
+        long bytesTransferred = 0;
 
         Log.d(Utils.TEST_STATUS, "Testing " + size + " example podcasts");
 
@@ -116,6 +125,9 @@ public class LoadPodcastTaskTest extends InstrumentationTestCase {
                         "\" - okay...");
             }
 
+            progressUpdates += mockLoader.progressUpdates;
+            bytesTransferred += mockLoader.result.getTransferStats().getBytesTransferred();
+
             // Discard the complete podcast because otherwise
             // the memory would fill up quickly...
             podcasts.remove();
@@ -123,6 +135,29 @@ public class LoadPodcastTaskTest extends InstrumentationTestCase {
 
         Log.d(Utils.TEST_STATUS, "Tested all example podcast, failed on " +
                 failed);
+        // Before throttling, every read of at most 1 KB was published
+        Log.d(Utils.TEST_STATUS, "Main thread progress messages for all podcasts: " +
+                progressUpdates + " (unthrottled at least " + bytesTransferred / 1024 + ")");
+    }
+
+    public final void testProgressIsThrottled() throws Exception {
+        final MockPodcastLoader mockLoader = new MockPodcastLoader();
+        final LocalHttpServer server = new LocalHttpServer();
+        server.put("/feed.xml", new byte[3 * 1024 * 1024]);
+        server.start();
+
+        try {
+            loadAndWait(mockLoader, new Podcast("Big", server.getUrl("/feed.xml")), false);
+
+            Log.d(Utils.TEST_STATUS, "Main thread progress messages for 3 MB feed: " +
+                    mockLoader.progressUpdates);
+            // Not a feed, but loaded completely
+            assertEquals(PodcastLoadError.NOT_PARSEABLE, mockLoader.code);
+            // Connect, load, whole percentages, parse and done at the most
+            assertTrue(mockLoader.progressUpdates <= 4 + 101);
+        } finally {
+            server.shutdown();
+        }
     }
 
     public final void testLoadDummyPodcasts() {
@@ -203,12 +238,180 @@ public class LoadPodcastTaskTest extends InstrumentationTestCase {
         assertFalse(mockLoader.failed);
     }
 
+    public final void testConcurrentLoadsAreCoalesced() throws Exception {
+        final MockPodcastLoader first = new MockPodcastLoader();
+        final MockPodcastLoader second = new MockPodcastLoader();
+        final LocalHttpServer server = new LocalHttpServer();
+        server.put("/feed.xml", new byte[256 * 1024]);
+        server.setThrottle(128 * 1024);
+        server.start();
+
+        try {
+            final String url = server.getUrl("/feed.xml");
+            signal = new CountDownLatch(2);
+
+            // Different podcast objects for the same feed, started at once
+            new LoadPodcastTask(first).executeOnExecutor(LoadPodcastTask.THREAD_POOL_EXECUTOR,
+                    new Podcast("First", url));
+            new LoadPodcastTask(second).executeOnExecutor(LoadPodcastTask.THREAD_POOL_EXECUTOR,
+                    new Podcast("Second", url + "/"));
+            signal.await();
+
+            // One request and the same outcome for both
+            assertEquals(1, server.getRequestCount());
+            assertTrue(first.failed);
+            assertTrue(second.failed);
+            assertEquals(PodcastLoadError.NOT_PARSEABLE, first.code);
+            assertEquals(first.code, second.code);
+
+            // Loads after that go over the air again
+            server.setThrottle(0);
+            loadAndWait(first, new Podcast("Third", url), false);
+            assertEquals(2, server.getRequestCount());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public final void testLoadCompressed() throws Exception {
+        final String url = "http://www.example.com/compressed/feed.xml";
+        final StringBuilder feed = new StringBuilder("<rss><channel><title>Compressed</title>");
+        for (int index = 0; index < 500; index++)
+            feed.append("<item><title>Episode ").append(index).append("</title>")
+                    .append("<enclosure url=\"http://www.example.com/compressed/").append(index)
+                    .append(".mp3\" type=\"audio/mpeg\"/></item>");
+        feed.append("</channel></rss>");
+        final byte[] plain = feed.toString().getBytes("UTF-8");
+
+        final LocalHttpTransport transport = new LocalHttpTransport();
+        transport.putCompressible(url, plain);
+
+        final MockPodcastLoader mockLoader = new MockPodcastLoader();
+        final Podcast podcast = new Podcast(null, url);
+        loadAndWait(mockLoader, podcast, false, transport);
+
+        assertFalse(mockLoader.failed);
+        assertEquals("Compressed", podcast.getName());
+        // Progress was reported on the compressed stream
+        assertTrue(mockLoader.progressUpdates > 4);
+
+        final TransferStats stats = podcast.getTransferStats();
+        Log.d(Utils.TEST_STATUS, "Transfer stats for compressed feed: " + stats);
+        assertEquals(1, stats.getLoadCount());
+        assertEquals(plain.length, stats.getBytesLoaded());
+        assertTrue(stats.getBytesTransferred() < plain.length);
+    }
+
+    public final void testPermanentRedirectIsLearned() throws Exception {
+        final String oldUrl = "http://feeds2.example.com/moved";
+        final String httpUrl = "http://feeds.example.com/moved";
+        final String newUrl = "https://feeds.example.com/moved";
+        final byte[] feed = ("<rss><channel><title>Moved</title><item><title>Episode</title>"
+                + "<enclosure url=\"http://www.example.com/moved.mp3\" type=\"audio/mpeg\"/>"
+                + "</item></channel></rss>").getBytes("UTF-8");
+
+        final LocalHttpTransport transport = new LocalHttpTransport();
+        transport.putRedirect(oldUrl, HttpURLConnection.HTTP_MOVED_PERM, httpUrl);
+        transport.putRedirect(httpUrl, HttpURLConnection.HTTP_MOVED_PERM, newUrl);
+        transport.put(newUrl, feed);
+
+        final MockPodcastLoader mockLoader = new MockPodcastLoader();
+        final Podcast podcast = new Podcast(null, oldUrl);
+
+        // The first load follows the chain (across protocols) and learns it
+        loadAndWait(mockLoader, podcast, false, transport);
+        assertFalse(mockLoader.failed);
+        assertEquals("Moved", podcast.getName());
+        assertEquals(3, transport.getRequestCount());
+        assertEquals(newUrl, podcast.getLoadUrl());
+        assertEquals(oldUrl, podcast.getUrl());
+        assertFalse(podcast.isRedirectStable());
+
+        // Later loads go straight to the new location
+        for (int load = 1; load < Podcast.STABLE_REDIRECT_COUNT; load++)
+            loadAndWait(mockLoader, podcast, false, transport);
+        assertFalse(mockLoader.failed);
+        assertEquals(3 + Podcast.STABLE_REDIRECT_COUNT - 1, transport.getRequestCount());
+        assertTrue(podcast.isRedirectStable());
+
+        assertEquals(oldUrl, podcast.applyRedirect());
+        assertEquals(newUrl, podcast.getUrl());
+        assertEquals(newUrl, podcast.getLoadUrl());
+        assertFalse(podcast.isRedirectStable());
+    }
+
+    public final void testTemporaryRedirectIsNotLearned() throws Exception {
+        final String url = "http://www.example.com/temporary";
+        final String target = "http://cdn.example.com/temporary";
+
+        final LocalHttpTransport transport = new LocalHttpTransport();
+        transport.putRedirect(url, HttpURLConnection.HTTP_MOVED_TEMP, target);
+        transport.put(target, "<rss><channel><title>Temporary</title></channel></rss>"
+                .getBytes("UTF-8"));
+
+        final MockPodcastLoader mockLoader = new MockPodcastLoader();
+        final Podcast podcast = new Podcast(null, url);
+        loadAndWait(mockLoader, podcast, false, transport);
+
+        assertFalse(mockLoader.failed);
+        assertEquals("Temporary", podcast.getName());
+        assertEquals(url, podcast.getLoadUrl());
+    }
+
+    public final void testFailedRedirectIsReset() throws Exception {
+        final String url = "http://www.example.com/gone";
+        final String target = "http://new.example.com/gone";
+
+        final LocalHttpTransport transport = new LocalHttpTransport();
+        transport.putRedirect(url, HttpURLConnection.HTTP_MOVED_PERM, target);
+
+        final MockPodcastLoader mockLoader = new MockPodcastLoader();
+        final Podcast podcast = new Podcast(null, url);
+        podcast.recordRedirect(target);
+        loadAndWait(mockLoader, podcast, false, transport);
+
+        assertTrue(mockLoader.failed);
+        assertEquals(url, podcast.getLoadUrl());
+    }
+
+    public final void testCredentialsNotSentOverHttp() throws Exception {
+        final String url = "https://secure.example.com/feed";
+        final String target = "http://secure.example.com/feed";
+
+        final LocalHttpTransport transport = new LocalHttpTransport();
+        transport.putRedirect(url, HttpURLConnection.HTTP_MOVED_PERM, target);
+        transport.put(target, "<rss><channel><title>Secure</title></channel></rss>"
+                .getBytes("UTF-8"));
+
+        final MockPodcastLoader mockLoader = new MockPodcastLoader();
+        final Podcast podcast = new Podcast(null, url);
+        podcast.setUsername("user");
+        podcast.setPassword("secret");
+        loadAndWait(mockLoader, podcast, false, transport);
+
+        assertFalse(mockLoader.failed);
+        assertEquals("Secure", podcast.getName());
+        // Credentials went to the https location only
+        assertEquals(podcast.getAuthorization(), transport.getAuthorization(url));
+        assertNull(transport.getAuthorization(target));
+        // ... and the downgrade is not learned
+        assertEquals(url, podcast.getLoadUrl());
+    }
+
     private LoadPodcastTask loadAndWait(final MockPodcastLoader mockLoader, final Podcast podcast,
             boolean blockExplicit) {
+        return loadAndWait(mockLoader, podcast, blockExplicit, null);
+    }
+
+    private LoadPodcastTask loadAndWait(final MockPodcastLoader mockLoader, final Podcast podcast,
+            boolean blockExplicit, HttpTransport transport) {
         // Create task and latch
         final LoadPodcastTask task = new LoadPodcastTask(mockLoader);
         task.setBlockExplicitEpisodes(blockExplicit);
+        if (transport != null)
+            task.setTransport(transport);
         signal = new CountDownLatch(1);
+        mockLoader.progressUpdates = 0;
 
         // Go load podcast
         final Date start = new Date();
@@ -0,0 +1,105 @@
+package net.alliknow.podcatcher.model.tasks.remote.test;
+
+import android.test.InstrumentationTestCase;
+
+import net.alliknow.podcatcher.listeners.OnLoadSuggestionListener;
+import net.alliknow.podcatcher.model.tasks.remote.LoadSuggestionsTask;
+import net.alliknow.podcatcher.model.test.LocalHttpTransport;
+import net.alliknow.podcatcher.model.types.Genre;
+import net.alliknow.podcatcher.model.types.Progress;
+import net.alliknow.podcatcher.model.types.Suggestion;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+@SuppressWarnings("javadoc")
+public class LoadSuggestionsTaskTest extends InstrumentationTestCase {
+
+    private static final String SOURCE =
+            "http://www.podcatcher-deluxe.com/podcast_suggestions.json";
+    private static final String JSON = "{\"featured\": [], \"suggestions\": [{"
+            + "\"title\": \"Test\", \"url\": \"http://www.example.com/feed.xml\", "
+            + "\"description\": \"A test\", \"language\": \"english\", \"type\": \"audio\", "
+            + "\"category\": \"Arts\", \"explicit\": \"no\"}]}";
+
+    private CountDownLatch signal;
+    private LocalHttpTransport transport;
+
+    private List<Suggestion> result;
+    private boolean failed;
+
+    private final OnLoadSuggestionListener listener = new OnLoadSuggestionListener() {
+
+        @Override
+        public void onSuggestionsLoadProgress(Progress progress) {
+        }
+
+        @Override
+        public void onSuggestionsLoaded(List<Suggestion> suggestions) {
+            result = suggestions;
+            failed = false;
+
+            signal.countDown();
+        }
+
+        @Override
+        public void onSuggestionsLoadFailed() {
+            failed = true;
+
+            signal.countDown();
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        transport = new LocalHttpTransport();
+        deleteCachedSuggestions();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteCachedSuggestions();
+    }
+
+    public final void testLoadFromTransport() throws Exception {
+        transport.put(SOURCE, JSON.getBytes("UTF-8"));
+
+        loadAndWait();
+        assertFalse(failed);
+        assertEquals(1, result.size());
+        assertEquals("Test", result.get(0).getName());
+        assertEquals(Genre.ARTS, result.get(0).getGenre());
+        assertEquals(1, transport.getRequestCount());
+        assertEquals(1, transport.getReusedCount());
+
+        // The second load is served from the local copy
+        loadAndWait();
+        assertFalse(failed);
+        assertEquals(1, result.size());
+        assertEquals(1, transport.getRequestCount());
+    }
+
+    public final void testLoadFails() throws Exception {
+        loadAndWait();
+        assertTrue(failed);
+        assertEquals(1, transport.getRequestCount());
+        assertEquals(0, transport.getReusedCount());
+    }
+
+    private void loadAndWait() throws InterruptedException {
+        signal = new CountDownLatch(1);
+
+        final LoadSuggestionsTask task = new LoadSuggestionsTask(
+                getInstrumentation().getTargetContext(), listener);
+        task.setTransport(transport);
+        task.execute((Void) null);
+
+        signal.await();
+    }
+
+    private void deleteCachedSuggestions() {
+        new File(getInstrumentation().getTargetContext().getCacheDir(), "suggestions.json")
+                .delete();
+    }
+}
@@ -0,0 +1,105 @@
+package net.alliknow.podcatcher.model.tasks.remote.test;
+
+import android.test.InstrumentationTestCase;
+
+import net.alliknow.podcatcher.listeners.OnResolveMediaUrlListener;
+import net.alliknow.podcatcher.model.tasks.remote.ResolveMediaUrlTask;
+import net.alliknow.podcatcher.model.test.LocalHttpTransport;
+import net.alliknow.podcatcher.model.types.Episode;
+import net.alliknow.podcatcher.model.types.Podcast;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CountDownLatch;
+
+@SuppressWarnings("javadoc")
+public class ResolveMediaUrlTaskTest extends InstrumentationTestCase {
+
+    private static final String MEDIA_URL = "http://www.example.com/episode.mp3";
+    private static final String TRACKER_URL = "http://tracker.example.com/episode.mp3";
+    private static final String CDN_URL = "https://cdn.example.com/episode.mp3";
+
+    private CountDownLatch signal;
+    private LocalHttpTransport transport;
+
+    private String location;
+    private boolean failed;
+
+    private final OnResolveMediaUrlListener listener = new OnResolveMediaUrlListener() {
+
+        @Override
+        public void onMediaUrlResolved(String mediaUrl, String location) {
+            ResolveMediaUrlTaskTest.this.location = location;
+            failed = false;
+
+            signal.countDown();
+        }
+
+        @Override
+        public void onMediaUrlResolveFailed(String mediaUrl) {
+            failed = true;
+
+            signal.countDown();
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        transport = new LocalHttpTransport();
+    }
+
+    public final void testResolveRedirects() throws Exception {
+        transport.putRedirect(MEDIA_URL, HttpURLConnection.HTTP_MOVED_TEMP, TRACKER_URL);
+        transport.putRedirect(TRACKER_URL, HttpURLConnection.HTTP_SEE_OTHER, CDN_URL);
+        transport.put(CDN_URL, new byte[1024]);
+
+        resolveAndWait();
+        assertFalse(failed);
+        assertEquals(CDN_URL, location);
+        assertEquals(3, transport.getRequestCount());
+    }
+
+    public final void testResolveWithoutRedirects() throws Exception {
+        transport.put(MEDIA_URL, new byte[1024]);
+
+        resolveAndWait();
+        assertFalse(failed);
+        assertEquals(MEDIA_URL, location);
+        assertEquals(1, transport.getRequestCount());
+    }
+
+    public final void testResolveLoopFails() throws Exception {
+        transport.putRedirect(MEDIA_URL, HttpURLConnection.HTTP_MOVED_TEMP, TRACKER_URL);
+        transport.putRedirect(TRACKER_URL, HttpURLConnection.HTTP_MOVED_TEMP, MEDIA_URL);
+
+        resolveAndWait();
+        assertTrue(failed);
+    }
+
+    private void resolveAndWait() throws Exception {
+        signal = new CountDownLatch(1);
+
+        final ResolveMediaUrlTask task = new ResolveMediaUrlTask(listener);
+        task.setTransport(transport);
+        task.execute(createEpisode());
+
+        signal.await();
+    }
+
+    private Episode createEpisode() throws Exception {
+        final XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final XmlPullParser parser = factory.newPullParser();
+        parser.setInput(new StringReader("<rss><channel><title>Test</title><item>"
+                + "<title>Episode</title><enclosure url=\"" + MEDIA_URL
+                + "\" type=\"audio/mpeg\"/></item></channel></rss>"));
+
+        final Podcast podcast = new Podcast(null, "http://www.example.com/feed.xml");
+        podcast.parse(parser);
+
+        return podcast.getEpisodes().get(0);
+    }
+}
@@ -0,0 +1,225 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.tasks.remote.test;
+
+import android.test.InstrumentationTestCase;
+
+import net.alliknow.podcatcher.Podcatcher;
+import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask.DownloadTaskListener;
+import net.alliknow.podcatcher.model.tasks.remote.DownloadEpisodeTask.EpisodeDownloadError;
+import net.alliknow.podcatcher.model.tasks.remote.SegmentedDownloadTask;
+import net.alliknow.podcatcher.model.tasks.remote.SegmentedDownloadTask.BandwidthLimiter;
+import net.alliknow.podcatcher.model.test.LocalHttpServer;
+import net.alliknow.podcatcher.model.types.Episode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+
+@SuppressWarnings("javadoc")
+public class SegmentedDownloadTaskTest extends InstrumentationTestCase {
+
+    private static final String PATH = "/episode.mp3";
+    private static final int SIZE = 6 * 1024 * 1024 + 123;
+
+    private LocalHttpServer server;
+    private byte[] content;
+    private File target;
+
+    private final DownloadTaskListener listener = new DownloadTaskListener() {
+
+        @Override
+        public void onEpisodeEnqueued(Episode episode, long id) {
+        }
+
+        @Override
+        public void onEpisodeDownloadProgressed(Episode episode, int percent) {
+        }
+
+        @Override
+        public void onEpisodeDownloaded(Episode episode, File episodeFile) {
+        }
+
+        @Override
+        public void onEpisodeDownloadFailed(Episode episode, EpisodeDownloadError error) {
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        content = new byte[SIZE];
+        new Random(42).nextBytes(content);
+
+        server = new LocalHttpServer();
+        server.put(PATH, content);
+        server.start();
+
+        target = new File(getInstrumentation().getTargetContext().getCacheDir(), "segmented.mp3");
+        deleteFiles();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        deleteFiles();
+    }
+
+    public final void testSingleConnectionWithoutRanges() throws Exception {
+        server.setSupportRanges(false);
+
+        assertTrue(createTask().download(new URL(server.getUrl(PATH)), target));
+        assertContent();
+        assertEquals(0, server.getRangeRequestCount());
+    }
+
+    public final void testSegmentedDownload() throws Exception {
+        final SegmentedDownloadTask task = createTask();
+        task.setMaxConnections(4);
+
+        assertTrue(task.download(new URL(server.getUrl(PATH)), target));
+        assertContent();
+        // Three segments of at least the minimum size fit into the file
+        assertEquals(SIZE / SegmentedDownloadTask.MIN_SEGMENT_SIZE, server.getRangeRequestCount());
+        assertFalse(partialFile().exists());
+        assertFalse(stateFile().exists());
+    }
+
+    public final void testResume() throws Exception {
+        server.setThrottle(512 * 1024);
+        final SegmentedDownloadTask first = createTask();
+
+        // Cancel the first attempt after a while
+        new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(1500);
+                } catch (InterruptedException e) {
+                    // pass
+                }
+
+                first.cancel(false);
+            }
+        }.start();
+
+        assertFalse(first.download(new URL(server.getUrl(PATH)), target));
+        assertTrue(partialFile().exists());
+        assertTrue(stateFile().exists());
+        assertFalse(target.exists());
+
+        // The second attempt should only load what is missing
+        server.setThrottle(0);
+        server.resetCounters();
+        assertTrue(createTask().download(new URL(server.getUrl(PATH)), target));
+        assertContent();
+        assertTrue(server.getBytesSent() < SIZE);
+    }
+
+    public final void testDiscardedDownloadIsNotResumed() throws Exception {
+        server.setThrottle(512 * 1024);
+        final SegmentedDownloadTask task = createTask();
+
+        new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    // pass
+                }
+
+                task.discard();
+            }
+        }.start();
+
+        assertFalse(task.download(new URL(server.getUrl(PATH)), target));
+        assertFalse(partialFile().exists());
+        assertFalse(stateFile().exists());
+    }
+
+    public final void testMissingFile() throws Exception {
+        try {
+            createTask().download(new URL(server.getUrl("/missing.mp3")), target);
+            fail("Download of missing file should fail");
+        } catch (IOException ioe) {
+            // Expected
+        }
+    }
+
+    public final void testBandwidthLimiter() throws Exception {
+        final BandwidthLimiter limiter = new BandwidthLimiter(200 * 1024);
+
+        final long start = System.currentTimeMillis();
+        // Three times the limit, the first second is covered by the full bucket
+        for (int count = 0; count < 3 * 200 / 16; count++)
+            limiter.acquire(16 * 1024);
+
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Limiter too fast: " + elapsed + "ms", elapsed >= 1800);
+        assertTrue("Limiter too slow: " + elapsed + "ms", elapsed < 4000);
+
+        // No limit, no waiting
+        limiter.setLimit(0);
+        final long unlimitedStart = System.currentTimeMillis();
+        for (int count = 0; count < 1000; count++)
+            limiter.acquire(16 * 1024);
+        assertTrue(System.currentTimeMillis() - unlimitedStart < 500);
+    }
+
+    private SegmentedDownloadTask createTask() {
+        return new SegmentedDownloadTask((Podcatcher) getInstrumentation().getTargetContext()
+                .getApplicationContext(), listener);
+    }
+
+    private void assertContent() throws IOException {
+        assertTrue(target.exists());
+        assertEquals(SIZE, target.length());
+
+        final byte[] loaded = new byte[SIZE];
+        final FileInputStream input = new FileInputStream(target);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < SIZE && (read = input.read(loaded, offset, SIZE - offset)) > 0)
+                offset += read;
+        } finally {
+            input.close();
+        }
+
+        assertTrue(Arrays.equals(content, loaded));
+    }
+
+    private File partialFile() {
+        return new File(target.getPath() + SegmentedDownloadTask.PARTIAL_FILE_SUFFIX);
+    }
+
+    private File stateFile() {
+        return new File(partialFile().getPath() + SegmentedDownloadTask.STATE_FILE_SUFFIX);
+    }
+
+    private void deleteFiles() {
+        target.delete();
+        partialFile().delete();
+        stateFile().delete();
+    }
+}
@@ -0,0 +1,104 @@
+package net.alliknow.podcatcher.model.tasks.test;
+
+import static net.alliknow.podcatcher.model.tasks.EnforceStorageBudgetTask.getBudget;
+import static net.alliknow.podcatcher.model.tasks.EnforceStorageBudgetTask.selectEvictions;
+
+import junit.framework.TestCase;
+
+import net.alliknow.podcatcher.model.types.EpisodeMetadata;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@SuppressWarnings("javadoc")
+public class EnforceStorageBudgetTaskTest extends TestCase {
+
+    private Map<String, EpisodeMetadata> downloads;
+    private Map<String, Long> sizes;
+
+    @Override
+    protected void setUp() throws Exception {
+        downloads = new HashMap<>();
+        sizes = new HashMap<>();
+    }
+
+    public final void testGetBudget() {
+        assertEquals(Long.MAX_VALUE, getBudget("0", 1000));
+        assertEquals(Long.MAX_VALUE, getBudget(null, 1000));
+        assertEquals(Long.MAX_VALUE, getBudget("crap", 1000));
+        assertEquals(Long.MAX_VALUE, getBudget("-5", 1000));
+        assertEquals(Long.MAX_VALUE, getBudget("0%", 1000));
+        assertEquals(500, getBudget("500", 1000));
+        assertEquals(5368709120l, getBudget("5368709120", 1000));
+        assertEquals(250, getBudget("25%", 1000));
+        assertEquals(250, getBudget(" 25 % ", 1000));
+    }
+
+    public final void testWithinBudget() {
+        put("a", 100, true, null, 1);
+        put("b", 100, false, null, 2);
+
+        assertTrue(selectEvictions(downloads, sizes, 200).isEmpty());
+        assertTrue(selectEvictions(downloads, sizes, Long.MAX_VALUE).isEmpty());
+    }
+
+    public final void testEvictionOrder() {
+        put("new", 100, false, null, 1);
+        put("played-recently", 100, true, null, 5);
+        put("played-long-ago", 100, true, null, 2);
+        put("unplayed-old", 100, null, null, 0);
+        put("playlist", 100, false, 0, -1);
+        put("playlist-played", 100, true, 1, 3);
+
+        // Just enough to get rid of one
+        assertEquals(Arrays.asList("played-long-ago"), selectEvictions(downloads, sizes, 500));
+        // Played ones first, least recently used first
+        assertEquals(Arrays.asList("played-long-ago", "playlist-played", "played-recently"),
+                selectEvictions(downloads, sizes, 300));
+        // Then unplayed, but never upcoming playlist entries
+        final List<String> all = selectEvictions(downloads, sizes, 0);
+        assertEquals(Arrays.asList("played-long-ago", "playlist-played", "played-recently",
+                "unplayed-old", "new"), all);
+        assertFalse(all.contains("playlist"));
+    }
+
+    public final void testEvictionBySize() {
+        put("big", 1000, true, null, 1);
+        put("small", 10, true, null, 2);
+
+        // One big eviction is enough
+        assertEquals(Arrays.asList("big"), selectEvictions(downloads, sizes, 500));
+    }
+
+    public final void testKeepsResumable() {
+        put("played", 100, true, null, 1);
+        put("resumable", 100, false, null, 0);
+        downloads.get("resumable").resumeAt = 42000;
+
+        // Evicts everything else, but never the one the user is in
+        assertEquals(Arrays.asList("played"), selectEvictions(downloads, sizes, 0));
+    }
+
+    public final void testNotUpForEviction() {
+        put("played", 100, true, null, 1);
+        put("playing", 1000, true, null, 0);
+        downloads.remove("playing");
+
+        // Size of the episode playing still counts
+        assertEquals(Arrays.asList("played"), selectEvictions(downloads, sizes, 1000));
+    }
+
+    private void put(String key, long size, Boolean played, Integer position, long lastTouched) {
+        final EpisodeMetadata meta = new EpisodeMetadata();
+        meta.downloadId = 1l;
+        meta.filePath = "/sdcard/Podcasts/" + key;
+        meta.isOld = played;
+        meta.playlistPosition = position;
+        meta.lastTouched = lastTouched;
+
+        downloads.put(key, meta);
+        sizes.put(key, size);
+    }
+}
@@ -0,0 +1,89 @@
+package net.alliknow.podcatcher.model.test;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.InstrumentationTestCase;
+
+import net.alliknow.podcatcher.model.BitmapPool;
+
+@SuppressWarnings("javadoc")
+public class BitmapPoolTest extends InstrumentationTestCase {
+
+    private BitmapPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        pool = BitmapPool.getInstance();
+        pool.clear();
+    }
+
+    public final void testSingleton() {
+        assertSame(pool, BitmapPool.getInstance());
+    }
+
+    public final void testPrepareEmpty() {
+        final BitmapFactory.Options options = createOptions(100, 100, 1);
+        pool.prepare(options);
+
+        assertTrue(options.inMutable);
+        assertNull(options.inBitmap);
+    }
+
+    public final void testReuse() {
+        final Bitmap bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        BitmapFactory.Options options = createOptions(100, 100, 1);
+        pool.prepare(options);
+        assertSame(bitmap, options.inBitmap);
+
+        // Taken out of the pool
+        options = createOptions(100, 100, 1);
+        pool.prepare(options);
+        assertNull(options.inBitmap);
+    }
+
+    public final void testTooLarge() {
+        pool.put(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+
+        final BitmapFactory.Options options = createOptions(200, 200, 1);
+        pool.prepare(options);
+        assertNull(options.inBitmap);
+    }
+
+    public final void testImmutableAndRecycled() {
+        final Bitmap immutable = Bitmap.createBitmap(
+                Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888), 0, 0, 50, 50);
+        if (!immutable.isMutable()) {
+            pool.put(immutable);
+            assertTrue(immutable.isRecycled());
+        }
+
+        final Bitmap recycled = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(recycled);
+        recycled.recycle();
+
+        final BitmapFactory.Options options = createOptions(100, 100, 1);
+        pool.prepare(options);
+        assertNull(options.inBitmap);
+    }
+
+    public final void testBounded() {
+        final Bitmap first = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+
+        for (int i = 0; i < 5; i++)
+            pool.put(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+
+        assertTrue(first.isRecycled());
+    }
+
+    private BitmapFactory.Options createOptions(int width, int height, int sampleSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = width;
+        options.outHeight = height;
+        options.inSampleSize = sampleSize;
+
+        return options;
+    }
+}
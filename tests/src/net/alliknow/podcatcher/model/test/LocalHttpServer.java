@@ -0,0 +1,206 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.test;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal HTTP server running in the test process on the loopback
+ * interface. It stands in for the remote servers in tests and answers HEAD
+ * and GET requests for the content registered under a path, optionally
+ * honoring range requests.
+ */
+@SuppressWarnings("javadoc")
+public class LocalHttpServer {
+
+    private static final String ETAG = "\"local-test-etag\"";
+
+    private final Map<String, byte[]> content = new HashMap<String, byte[]>();
+    private ServerSocket serverSocket;
+
+    private volatile boolean supportRanges = true;
+    private volatile int throttleBytesPerSecond = 0;
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger rangeRequestCount = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    public synchronized void put(String path, byte[] data) {
+        content.put(path, data);
+    }
+
+    public void setSupportRanges(boolean supportRanges) {
+        this.supportRanges = supportRanges;
+    }
+
+    /**
+     * Slow down responses, so tests have time to interfere with running
+     * transfers.
+     */
+    public void setThrottle(int bytesPerSecond) {
+        this.throttleBytesPerSecond = bytesPerSecond;
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public int getRangeRequestCount() {
+        return rangeRequestCount.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public void resetCounters() {
+        requestCount.set(0);
+        rangeRequestCount.set(0);
+        bytesSent.set(0);
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        new Thread("LocalHttpServer") {
+
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed())
+                    try {
+                        final Socket socket = serverSocket.accept();
+
+                        new Thread("LocalHttpServer connection") {
+
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        }.start();
+                    } catch (IOException ioe) {
+                        // Server socket closed
+                    }
+            }
+        }.start();
+    }
+
+    public void shutdown() {
+        try {
+            serverSocket.close();
+        } catch (IOException ioe) {
+            // pass
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "ISO-8859-1"));
+            final OutputStream out = socket.getOutputStream();
+
+            final String[] requestLine = reader.readLine().split(" ");
+            final String method = requestLine[0];
+            final String path = requestLine[1];
+
+            String range = null;
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0)
+                if (line.toLowerCase().startsWith("range:"))
+                    range = line.substring(6).trim();
+
+            requestCount.incrementAndGet();
+
+            final byte[] data;
+            synchronized (this) {
+                data = content.get(path);
+            }
+
+            if (data == null) {
+                out.write(("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                return;
+            }
+
+            long start = 0;
+            long end = data.length - 1;
+            final boolean partial = supportRanges && range != null && range.startsWith("bytes=");
+            if (partial) {
+                rangeRequestCount.incrementAndGet();
+
+                final String[] bounds = range.substring(6).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (bounds[1].length() > 0)
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+
+            final StringBuilder header = new StringBuilder();
+            header.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+            header.append("Content-Type: audio/mpeg\r\n");
+            header.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            header.append("ETag: ").append(ETAG).append("\r\n");
+            if (supportRanges)
+                header.append("Accept-Ranges: bytes\r\n");
+            if (partial)
+                header.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(data.length).append("\r\n");
+            header.append("Connection: close\r\n\r\n");
+            out.write(header.toString().getBytes("ISO-8859-1"));
+
+            if ("GET".equals(method)) {
+                final int chunk = 8 * 1024;
+
+                for (long position = start; position <= end; position += chunk) {
+                    final int length = (int) Math.min(chunk, end - position + 1);
+                    out.write(data, (int) position, length);
+                    bytesSent.addAndGet(length);
+
+                    final int throttle = throttleBytesPerSecond;
+                    if (throttle > 0)
+                        Thread.sleep(Math.max(1, length * 1000l / throttle));
+                }
+            }
+
+            out.flush();
+        } catch (Exception e) {
+            // The client might just have hung up
+            Log.d(Utils.TEST_STATUS, "Local server connection ended: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                // pass
+            }
+        }
+    }
+}
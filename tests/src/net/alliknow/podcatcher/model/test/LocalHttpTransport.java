@@ -0,0 +1,203 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.test;
+
+import net.alliknow.podcatcher.model.tasks.remote.HttpTransport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-process stand-in for the network. Content is registered under its
+ * URL and served without any sockets involved, so tests and benchmarks using
+ * it are deterministic. Responses carry an ETag and conditional requests
+ * matching it are answered with 304. Content registered as compressible is
+ * sent gzipped if the request accepts it. Redirects can be registered as well,
+ * the connections do not follow them on their own. The Authorization header
+ * last sent to each URL is kept for inspection.
+ */
+@SuppressWarnings("javadoc")
+public class LocalHttpTransport implements HttpTransport {
+
+    public static final String ETAG = "\"local-transport-etag\"";
+
+    private final Map<String, byte[]> content = new HashMap<String, byte[]>();
+    private final Map<String, byte[]> gzipped = new HashMap<String, byte[]>();
+    private final Map<String, String> redirects = new HashMap<String, String>();
+    private final Map<String, Integer> redirectCodes = new HashMap<String, Integer>();
+    private final Map<String, String> authorizations = new HashMap<String, String>();
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger notModifiedCount = new AtomicInteger();
+    private final AtomicInteger reusedCount = new AtomicInteger();
+
+    public synchronized void put(String url, byte[] data) {
+        content.put(url, data);
+    }
+
+    public synchronized void putCompressible(String url, byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+
+        content.put(url, data);
+        gzipped.put(url, bytes.toByteArray());
+    }
+
+    public synchronized void putRedirect(String url, int code, String location) {
+        redirects.put(url, location);
+        redirectCodes.put(url, code);
+    }
+
+    public synchronized String getAuthorization(String url) {
+        return authorizations.get(url);
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public int getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    public int getReusedCount() {
+        return reusedCount.get();
+    }
+
+    @Override
+    public HttpURLConnection open(URL url) throws IOException {
+        synchronized (this) {
+            final String key = url.toString();
+            final Integer redirectCode = redirectCodes.get(key);
+
+            return new LocalConnection(url, content.get(key), gzipped.get(key),
+                    redirectCode == null ? -1 : redirectCode, redirects.get(key));
+        }
+    }
+
+    @Override
+    public void release(HttpURLConnection connection, boolean reusable) {
+        if (reusable)
+            reusedCount.incrementAndGet();
+    }
+
+    private class LocalConnection extends HttpURLConnection {
+
+        private final byte[] plain;
+        private final byte[] compressed;
+        private final int redirectCode;
+        private final String location;
+        private byte[] data;
+        private boolean gzip;
+
+        private LocalConnection(URL url, byte[] plain, byte[] compressed, int redirectCode,
+                String location) {
+            super(url);
+
+            this.plain = plain;
+            this.compressed = compressed;
+            this.redirectCode = redirectCode;
+            this.location = location;
+            this.data = plain;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!connected) {
+                final String accept = getRequestProperty("Accept-Encoding");
+                gzip = compressed != null && accept != null && accept.contains("gzip");
+                data = gzip ? compressed : plain;
+
+                connected = true;
+                requestCount.incrementAndGet();
+
+                final String authorization = getRequestProperty("Authorization");
+                synchronized (LocalHttpTransport.this) {
+                    authorizations.put(url.toString(), authorization);
+                }
+
+                if (data != null && ETAG.equals(getRequestProperty("If-None-Match")))
+                    notModifiedCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            // Nothing to do
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            connect();
+
+            if (location != null)
+                return redirectCode;
+            else if (data == null)
+                return HTTP_NOT_FOUND;
+            else if (ETAG.equals(getRequestProperty("If-None-Match")))
+                return HTTP_NOT_MODIFIED;
+            else
+                return HTTP_OK;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            final int code = getResponseCode();
+
+            if (code == HTTP_NOT_FOUND)
+                throw new FileNotFoundException(url.toString());
+            else if (code == HTTP_NOT_MODIFIED || location != null)
+                return new ByteArrayInputStream(new byte[0]);
+            else
+                return new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int getContentLength() {
+            return data == null ? -1 : data.length;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            if ("ETag".equalsIgnoreCase(name))
+                return data == null ? null : ETAG;
+            else if ("Content-Encoding".equalsIgnoreCase(name))
+                return gzip ? "gzip" : null;
+            else if ("Location".equalsIgnoreCase(name))
+                return location;
+            else
+                return null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package net.alliknow.podcatcher.model.test;
+
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+
+import net.alliknow.podcatcher.model.LogoCache;
+import net.alliknow.podcatcher.model.types.LogoVariant;
+import net.alliknow.podcatcher.model.types.Podcast;
+
+@SuppressWarnings("javadoc")
+public class LogoCacheTest extends InstrumentationTestCase {
+
+    private static final String URL = "http://www.example.com/feed.xml";
+
+    private LogoCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        cache = LogoCache.getInstance(getInstrumentation().getTargetContext());
+        cache.clear();
+    }
+
+    public final void testSingleton() {
+        assertSame(cache, LogoCache.getInstance());
+        assertSame(cache, LogoCache.getInstance(getInstrumentation().getTargetContext()));
+    }
+
+    public final void testPutAndGet() {
+        final Bitmap logo = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+
+        assertNull(cache.get(URL, LogoVariant.LARGE));
+        assertFalse(cache.contains(URL, LogoVariant.LARGE));
+        assertNull(cache.get(null, LogoVariant.LARGE));
+
+        cache.put(URL, LogoVariant.LARGE, logo);
+        assertTrue(cache.contains(URL, LogoVariant.LARGE));
+        // No copies
+        assertSame(logo, cache.get(URL, LogoVariant.LARGE));
+        // Variants are separate
+        assertFalse(cache.contains(URL, LogoVariant.THUMBNAIL));
+
+        cache.put(URL, LogoVariant.LARGE, null);
+        assertFalse(cache.contains(URL, LogoVariant.LARGE));
+
+        cache.put(null, LogoVariant.LARGE, logo);
+        assertNull(cache.get(null, LogoVariant.LARGE));
+    }
+
+    public final void testSharedByPodcasts() {
+        final Bitmap logo = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        final Podcast podcast = new Podcast("Test", URL);
+        final Podcast same = new Podcast("Same", URL);
+
+        podcast.setLogo(logo);
+        assertTrue(same.isLogoCached());
+        assertSame(logo, same.getLogo());
+        assertSame(podcast.getLogo(), same.getLogo());
+        assertSame(logo, same.getLogo(LogoVariant.LARGE));
+        assertFalse(same.isLogoCached(LogoVariant.NOTIFICATION));
+
+        cache.clear();
+        assertFalse(podcast.isLogoCached());
+        assertNull(podcast.getLogo());
+    }
+}
@@ -0,0 +1,111 @@
+package net.alliknow.podcatcher.model.test;
+
+import android.test.InstrumentationTestCase;
+
+import net.alliknow.podcatcher.model.LogoDiskCache;
+import net.alliknow.podcatcher.model.LogoDiskCache.Entry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+@SuppressWarnings("javadoc")
+public class LogoDiskCacheTest extends InstrumentationTestCase {
+
+    private static final String URL = "http://www.example.com/feed.xml";
+    private static final String OTHER_URL = "http://www.example.com/other.xml";
+    private static final String LOGO_URL = "http://www.example.com/logo.png";
+
+    private LogoDiskCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        cache = LogoDiskCache.getInstance(getInstrumentation().getTargetContext());
+        cache.remove(URL);
+        cache.remove(OTHER_URL);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.remove(URL);
+        cache.remove(OTHER_URL);
+    }
+
+    public final void testPutAndGet() throws IOException {
+        assertNull(cache.get(URL));
+        assertNull(cache.get(null));
+
+        final Entry entry = cache.put(URL, LOGO_URL, createPartial(100), "a1", "\"tag\"", null);
+        assertSame(entry, cache.get(URL));
+        assertEquals(LOGO_URL, entry.getLogoUrl());
+        assertEquals(100, entry.getSize());
+        assertEquals("\"tag\"", entry.getETag());
+        assertNull(entry.getLastModified());
+        assertEquals(0, entry.getAge());
+        assertTrue(cache.getFile(entry).exists());
+
+        cache.remove(URL);
+        assertNull(cache.get(URL));
+        assertFalse(cache.getFile(entry).exists());
+    }
+
+    public final void testSharedContent() throws IOException {
+        final long size = cache.getSize();
+        final Entry first = cache.put(URL, LOGO_URL, createPartial(100), "b2", null, null);
+        final Entry second = cache.put(OTHER_URL, LOGO_URL, createPartial(100), "b2", null, null);
+
+        assertEquals(cache.getFile(first), cache.getFile(second));
+        assertEquals(size + 100, cache.getSize());
+
+        // File stays as long as it is referenced
+        cache.remove(URL);
+        assertTrue(cache.getFile(second).exists());
+        cache.remove(OTHER_URL);
+        assertFalse(cache.getFile(second).exists());
+    }
+
+    public final void testReplace() throws IOException {
+        final Entry old = cache.put(URL, LOGO_URL, createPartial(100), "c3", null, null);
+        final Entry entry = cache.put(URL, LOGO_URL, createPartial(200), "d4", null, null);
+
+        assertFalse(cache.getFile(old).exists());
+        assertTrue(cache.getFile(entry).exists());
+        assertSame(entry, cache.get(URL));
+    }
+
+    public final void testValidated() throws IOException {
+        assertNull(cache.validated(URL));
+
+        final Entry entry = cache.put(URL, LOGO_URL, createPartial(100), "e5", "\"tag\"",
+                "Sat, 01 Feb 2014 12:00:00 GMT");
+        final Entry validated = cache.validated(URL);
+
+        assertNotSame(entry, validated);
+        assertEquals(cache.getFile(entry), cache.getFile(validated));
+        assertEquals(entry.getETag(), validated.getETag());
+        assertEquals(entry.getLastModified(), validated.getLastModified());
+    }
+
+    public final void testMove() throws IOException {
+        final Entry entry = cache.put(URL, LOGO_URL, createPartial(100), "f6", "\"tag\"", null);
+        cache.move(URL, OTHER_URL);
+
+        assertNull(cache.get(URL));
+        final Entry moved = cache.get(OTHER_URL);
+        assertEquals(OTHER_URL, moved.getKey());
+        assertEquals(LOGO_URL, moved.getLogoUrl());
+        assertEquals(entry.getETag(), moved.getETag());
+        assertEquals(cache.getFile(entry), cache.getFile(moved));
+        assertTrue(cache.getFile(moved).exists());
+    }
+
+    private File createPartial(int size) throws IOException {
+        final File partial = cache.createPartialFile();
+
+        final FileOutputStream out = new FileOutputStream(partial);
+        out.write(new byte[size]);
+        out.close();
+
+        return partial;
+    }
+}
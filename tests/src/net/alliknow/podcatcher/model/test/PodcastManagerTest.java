@@ -0,0 +1,176 @@
+/** Copyright 2012-2014 Kevin Hausmann
+ *
+ * This file is part of PodCatcher Deluxe.
+ *
+ * PodCatcher Deluxe is free software: you can redistribute it 
+ * and/or modify it under the terms of the GNU General Public License as 
+ * published by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * PodCatcher Deluxe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PodCatcher Deluxe. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.alliknow.podcatcher.model.test;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import net.alliknow.podcatcher.model.PodcastManager;
+import net.alliknow.podcatcher.model.tasks.remote.HttpTransport;
+import net.alliknow.podcatcher.model.tasks.remote.LoadRemoteFileTask;
+import net.alliknow.podcatcher.model.types.Podcast;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+@SuppressWarnings("javadoc")
+public class PodcastManagerTest extends InstrumentationTestCase {
+
+    private static final String TEST_URL_PREFIX = "http://www.example.com/stresstest/";
+
+    private static final int THREAD_COUNT = 8;
+    private static final int OPERATIONS_PER_THREAD = 200;
+
+    private static final int PODCASTS_PER_THREAD = 10;
+
+    private PodcastManager manager;
+    private HttpTransport defaultTransport;
+    private int initialSize;
+
+    @Override
+    protected void setUp() throws Exception {
+        manager = PodcastManager.getInstance();
+
+        // Wait for the podcast list to become available
+        int waited = 0;
+        while (manager.getPodcastList() == null && waited++ < 100)
+            Thread.sleep(100);
+
+        assertNotNull(manager.getPodcastList());
+        initialSize = manager.size();
+
+        // Serve all feeds locally, loads and refreshes stay off the network
+        final LocalHttpTransport transport = new LocalHttpTransport();
+        for (int thread = 0; thread < THREAD_COUNT; thread++)
+            for (int index = 0; index < PODCASTS_PER_THREAD; index++)
+                transport.put(getTestUrl(thread, index), ("<rss><channel><title>Stress test</title>"
+                        + "</channel></rss>").getBytes("UTF-8"));
+
+        defaultTransport = LoadRemoteFileTask.getDefaultTransport();
+        LoadRemoteFileTask.setDefaultTransport(transport);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Leave the subscriptions as we found them, even if the test failed
+        removeTestPodcasts();
+
+        LoadRemoteFileTask.setDefaultTransport(defaultTransport);
+    }
+
+    public final void testConcurrentAddRemoveLoadRefresh() throws Exception {
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREAD_COUNT);
+
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int thread = t;
+
+            new Thread() {
+
+                @Override
+                public void run() {
+                    final Random random = new Random(thread);
+
+                    try {
+                        start.await();
+
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            final Podcast podcast = new Podcast("Stress test " + thread + "/" + i,
+                                    getTestUrl(thread, random.nextInt(PODCASTS_PER_THREAD)));
+
+                            switch (random.nextInt(6)) {
+                                case 0:
+                                case 1:
+                                    manager.addPodcast(podcast);
+                                    break;
+                                case 2:
+                                    manager.removePodcast(podcast);
+                                    break;
+                                case 3:
+                                    manager.load(podcast);
+                                    break;
+                                case 4:
+                                    manager.refresh();
+                                    break;
+                                default:
+                                    // Readers need to see consistent snapshots
+                                    final List<Podcast> list = manager.getPodcastList();
+                                    for (int index = 1; index < list.size(); index++)
+                                        assertTrue(list.get(index - 1).compareTo(list.get(index)) <= 0);
+                                    manager.findPodcastForUrl(podcast.getUrl());
+                                    manager.isLoading(podcast);
+                            }
+                        }
+                    } catch (Throwable throwable) {
+                        errors.add(throwable);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        start.countDown();
+        done.await();
+        // Let the main thread work off everything posted
+        getInstrumentation().waitForIdleSync();
+
+        for (Throwable error : errors)
+            Log.e(Utils.TEST_STATUS, "Concurrent access failed", error);
+        assertTrue(errors.isEmpty());
+
+        // The list should be sorted and free of duplicates
+        final List<Podcast> list = manager.getPodcastList();
+        final Set<Podcast> unique = new HashSet<Podcast>(list);
+        assertEquals(unique.size(), list.size());
+        for (int index = 1; index < list.size(); index++)
+            assertTrue(list.get(index - 1).compareTo(list.get(index)) <= 0);
+
+        // Clean up
+        removeTestPodcasts();
+        assertEquals(initialSize, manager.size());
+    }
+
+    private void removeTestPodcasts() {
+        final List<Podcast> list = manager.getPodcastList();
+        if (list != null)
+            for (Podcast podcast : list)
+                if (podcast.getUrl().startsWith(TEST_URL_PREFIX))
+                    manager.removePodcast(podcast);
+
+        getInstrumentation().waitForIdleSync();
+        // Have the original list written back to disk
+        getInstrumentation().runOnMainSync(new Runnable() {
+
+            @Override
+            public void run() {
+                manager.saveState();
+            }
+        });
+    }
+
+    private static String getTestUrl(int thread, int index) {
+        return TEST_URL_PREFIX + thread + "/" + index;
+    }
+}
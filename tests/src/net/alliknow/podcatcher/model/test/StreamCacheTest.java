@@ -0,0 +1,115 @@
+package net.alliknow.podcatcher.model.test;
+
+import android.test.InstrumentationTestCase;
+
+import net.alliknow.podcatcher.model.StreamCache;
+import net.alliknow.podcatcher.model.StreamCache.Entry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@SuppressWarnings("javadoc")
+public class StreamCacheTest extends InstrumentationTestCase {
+
+    private static final String URL = "http://www.example.com/episode.mp3";
+
+    private StreamCache cache;
+    private File target;
+
+    @Override
+    protected void setUp() throws Exception {
+        cache = StreamCache.getInstance(getInstrumentation().getTargetContext());
+        cache.remove(URL);
+
+        target = new File(getInstrumentation().getTargetContext().getCacheDir(), "promoted.mp3");
+        target.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.remove(URL);
+        target.delete();
+    }
+
+    public final void testRanges() throws IOException {
+        final Entry entry = cache.open(URL);
+        try {
+            entry.setDetails(1000, "audio/mpeg");
+            assertEquals(1000, entry.getLength());
+            assertEquals("audio/mpeg", entry.getContentType());
+            assertEquals(0, entry.getCachedEnd(0));
+            assertEquals(1000, entry.getMissingEnd(0));
+
+            entry.write(100, new byte[100], 0, 100);
+            entry.write(400, new byte[100], 0, 100);
+            assertEquals(200, entry.getCachedSize());
+            assertEquals(100, entry.getMissingEnd(0));
+            assertEquals(200, entry.getCachedEnd(150));
+            assertEquals(400, entry.getMissingEnd(200));
+            assertEquals(1000, entry.getMissingEnd(500));
+
+            // Fill the gap, ranges merge
+            entry.write(150, new byte[300], 0, 300);
+            assertEquals(100, entry.getMissingEnd(0));
+            assertEquals(500, entry.getCachedEnd(100));
+            assertEquals(400, entry.getCachedSize());
+            assertFalse(entry.isComplete());
+
+            // A different length invalidates what we have
+            entry.setDetails(2000, "audio/mpeg");
+            assertEquals(0, entry.getCachedSize());
+        } finally {
+            cache.close(entry);
+        }
+    }
+
+    public final void testReadWrite() throws IOException {
+        final byte[] data = new byte[256];
+        for (int index = 0; index < data.length; index++)
+            data[index] = (byte) index;
+
+        final Entry entry = cache.open(URL);
+        try {
+            entry.setDetails(data.length, null);
+            entry.write(128, data, 128, 128);
+            entry.write(0, data, 0, 128);
+            assertTrue(entry.isComplete());
+
+            final byte[] read = new byte[data.length];
+            assertEquals(data.length, entry.read(0, read, 0, read.length));
+            assertTrue(Arrays.equals(data, read));
+        } finally {
+            cache.close(entry);
+        }
+
+        // Cached ranges survive closing
+        final Entry reopened = cache.open(URL);
+        assertTrue(reopened.isComplete());
+        cache.close(reopened);
+    }
+
+    public final void testPromote() throws IOException {
+        final Entry entry = cache.open(URL);
+        entry.setDetails(100, "audio/mpeg");
+        entry.write(0, new byte[50], 0, 50);
+
+        // Not complete
+        assertFalse(cache.promote(URL, target));
+        entry.write(50, new byte[50], 0, 50);
+        // In use
+        assertFalse(cache.promote(URL, target));
+        cache.close(entry);
+
+        final long size = cache.getSize();
+        assertTrue(cache.promote(URL, target));
+        assertEquals(100, target.length());
+        assertEquals(size - 100, cache.getSize());
+        assertFalse(cache.promote(URL, target));
+
+        final FileInputStream in = new FileInputStream(target);
+        assertEquals(0, in.read());
+        in.close();
+    }
+}
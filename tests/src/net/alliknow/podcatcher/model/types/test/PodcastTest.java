@@ -220,4 +220,29 @@ public class PodcastTest extends InstrumentationTestCase {
         assertEquals("http://feeds.feedburner.com/TestPodcast",
                 new Podcast(null, "FB:TestPodcast?format=xml").getUrl());
     }
+
+    public final void testRestoreRedirect() {
+        final Podcast podcast = new Podcast(null, "http://www.example.com/feed");
+        final String moved = "https://feeds.example.com/feed";
+
+        // Invalid values are ignored
+        podcast.restoreRedirect(null, 2);
+        podcast.restoreRedirect(moved, 0);
+        podcast.restoreRedirect("http://www.example.com/feed", 2);
+        assertEquals(podcast.getUrl(), podcast.getLoadUrl());
+        assertEquals(0, podcast.getRedirectCount());
+
+        // A restored redirect counts on where it left off
+        podcast.restoreRedirect(moved, Podcast.STABLE_REDIRECT_COUNT - 1);
+        assertEquals(moved, podcast.getLoadUrl());
+        assertFalse(podcast.isRedirectStable());
+        podcast.recordRedirect(null);
+        assertTrue(podcast.isRedirectStable());
+
+        // ... but never beyond stable
+        podcast.recordRedirect(null);
+        assertEquals(Podcast.STABLE_REDIRECT_COUNT, podcast.getRedirectCount());
+        podcast.restoreRedirect(moved, 42);
+        assertEquals(Podcast.STABLE_REDIRECT_COUNT, podcast.getRedirectCount());
+    }
 }
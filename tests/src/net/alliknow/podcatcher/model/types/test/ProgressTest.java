@@ -33,4 +33,18 @@ public class ProgressTest extends TestCase {
         p = new Progress(150, 100);
         assertEquals(p.getPercentDone(), 150);
     }
+
+    public void testForPercent() {
+        assertEquals(0, Progress.forPercent(0).getPercentDone());
+        assertEquals(42, Progress.forPercent(42).getPercentDone());
+        assertEquals(100, Progress.forPercent(100).getPercentDone());
+        assertEquals(42, Progress.forPercent(42).getProgress());
+        assertEquals(100, Progress.forPercent(42).getTotal());
+
+        // Shared instances
+        assertSame(Progress.forPercent(42), Progress.forPercent(42));
+
+        assertEquals(150, Progress.forPercent(150).getPercentDone());
+        assertEquals(-1, Progress.forPercent(-1).getPercentDone());
+    }
 }
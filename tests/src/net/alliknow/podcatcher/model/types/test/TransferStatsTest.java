@@ -0,0 +1,26 @@
+
+package net.alliknow.podcatcher.model.types.test;
+
+import junit.framework.TestCase;
+
+import net.alliknow.podcatcher.model.types.TransferStats;
+
+@SuppressWarnings("javadoc")
+public class TransferStatsTest extends TestCase {
+
+    public void testRecord() {
+        final TransferStats stats = new TransferStats();
+        assertEquals(0, stats.getLoadCount());
+        assertEquals(1f, stats.getCompressionRatio());
+
+        stats.record(100, 500);
+        stats.record(200, 1000);
+
+        assertEquals(2, stats.getLoadCount());
+        assertEquals(300, stats.getBytesTransferred());
+        assertEquals(1500, stats.getBytesLoaded());
+        assertEquals(200, stats.getLastBytesTransferred());
+        assertEquals(1000, stats.getLastBytesLoaded());
+        assertEquals(5f, stats.getCompressionRatio());
+    }
+}
@@ -0,0 +1,125 @@
+package net.alliknow.podcatcher.services.test;
+
+import android.test.InstrumentationTestCase;
+
+import net.alliknow.podcatcher.model.StreamCache;
+import net.alliknow.podcatcher.model.test.LocalHttpServer;
+import net.alliknow.podcatcher.services.StreamProxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+@SuppressWarnings("javadoc")
+public class StreamProxyTest extends InstrumentationTestCase {
+
+    private static final String PATH = "/episode.mp3";
+    private static final int LENGTH = 100 * 1024;
+
+    private final byte[] content = new byte[LENGTH];
+
+    private LocalHttpServer server;
+    private StreamProxy proxy;
+    private StreamCache cache;
+    private String key;
+
+    @Override
+    protected void setUp() throws Exception {
+        for (int index = 0; index < content.length; index++)
+            content[index] = (byte) (index % 251);
+
+        server = new LocalHttpServer();
+        server.put(PATH, content);
+        server.start();
+        key = server.getUrl(PATH);
+
+        cache = StreamCache.getInstance(getInstrumentation().getTargetContext());
+        cache.remove(key);
+
+        proxy = new StreamProxy(getInstrumentation().getTargetContext());
+        proxy.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        proxy.stop();
+        server.shutdown();
+        cache.remove(key);
+    }
+
+    public final void testProxyUrlWhenStopped() {
+        proxy.stop();
+
+        assertEquals(key, proxy.getProxyUrl(key, key, null));
+    }
+
+    public final void testCompleteStream() throws IOException {
+        final String url = proxy.getProxyUrl(key, key, null);
+        assertTrue(url.startsWith("http://127.0.0.1:"));
+
+        assertTrue(Arrays.equals(content, fetch(url, null, 200)));
+
+        // Second time around we do not go to the server
+        server.resetCounters();
+        assertTrue(Arrays.equals(content, fetch(url, null, 200)));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    public final void testRanges() throws IOException {
+        final String url = proxy.getProxyUrl(key, key, null);
+
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 1000, 2000),
+                fetch(url, "bytes=1000-1999", 206)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 50000, LENGTH),
+                fetch(url, "bytes=50000-", 206)));
+
+        // The gaps are filled
+        assertTrue(Arrays.equals(content, fetch(url, null, 200)));
+        server.resetCounters();
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 0, 60000),
+                fetch(url, "bytes=0-59999", 206)));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    public final void testServerIgnoringRanges() throws IOException {
+        server.setSupportRanges(false);
+        final String url = proxy.getProxyUrl(key, key, null);
+
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 5000, 6000),
+                fetch(url, "bytes=5000-5999", 206)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 0, 5000),
+                fetch(url, "bytes=0-4999", 206)));
+    }
+
+    public final void testUnknownToken() throws IOException {
+        final URL url = new URL(proxy.getProxyUrl(key, key, null) + "-unknown");
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+        assertEquals(404, connection.getResponseCode());
+        connection.disconnect();
+    }
+
+    private byte[] fetch(String url, String range, int expectedCode) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (range != null)
+            connection.setRequestProperty("Range", range);
+
+        try {
+            assertEquals(expectedCode, connection.getResponseCode());
+
+            final InputStream in = connection.getInputStream();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                out.write(buffer, 0, read);
+
+            return out.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}